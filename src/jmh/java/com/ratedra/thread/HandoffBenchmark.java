@@ -0,0 +1,165 @@
+package com.ratedra.thread;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * OddEvenThread style, two threads pass a turn back and forth through a monitor, LockSupport or a spun volatile.
+ * the benchmark thread is party 0 and an invocation is one round trip, two handoffs. the other party runs on a
+ * thread of the trial that hands every turn straight back. -bm sample reports the round trip percentiles and
+ * -prof gc the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@Threads(1)
+@State(Scope.Benchmark)
+public class HandoffBenchmark {
+    @Param({"wait/notify", "LockSupport", "spin"})
+    public String handoff;
+
+    private Handoff turns;
+    private Thread other;
+    // written by party 0 before it passes the turn, read by the other party once the turn is back
+    private volatile boolean stopped;
+
+    /**
+     * runs on the benchmark thread, which is party 0
+     */
+    @Setup(Level.Trial)
+    public void start() {
+        turns = create(handoff);
+        stopped = false;
+        other = new Thread(() -> {
+            while (true) {
+                turns.await(1);
+                if (stopped) {
+                    return;
+                }
+                turns.pass(1);
+            }
+        }, "handoff-1");
+        other.setDaemon(true);
+        turns.register(Thread.currentThread(), other);
+        other.start();
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        turns.pass(0);
+        turns.await(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        stopped = true;
+        turns.pass(0);
+        other.join();
+    }
+
+    private static Handoff create(String handoff) {
+        switch (handoff) {
+            case "wait/notify":
+                return new MonitorHandoff();
+            case "LockSupport":
+                return new ParkHandoff();
+            case "spin":
+                return new SpinHandoff();
+            default:
+                throw new RuntimeException("unknown handoff " + handoff);
+        }
+    }
+
+    /**
+     * two parties taking turns, pass hands the turn to the other party, await blocks until it is back
+     */
+    private interface Handoff {
+        default void register(Thread first, Thread second) {
+        }
+
+        void pass(int party);
+
+        void await(int party);
+    }
+
+    /**
+     * what OddEvenThread does, a monitor with wait and notify
+     */
+    private static class MonitorHandoff implements Handoff {
+        private int turn;
+
+        @Override
+        public synchronized void pass(int party) {
+            turn = 1 - party;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void await(int party) {
+            while (turn != party) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    private static class ParkHandoff implements Handoff {
+        private final Thread[] parties = new Thread[2];
+        private volatile int turn;
+
+        @Override
+        public void register(Thread first, Thread second) {
+            parties[0] = first;
+            parties[1] = second;
+        }
+
+        @Override
+        public void pass(int party) {
+            turn = 1 - party;
+            LockSupport.unpark(parties[1 - party]);
+        }
+
+        @Override
+        public void await(int party) {
+            while (turn != party) {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private static class SpinHandoff implements Handoff {
+        private volatile int turn;
+
+        @Override
+        public void pass(int party) {
+            turn = 1 - party;
+        }
+
+        @Override
+        public void await(int party) {
+            while (turn != party) {
+                // java 8 has no Thread.onSpinWait
+            }
+        }
+    }
+}
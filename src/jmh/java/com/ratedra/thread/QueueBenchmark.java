@@ -0,0 +1,177 @@
+package com.ratedra.thread;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Producers offer and consumers poll the same queue, LinkedList + ReentrantLock against the jdk and lock-free queues.
+ * one producer and one consumer by default, other ratios with -tg, e.g. -tg 4,1 for four producers and a consumer.
+ * MpscRingQueue takes a single consumer and SpscRingQueue a single producer too, they fail the trial otherwise.
+ *
+ * an invocation is one offer or poll attempt whether it succeeds or not, so the primary score mixes in the misses.
+ * offersMade and pollsMade count the successful ones, pollsMade is the throughput to compare. producers stop
+ * MAX_IN_FLIGHT items ahead of the consumers so unbounded queues run at the same depth as bounded ones.
+ * -bm sample reports offer and poll latency instead.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Group)
+public class QueueBenchmark {
+    private static final int CAPACITY = 1 << 14;
+    private static final int MAX_IN_FLIGHT = CAPACITY;
+    // producers look at the depth every 64th offer, summing the counters on every one would cost more than the offer
+    private static final int DEPTH_CHECK_MASK = 63;
+    private static final Integer ITEM = 42;
+
+    @Param({"LockedQueue", "ArrayBlockingQueue", "ConcurrentLinkedQueue", "LockFreeLinkedQueue", "MpmcRingQueue",
+            "MpscRingQueue", "SpscRingQueue"})
+    public String queue;
+
+    private NonBlockingQueue<Integer> candidate;
+    // items offered and polled per thread of the group since the trial started
+    private PaddedCounter[] produced;
+    private PaddedCounter[] consumed;
+
+    @Setup(Level.Trial)
+    public void create(BenchmarkParams params) {
+        int producers = params.getThreadGroups()[0];
+        int consumers = params.getThreadGroups()[1];
+        boolean singleProducer = queue.equals("SpscRingQueue");
+        boolean singleConsumer = singleProducer || queue.equals("MpscRingQueue");
+        if (singleProducer && producers > 1 || singleConsumer && consumers > 1) {
+            throw new RuntimeException(queue + " can't run with " + producers + " producers and " + consumers + " consumers");
+        }
+        candidate = create(queue);
+        produced = counters(producers);
+        consumed = counters(consumers);
+    }
+
+    @Benchmark
+    @Group("offerPoll")
+    @GroupThreads(1)
+    public void offer(OfferCounters counters) {
+        if ((counters.total & DEPTH_CHECK_MASK) == 0 && sum(produced) - sum(consumed) > MAX_IN_FLIGHT) {
+            counters.offersFailed++;
+            return;
+        }
+        if (candidate.offer(ITEM)) {
+            counters.offersMade++;
+            produced[counters.index].lazySet(++counters.total);
+        } else {
+            counters.offersFailed++;
+        }
+    }
+
+    @Benchmark
+    @Group("offerPoll")
+    @GroupThreads(1)
+    public Integer poll(PollCounters counters) {
+        Integer item = candidate.poll();
+        if (item == null) {
+            counters.pollsFailed++;
+        } else {
+            counters.pollsMade++;
+            consumed[counters.index].lazySet(++counters.total);
+        }
+        return item;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class OfferCounters {
+        public long offersMade;
+        public long offersFailed;
+        int index;
+        long total;
+
+        @Setup(Level.Trial)
+        public void join(ThreadParams params) {
+            index = params.getSubgroupThreadIndex();
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            offersMade = 0;
+            offersFailed = 0;
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class PollCounters {
+        public long pollsMade;
+        public long pollsFailed;
+        int index;
+        long total;
+
+        @Setup(Level.Trial)
+        public void join(ThreadParams params) {
+            index = params.getSubgroupThreadIndex();
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pollsMade = 0;
+            pollsFailed = 0;
+        }
+    }
+
+    private static NonBlockingQueue<Integer> create(String queue) {
+        switch (queue) {
+            case "LockedQueue":
+                return new ConcurrentQueueImpl.LockedQueue<>();
+            case "ArrayBlockingQueue":
+                return new ConcurrentQueueImpl.JdkQueue<>(new ArrayBlockingQueue<>(CAPACITY));
+            case "ConcurrentLinkedQueue":
+                return new ConcurrentQueueImpl.JdkQueue<>(new ConcurrentLinkedQueue<>());
+            case "LockFreeLinkedQueue":
+                return new LockFreeLinkedQueue<>();
+            case "MpmcRingQueue":
+                return new MpmcRingQueue<>(CAPACITY);
+            case "MpscRingQueue":
+                return new MpscRingQueue<>(CAPACITY);
+            case "SpscRingQueue":
+                return new SpscRingQueue<>(CAPACITY);
+            default:
+                throw new RuntimeException("unknown queue " + queue);
+        }
+    }
+
+    private static PaddedCounter[] counters(int count) {
+        PaddedCounter[] counters = new PaddedCounter[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new PaddedCounter(0);
+        }
+        return counters;
+    }
+
+    private static long sum(PaddedCounter[] counters) {
+        long sum = 0;
+        for (PaddedCounter counter : counters) {
+            sum += counter.get();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,180 @@
+package com.ratedra.thread;
+
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * N threads in strict round robin through wait/notify, a Phaser and a TurnSequencer.
+ * the benchmark thread is party 0 and an invocation is one of its turns, so a round of N handoffs. the other parties
+ * run on threads of the trial that take their turns until party 0 tells them to stop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@Threads(1)
+@State(Scope.Benchmark)
+public class TurnTakingBenchmark {
+    @Param({"2", "4", "8"})
+    public int parties;
+
+    @Param({"wait/notify", "Phaser", "sequencer spin/park", "sequencer spin/yield"})
+    public String turnTaking;
+
+    private TurnTaking turns;
+    private Thread[] others;
+    // written by party 0 during one of its turns, read by the others during theirs
+    private volatile boolean stopped;
+
+    @Setup(Level.Trial)
+    public void start() {
+        turns = create(turnTaking, parties);
+        stopped = false;
+        others = new Thread[parties - 1];
+        for (int party = 1; party < parties; party++) {
+            int own = party;
+            others[party - 1] = new Thread(() -> {
+                try {
+                    boolean last;
+                    do {
+                        turns.awaitTurn(own);
+                        last = stopped;
+                        turns.endTurn(own);
+                    } while (!last);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "turns-" + party);
+            others[party - 1].setDaemon(true);
+            others[party - 1].start();
+        }
+    }
+
+    @Benchmark
+    public void round() throws InterruptedException {
+        turns.awaitTurn(0);
+        turns.endTurn(0);
+    }
+
+    /**
+     * the flag is set during a turn of party 0, so every other party sees it in its next turn and leaves after it
+     */
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        turns.awaitTurn(0);
+        stopped = true;
+        turns.endTurn(0);
+        for (Thread other : others) {
+            other.join();
+        }
+    }
+
+    private static TurnTaking create(String turnTaking, int parties) {
+        switch (turnTaking) {
+            case "wait/notify":
+                return new MonitorTurns(parties);
+            case "Phaser":
+                return new PhaserTurns(parties);
+            case "sequencer spin/park":
+                return new SequencerTurns(new TurnSequencer(parties));
+            case "sequencer spin/yield":
+                return new SequencerTurns(new TurnSequencer(parties, WaitStrategy.spinThenYield(100)));
+            default:
+                throw new RuntimeException("unknown turn taking " + turnTaking);
+        }
+    }
+
+    private interface TurnTaking {
+        void awaitTurn(int party) throws InterruptedException;
+
+        void endTurn(int party);
+    }
+
+    /**
+     * OddEvenThread for N threads, one monitor, everybody woken on every turn and all but one go back to sleep
+     */
+    private static class MonitorTurns implements TurnTaking {
+        private final int parties;
+        private int turn;
+
+        MonitorTurns(int parties) {
+            this.parties = parties;
+        }
+
+        @Override
+        public synchronized void awaitTurn(int party) throws InterruptedException {
+            while (turn != party) {
+                wait();
+            }
+        }
+
+        @Override
+        public synchronized void endTurn(int party) {
+            turn = party + 1 == parties ? 0 : party + 1;
+            notifyAll();
+        }
+    }
+
+    /**
+     * one registered party, every arrive advances the phase, party p runs in the phases that are p modulo N
+     */
+    private static class PhaserTurns implements TurnTaking {
+        private final Phaser phaser = new Phaser(1);
+        private final int parties;
+        // turns taken per party, each slot only touched by its own thread
+        private final int[] taken;
+
+        PhaserTurns(int parties) {
+            this.parties = parties;
+            this.taken = new int[parties];
+        }
+
+        @Override
+        public void awaitTurn(int party) throws InterruptedException {
+            int phase = taken[party] * parties + party;
+            for (int current = phaser.getPhase(); current < phase; current = phaser.getPhase()) {
+                phaser.awaitAdvanceInterruptibly(current);
+            }
+        }
+
+        @Override
+        public void endTurn(int party) {
+            taken[party]++;
+            phaser.arrive();
+        }
+    }
+
+    private static class SequencerTurns implements TurnTaking {
+        private final TurnSequencer sequencer;
+
+        SequencerTurns(TurnSequencer sequencer) {
+            this.sequencer = sequencer;
+        }
+
+        @Override
+        public void awaitTurn(int party) throws InterruptedException {
+            sequencer.awaitTurn(party);
+        }
+
+        @Override
+        public void endTurn(int party) {
+            sequencer.endTurn(party);
+        }
+    }
+}
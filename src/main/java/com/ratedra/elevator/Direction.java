@@ -0,0 +1,7 @@
+package com.ratedra.elevator;
+
+enum Direction{
+    UP,
+    DOWN,
+    IDLE;
+}
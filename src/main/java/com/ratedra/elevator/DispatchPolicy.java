@@ -0,0 +1,11 @@
+package com.ratedra.elevator;
+
+/**
+ * how ElevatorManager picks the car for a new hall call
+ */
+enum DispatchPolicy {
+    // the car closest to the call, whatever it is doing, as a baseline
+    NEAREST_CAR,
+    // the car with the lowest estimated time to serve the call
+    TIME_TO_SERVE
+}
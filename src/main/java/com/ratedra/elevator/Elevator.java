@@ -0,0 +1,260 @@
+package com.ratedra.elevator;
+
+/**
+ * One car of a bank, moving by LOOK: it keeps going in its direction while any stop lies ahead, serving the car
+ * calls it passes and the hall calls that go its way, and turns around at the last stop instead of running to the
+ * end of the shaft. hall calls against its direction are picked up on the way back.
+ *
+ * floors are indexes, 0 is the lowest floor of the building. time is counted in ticks, a tick moves the car one
+ * floor and a stop keeps the doors open for STOP_TICKS. not thread safe, the ElevatorManager owns its cars.
+ */
+class Elevator {
+    static final int FLOOR_TICKS = 1;
+    static final int STOP_TICKS = 5;
+    // what a full car adds to its estimate when it gets to the call before any rider gets out, it will pass the call
+    // by and hand it to another car
+    private static final int FULL_CAR_TICKS = 200;
+
+    private final int id;
+    private final int capacity;
+    private int currentFloor;
+    private Direction currentDirection = Direction.IDLE;
+    // ticks until the doors are closed again
+    private int dwellTicks;
+    private int load;
+    private long delivered;
+
+    // destinations of the riders inside, served in whichever direction the car passes them
+    private final FloorSet carStops;
+    private final FloorSet hallUp;
+    private final FloorSet hallDown;
+    // riders inside by destination
+    private final int[] alighting;
+    // hall calls the car passed by full in the last tick, floor * 2 for up and floor * 2 + 1 for down, at most one
+    // before and one after it moved
+    private final int[] bypassed = new int[2];
+    private int bypassedCount;
+
+    Elevator(int id, int floors, int capacity) {
+        this.id = id;
+        this.capacity = capacity;
+        this.carStops = new FloorSet(floors);
+        this.hallUp = new FloorSet(floors);
+        this.hallDown = new FloorSet(floors);
+        this.alighting = new int[floors];
+    }
+
+    /**
+     * estimated ticks until the car opens its doors at floor for a hall call going direction, from where it is,
+     * where it is heading, the stops it committed to and how full it is. a handful of popcounts, no allocation
+     */
+    long timeToServe(int floor, Direction direction) {
+        int floors;
+        int stops;
+        // a full car reaches the call before any of its riders got out
+        boolean passesBy = false;
+        // an idle car that was just given a call is as good as on its way, a car without stops as good as idle
+        Direction heading = currentDirection == Direction.IDLE || pendingStops() == 0 ? nextDirection() : currentDirection;
+        if (heading == Direction.IDLE || floor == currentFloor && direction == heading) {
+            floors = Math.abs(floor - currentFloor);
+            stops = 0;
+            passesBy = direction == heading;
+        } else {
+            int s = heading == Direction.UP ? 1 : -1;
+            FloorSet along = s > 0 ? hallUp : hallDown;
+            FloorSet against = s > 0 ? hallDown : hallUp;
+            // where LOOK turns around, the last stop ahead
+            int turn = s > 0 ? Math.max(currentFloor, highestStop()) : Math.min(currentFloor, lowestStop());
+            if (direction == heading && s * (floor - currentFloor) > 0) {
+                // ahead and on the way
+                floors = Math.abs(floor - currentFloor);
+                int carStopsBefore = passed(carStops, currentFloor, floor - s, s);
+                stops = carStopsBefore + passed(along, currentFloor, floor - s, s);
+                passesBy = carStopsBefore == 0 && !carStops.contains(floor);
+            } else if (direction != heading) {
+                // on the way back, the call itself may be the turning point
+                turn = s > 0 ? Math.max(turn, floor) : Math.min(turn, floor);
+                floors = Math.abs(turn - currentFloor) + Math.abs(turn - floor);
+                stops = passed(carStops, currentFloor, turn, s) + passed(along, currentFloor, turn, s) + passed(against, turn, floor + s, -s);
+                if (s * (floor - currentFloor) < 0) {
+                    stops += passed(carStops, currentFloor, floor + s, -s);
+                }
+            } else {
+                // behind and going the same way, the car has to sweep out and back first
+                int back = s > 0 ? Math.min(lowestStop(), floor) : Math.max(highestStop(), floor);
+                floors = Math.abs(turn - currentFloor) + Math.abs(turn - back) + Math.abs(floor - back);
+                stops = pendingStops();
+            }
+        }
+        long ticks = dwellTicks + (long) floors * FLOOR_TICKS + (long) stops * STOP_TICKS;
+        // a fuller car takes longer at every stop, a full one passes hall calls by until riders got out
+        return ticks + (load >= capacity && passesBy ? FULL_CAR_TICKS : (long) STOP_TICKS * load / capacity);
+    }
+
+    void addHallCall(int floor, Direction direction) {
+        (direction == Direction.UP ? hallUp : hallDown).add(floor);
+    }
+
+    /**
+     * another car served the call first
+     */
+    void cancelHallCall(int floor, Direction direction) {
+        (direction == Direction.UP ? hallUp : hallDown).remove(floor);
+    }
+
+    /**
+     * a rider got in and pressed destination, false when the car is full
+     */
+    boolean board(int destination) {
+        if (load >= capacity) {
+            return false;
+        }
+        load++;
+        if (destination == currentFloor) {
+            // changed their mind, out again at once
+            load--;
+            delivered++;
+            return true;
+        }
+        alighting[destination]++;
+        carStops.add(destination);
+        return true;
+    }
+
+    /**
+     * advances the car by one tick: the doors close, or it moves a floor. returns the direction it serves when its
+     * doors just opened, the riders waiting for that direction at its floor can board, null otherwise
+     */
+    Direction tick() {
+        bypassedCount = 0;
+        if (dwellTicks > 0 && --dwellTicks > 0) {
+            return null;
+        }
+        // a call for this floor may have come in while the doors were open or the car was idle
+        Direction served = stopHere();
+        if (served != null) {
+            return served;
+        }
+        currentDirection = nextDirection();
+        if (currentDirection == Direction.IDLE) {
+            return null;
+        }
+        currentFloor += currentDirection == Direction.UP ? 1 : -1;
+        return stopHere();
+    }
+
+    private Direction stopHere() {
+        Direction served = null;
+        if (currentDirection != Direction.DOWN && hallUp.contains(currentFloor)) {
+            served = Direction.UP;
+        } else if (currentDirection != Direction.UP && hallDown.contains(currentFloor)) {
+            served = Direction.DOWN;
+        } else if (currentDirection == Direction.UP && hallDown.contains(currentFloor) && highestStop() == currentFloor) {
+            served = Direction.DOWN;
+        } else if (currentDirection == Direction.DOWN && hallUp.contains(currentFloor) && lowestStop() == currentFloor) {
+            served = Direction.UP;
+        }
+        // riders getting out here make room first, a car that stays full passes the call by and gives it up
+        if (served != null && load - alighting[currentFloor] >= capacity) {
+            cancelHallCall(currentFloor, served);
+            bypassed[bypassedCount++] = currentFloor * 2 + (served == Direction.UP ? 0 : 1);
+            served = null;
+        }
+        if (served != null) {
+            cancelHallCall(currentFloor, served);
+            currentDirection = served;
+        } else if (carStops.contains(currentFloor)) {
+            served = currentDirection;
+        } else {
+            return null;
+        }
+        carStops.remove(currentFloor);
+        load -= alighting[currentFloor];
+        delivered += alighting[currentFloor];
+        alighting[currentFloor] = 0;
+        dwellTicks = STOP_TICKS;
+        return served;
+    }
+
+    private Direction nextDirection() {
+        int highest = highestStop();
+        if (highest < 0) {
+            return Direction.IDLE;
+        }
+        int lowest = lowestStop();
+        if (currentDirection == Direction.UP) {
+            return highest > currentFloor ? Direction.UP : Direction.DOWN;
+        }
+        if (currentDirection == Direction.DOWN) {
+            return lowest < currentFloor ? Direction.DOWN : Direction.UP;
+        }
+        // idle, head for the nearer end of the work
+        if (lowest >= currentFloor) {
+            return Direction.UP;
+        }
+        if (highest <= currentFloor) {
+            return Direction.DOWN;
+        }
+        return highest - currentFloor < currentFloor - lowest ? Direction.UP : Direction.DOWN;
+    }
+
+    /**
+     * stops of set after from up to and including to, travelling up for s = 1 and down for s = -1
+     */
+    private static int passed(FloorSet set, int from, int to, int s) {
+        return s > 0 ? set.count(from + 1, to) : set.count(to, from - 1);
+    }
+
+    private int highestStop() {
+        return Math.max(carStops.highest(), Math.max(hallUp.highest(), hallDown.highest()));
+    }
+
+    private int lowestStop() {
+        int lowest = lowest(Integer.MAX_VALUE, carStops);
+        lowest = lowest(lowest, hallUp);
+        lowest = lowest(lowest, hallDown);
+        return lowest == Integer.MAX_VALUE ? -1 : lowest;
+    }
+
+    private static int lowest(int lowest, FloorSet set) {
+        return set.isEmpty() ? lowest : Math.min(lowest, set.lowest());
+    }
+
+    /**
+     * hall calls the car passed by full in its last tick, for the manager to hand to another car
+     */
+    int bypassedCalls() {
+        return bypassedCount;
+    }
+
+    /**
+     * the i-th of them as floor * 2 for up and floor * 2 + 1 for down
+     */
+    int bypassedCall(int i) {
+        return bypassed[i];
+    }
+
+    int pendingStops() {
+        return carStops.size() + hallUp.size() + hallDown.size();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getCurrentFloor() {
+        return currentFloor;
+    }
+
+    public Direction getCurrentDirection() {
+        return currentDirection;
+    }
+
+    public int getLoad() {
+        return load;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+}
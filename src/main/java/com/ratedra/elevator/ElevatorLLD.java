@@ -1,244 +1,101 @@
 package com.ratedra.elevator;
 
-import java.util.*;
+import java.util.Random;
 
-// assuming just one elevator in the building
-class Elevator implements Observer { // observer
-    public static final Integer TOPMOST_FLOOR = 5;
-    public static final Integer BOTTOMMOST_FLOOR = 0;
-
-    private int currentFloor;
-    private Direction currentDirection;
-    private Queue<Integer> upQueue;
-    private Queue<Integer> downQueue;
-
-    private ElevatorManager elevatorManager;
-
-    public Elevator() {
-        this.currentFloor = 0;
-        this.currentDirection = Direction.IDLE;
-        this.upQueue = new PriorityQueue<>();
-        this.elevatorManager = ElevatorManager.getInstance();
-        this.downQueue = new PriorityQueue<>(new Comparator<Integer>() {
-            @Override
-            public int compare(Integer o1, Integer o2) {
-                return o2.compareTo(o1);
-            }
-        });
-    }
-
-    @Override
-    public void update() {
-        elevatorManager.run(this);
-    }
-
-    public int getCurrentFloor() {
-        return currentFloor;
-    }
-
-    public void setCurrentFloor(int currentFloor) {
-        this.currentFloor = currentFloor;
-    }
-
-    public Direction getCurrentDirection() {
-        return currentDirection;
-    }
-
-    public void setCurrentDirection(Direction currentDirection) {
-        this.currentDirection = currentDirection;
-    }
-
-    public Queue<Integer> getUpQueue() {
-        return upQueue;
-    }
-
-    public void setUpQueue(Queue<Integer> upQueue) {
-        this.upQueue = upQueue;
-    }
-
-    public Queue<Integer> getDownQueue() {
-        return downQueue;
-    }
-
-    public void setDownQueue(Queue<Integer> downQueue) {
-        this.downQueue = downQueue;
-    }
-}
-
-interface Observer{
-    public void update();
-}
-
-abstract class Observable{
-    private List<Observer> observers = new ArrayList<>();
-
-    public void addObservers(Observer elevator){
-        observers.add(elevator);
-    }
-
-    public void notifyObservers(){
-        observers.stream().forEach(o -> o.update());
-    }
-}
-
-abstract class Request extends Observable{ // observable
-
-    public abstract Direction getDirection();
-
-    public abstract boolean addToQueue(Elevator elevator, int floor);
-}
-
-class UpRequest extends Request{
-
-    @Override
-    public Direction getDirection() {
-        return Direction.UP;
-    }
-
-    @Override
-    public boolean addToQueue(Elevator elevator, int floor) {
-        try {
-            assert (floor >= Elevator.BOTTOMMOST_FLOOR && floor <= Elevator.TOPMOST_FLOOR);
-            Queue<Integer> upQueue = elevator.getUpQueue();
-            if (!upQueue.contains(floor)) {
-                upQueue.offer(floor);
-                super.notifyObservers();
-            }
-        } catch (Exception exception){
-            return false;
-        }
-        return true;
-    }
-}
-
-class DownRequest extends Request{
-
-    @Override
-    public Direction getDirection() {
-        return Direction.DOWN;
-    }
-
-    @Override
-    public boolean addToQueue(Elevator elevator, int floor) {
-        try {
-            assert (floor >= Elevator.BOTTOMMOST_FLOOR && floor <= Elevator.TOPMOST_FLOOR);
-            Queue<Integer> downQueue = elevator.getDownQueue();
-            if (!downQueue.contains(floor)) {
-                downQueue.offer(floor);
-                notifyObservers();
-            }
-        } catch (Exception e){
-            return false;
-        }
-        return true;
-    }
-}
-
-class RequestFactory{
-    private static Map<Direction, Request> requestByDirection = new HashMap<>();
-    static {
-        requestByDirection.put(Direction.UP, new UpRequest());
-        requestByDirection.put(Direction.DOWN, new DownRequest());
-    }
-
-    private static RequestFactory INSTANCE;
-
-    private RequestFactory(){}
-
-    public static RequestFactory getInstance(){
-        if(INSTANCE == null){
-            INSTANCE = new RequestFactory();
-        }
-        return INSTANCE;
-    }
-
-    public Request getRequest(Direction direction){
-        return requestByDirection.get(direction);
-    }
-}
-
-enum Direction{
-    UP,
-    DOWN,
-    IDLE;
-}
+import com.ratedra.metrics.LatencyHistogram;
+import com.ratedra.metrics.MetricsRegistry;
 
 // for testing
 
-class ElevatorManager{
-
-    private static ElevatorManager INSTANCE;
-    private ElevatorManager(){};
-
-    public static ElevatorManager getInstance(){
-        if(INSTANCE == null){
-            INSTANCE = new ElevatorManager();
-        }
-
-        return INSTANCE;
-    }
-    public void addRequest(Elevator elevator, Direction direction, int floor){
-        RequestFactory requestFactory =  RequestFactory.getInstance();
-        Request request = requestFactory.getRequest(direction);
-        request.addObservers(elevator);
-        boolean success = request.addToQueue(elevator, floor);
-        if(success){
-            System.out.println("Request was added successfully");
-        } else{
-            System.out.println("failed to add Request");
-        }
-    }
-
-    public void run(Elevator elevator){
-        Direction currentDirection = elevator.getCurrentDirection();
-        if(currentDirection == Direction.IDLE){
-            moveUp(elevator);
-            moveDown(elevator);
-            elevator.setCurrentDirection(Direction.IDLE);
-        }
-    }
+public class ElevatorLLD {
+    private static final int CAPACITY = 16;
 
-    private void moveUp(Elevator elevator){
-        Queue<Integer> upQueue = elevator.getUpQueue();
-        elevator.setCurrentDirection(Direction.UP);
-        while (!upQueue.isEmpty()){
-            Integer nextFloor = upQueue.poll();
-            if(elevator.getCurrentFloor() < nextFloor) {
-                elevator.setCurrentFloor(nextFloor);
-                System.out.println("Elevator reached " + nextFloor + " floor");
-            } else {
-                System.out.println("It is actually a move down request");
-                addRequest(elevator, Direction.DOWN, nextFloor);
+    public static void main(String[] args) {
+        ElevatorManager elevatorManager = new ElevatorManager(-2, 30, 4, CAPACITY);
+        int[][] riders = {{0, 12}, {0, 25}, {18, 3}, {-2, 0}, {7, 30}, {22, 0}, {12, 1}};
+        for (int[] rider : riders) {
+            Elevator car = elevatorManager.addRequest(rider[0], rider[1]);
+            System.out.println("rider at " + rider[0] + " to " + rider[1] + " gets car " + car.getId()
+                    + " at floor " + elevatorManager.floorOf(car) + " going " + car.getCurrentDirection());
+            // a few ticks pass between the calls
+            for (int i = 0; i < 3; i++) {
+                elevatorManager.tick();
             }
         }
-    }
-
-    private void moveDown(Elevator elevator){
-        Queue<Integer> downQueue = elevator.getDownQueue();
-        elevator.setCurrentDirection(Direction.DOWN);
-        while (!downQueue.isEmpty()){
-            Integer nextFloor = downQueue.poll();
-            if(elevator.getCurrentFloor() > nextFloor) {
-                elevator.setCurrentFloor(nextFloor);
-                System.out.println("Elevator reached " + nextFloor + " floor");
-            } else {
-                System.out.println("It is actually a move up request");
-                addRequest(elevator, Direction.UP, nextFloor);
+        while (elevatorManager.delivered() < riders.length) {
+            elevatorManager.tick();
+        }
+        System.out.println("all " + riders.length + " riders delivered after " + elevatorManager.now() + " ticks, wait "
+                + elevatorManager.getMetrics().histogram("rider.wait.ticks").snapshot());
+
+        // compiles the dispatch path first, the first thousands of assignments run interpreted
+        simulate(new ElevatorManager(0, 199, 256, CAPACITY), 5_000, 0.04, new LatencyHistogram());
+        dispatchBenchmark(120, 8, 0.04, DispatchPolicy.NEAREST_CAR);
+        dispatchBenchmark(120, 8, 0.04, DispatchPolicy.TIME_TO_SERVE);
+        dispatchBenchmark(120, 64, 0.04, DispatchPolicy.NEAREST_CAR);
+        dispatchBenchmark(120, 64, 0.04, DispatchPolicy.TIME_TO_SERVE);
+        dispatchBenchmark(200, 256, 0.04, DispatchPolicy.TIME_TO_SERVE);
+        dispatchBenchmark(200, 512, 0.04, DispatchPolicy.TIME_TO_SERVE);
+    }
+
+    /**
+     * a busy building for a while: riders per tick and car arrive at random, a third of them at the lobby going up,
+     * a third going down to it and the rest between floors. reports what an assignment costs and how long riders
+     * wait for a car, in ticks of one floor of travel
+     */
+    private static void dispatchBenchmark(int floors, int cars, double ridersPerCarAndTick, DispatchPolicy policy) {
+        ElevatorManager manager = new ElevatorManager(0, floors - 1, cars, CAPACITY);
+        manager.setDispatchPolicy(policy);
+        LatencyHistogram pendingStops = new LatencyHistogram();
+        long start = System.nanoTime();
+        long riders = simulate(manager, 5_000, ridersPerCarAndTick, pendingStops);
+        long elapsedNanos = System.nanoTime() - start;
+
+        MetricsRegistry metrics = manager.getMetrics();
+        LatencyHistogram.Snapshot assign = metrics.histogram("dispatch.assign.latency").snapshot();
+        LatencyHistogram.Snapshot wait = metrics.histogram("rider.wait.ticks").snapshot();
+        LatencyHistogram.Snapshot pending = pendingStops.snapshot();
+        System.out.println(String.format("%d floors, %d cars, %s: riders: %d delivered: %d assignments: %d "
+                        + "assign p50/p99/p99.9/max: %.1f/%.1f/%.1f/%.1fus pending stops p50/max: %d/%d "
+                        + "wait p50/p99: %d/%d ticks left behind: %d simulated in %dms",
+                floors, cars, policy, riders, manager.delivered(), assign.count(), assign.percentile(0.5) / 1e3,
+                assign.percentile(0.99) / 1e3, assign.percentile(0.999) / 1e3, assign.max() / 1e3, pending.percentile(0.5),
+                pending.max(), wait.percentile(0.5), wait.percentile(0.99), metrics.counter("riders.left.behind").sum(),
+                elapsedNanos / 1_000_000));
+    }
+
+    /**
+     * runs the building for ticks, samples the stops pending after every tick, returns the riders that called
+     */
+    private static long simulate(ElevatorManager manager, int ticks, double ridersPerCarAndTick, LatencyHistogram pendingStops) {
+        int floors = manager.floors();
+        int cars = manager.getCars();
+        Random random = new Random(42);
+        double arrivals = 0;
+        long riders = 0;
+        for (int tick = 0; tick < ticks; tick++) {
+            for (arrivals += cars * ridersPerCarAndTick; arrivals >= 1; arrivals--) {
+                int from;
+                int to;
+                double kind = random.nextDouble();
+                if (kind < 0.33) {
+                    from = 0;
+                    to = 1 + random.nextInt(floors - 1);
+                } else if (kind < 0.66) {
+                    from = 1 + random.nextInt(floors - 1);
+                    to = 0;
+                } else {
+                    from = random.nextInt(floors);
+                    do {
+                        to = random.nextInt(floors);
+                    } while (to == from);
+                }
+                manager.addRequest(from, to);
+                riders++;
             }
+            manager.tick();
+            pendingStops.record(manager.pendingStops());
         }
-    }
-
-}
-
-
-public class ElevatorLLD {
-    public static void main(String[] args) {
-        Elevator elevator = new Elevator();
-
-        ElevatorManager elevatorManager = ElevatorManager.getInstance();
-        elevatorManager.addRequest(elevator, Direction.UP, 3);
-        elevatorManager.addRequest(elevator, Direction.DOWN, 1);
-        elevatorManager.addRequest(elevator, Direction.DOWN, 2);
-        elevatorManager.addRequest(elevator, Direction.UP, 4);
+        return riders;
     }
 }
@@ -0,0 +1,227 @@
+package com.ratedra.elevator;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import com.ratedra.metrics.LatencyHistogram;
+import com.ratedra.metrics.MetricsRegistry;
+
+/**
+ * Dispatches the hall calls of a bank of elevators. a new hall call goes to the car with the lowest estimated
+ * time to serve it, from the car's position, direction, the stops it already committed to and its load. pressing
+ * the button of a call that already has a car joins that call. whichever car first opens its doors at the floor
+ * going the call's direction takes the riders, the car the call was assigned to drops it. riders that don't fit
+ * into a full car call again and get another one, and a car that comes by full hands its call to another car.
+ *
+ * an assignment asks every car for its estimate, which is a few popcounts over the car's stop bitmaps, so it costs
+ * cars x floors / 64 word operations: hundreds of cars and a building of 100+ floors stay in the microseconds no
+ * matter how many calls are pending. floors are numbered lowestFloor to topmostFloor, basements are negative.
+ */
+class ElevatorManager {
+    private final int lowestFloor;
+    private final int topmostFloor;
+    private final Elevator[] cars;
+    // hall call -> car it is assigned to, -1 for none, index floor * 2 for up and floor * 2 + 1 for down
+    private final int[] assignedCar;
+    private final Queue<Rider>[] waiting;
+    private long now;
+    private volatile DispatchPolicy policy = DispatchPolicy.TIME_TO_SERVE;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final LatencyHistogram assignLatency = metrics.histogram("dispatch.assign.latency");
+    private final LatencyHistogram waitTicks = metrics.histogram("rider.wait.ticks");
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ElevatorManager(int lowestFloor, int topmostFloor, int cars, int capacity) {
+        if (topmostFloor <= lowestFloor || cars < 1 || capacity < 1) {
+            throw new RuntimeException("a bank needs two floors, a car and room in it, got floors " + lowestFloor
+                    + " to " + topmostFloor + ", " + cars + " cars of " + capacity);
+        }
+        this.lowestFloor = lowestFloor;
+        this.topmostFloor = topmostFloor;
+        int floors = topmostFloor - lowestFloor + 1;
+        this.cars = new Elevator[cars];
+        for (int id = 0; id < cars; id++) {
+            this.cars[id] = new Elevator(id, floors, capacity);
+        }
+        this.assignedCar = new int[floors * 2];
+        Arrays.fill(assignedCar, -1);
+        this.waiting = new Queue[floors * 2];
+        metrics.gauge("hall.calls.pending", this::pendingHallCalls);
+        metrics.gauge("stops.pending", this::pendingStops);
+    }
+
+    /**
+     * a rider at floor presses the hall button towards destination, returns the car that will come
+     */
+    public synchronized Elevator addRequest(int floor, int destination) {
+        if (floor == destination) {
+            throw new RuntimeException("already at floor " + floor);
+        }
+        int from = index(floor);
+        int to = index(destination);
+        Direction direction = to > from ? Direction.UP : Direction.DOWN;
+        int call = call(from, direction);
+        if (waiting[call] == null) {
+            waiting[call] = new ArrayDeque<>();
+        }
+        waiting[call].add(new Rider(to, now));
+        return cars[assignedCar[call] >= 0 ? assignedCar[call] : assign(from, direction, -1)];
+    }
+
+    /**
+     * advances every car by one tick and lets riders on and off where doors opened
+     */
+    public synchronized void tick() {
+        now++;
+        for (Elevator car : cars) {
+            Direction served = car.tick();
+            for (int i = 0; i < car.bypassedCalls(); i++) {
+                handOff(car, car.bypassedCall(i));
+            }
+            if (served != null && served != Direction.IDLE) {
+                board(car, served);
+            }
+        }
+    }
+
+    public void setDispatchPolicy(DispatchPolicy policy) {
+        this.policy = policy;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    public Elevator getCar(int id) {
+        return cars[id];
+    }
+
+    public int floors() {
+        return topmostFloor - lowestFloor + 1;
+    }
+
+    public int getCars() {
+        return cars.length;
+    }
+
+    /**
+     * building floor of a car
+     */
+    public int floorOf(Elevator car) {
+        return car.getCurrentFloor() + lowestFloor;
+    }
+
+    public synchronized long now() {
+        return now;
+    }
+
+    public synchronized int pendingHallCalls() {
+        int pending = 0;
+        for (int car : assignedCar) {
+            if (car >= 0) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * stops the cars committed to, hall calls and riders' destinations
+     */
+    public synchronized int pendingStops() {
+        int pending = 0;
+        for (Elevator car : cars) {
+            pending += car.pendingStops();
+        }
+        return pending;
+    }
+
+    public synchronized long delivered() {
+        long delivered = 0;
+        for (Elevator car : cars) {
+            delivered += car.getDelivered();
+        }
+        return delivered;
+    }
+
+    /**
+     * gives the call to the car that serves it first, other than car exclude unless it is the only one
+     */
+    private int assign(int floor, Direction direction, int exclude) {
+        long start = System.nanoTime();
+        boolean nearest = policy == DispatchPolicy.NEAREST_CAR;
+        int best = 0;
+        long bestTicks = Long.MAX_VALUE;
+        for (int id = 0; id < cars.length; id++) {
+            if (id == exclude && cars.length > 1) {
+                continue;
+            }
+            long ticks = nearest ? Math.abs(cars[id].getCurrentFloor() - floor) : cars[id].timeToServe(floor, direction);
+            if (ticks < bestTicks) {
+                best = id;
+                bestTicks = ticks;
+            }
+        }
+        cars[best].addHallCall(floor, direction);
+        assignedCar[call(floor, direction)] = best;
+        metrics.counter("hall.calls.assigned").increment();
+        assignLatency.record(System.nanoTime() - start);
+        return best;
+    }
+
+    private void board(Elevator car, Direction direction) {
+        int floor = car.getCurrentFloor();
+        int call = call(floor, direction);
+        int assigned = assignedCar[call];
+        if (assigned >= 0) {
+            cars[assigned].cancelHallCall(floor, direction);
+        }
+        assignedCar[call] = -1;
+        Queue<Rider> riders = waiting[call];
+        if (riders == null) {
+            return;
+        }
+        while (!riders.isEmpty() && car.board(riders.peek().destination)) {
+            waitTicks.record(now - riders.poll().calledAt);
+        }
+        if (!riders.isEmpty()) {
+            // the car is full and passes the call by from now on, the ones left behind press the button again
+            metrics.counter("riders.left.behind").add(riders.size());
+            assign(floor, direction, car.getId());
+        }
+    }
+
+    /**
+     * car came by the call full and dropped it, another car gets it
+     */
+    private void handOff(Elevator car, int call) {
+        if (assignedCar[call] != car.getId()) {
+            return;
+        }
+        metrics.counter("hall.calls.bypassed").increment();
+        assign(call >> 1, (call & 1) == 0 ? Direction.UP : Direction.DOWN, car.getId());
+    }
+
+    private int index(int floor) {
+        if (floor < lowestFloor || floor > topmostFloor) {
+            throw new RuntimeException("no floor " + floor + ", the bank serves " + lowestFloor + " to " + topmostFloor);
+        }
+        return floor - lowestFloor;
+    }
+
+    private static int call(int floor, Direction direction) {
+        return floor * 2 + (direction == Direction.UP ? 0 : 1);
+    }
+
+    private static class Rider {
+        final int destination;
+        final long calledAt;
+
+        Rider(int destination, long calledAt) {
+            this.destination = destination;
+            this.calledAt = calledAt;
+        }
+    }
+}
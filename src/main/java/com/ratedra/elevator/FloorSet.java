@@ -0,0 +1,93 @@
+package com.ratedra.elevator;
+
+/**
+ * Set of floor indexes of one building as a bitmap, one bit per floor.
+ * the questions dispatch asks over and over, how many stops lie between two floors and which stop is the highest
+ * or lowest, are a popcount or a leading zero count over a few words, 128 floors are two longs. no allocation.
+ */
+class FloorSet {
+    private final long[] words;
+    private int size;
+
+    FloorSet(int floors) {
+        this.words = new long[(floors + 63) >>> 6];
+    }
+
+    boolean contains(int floor) {
+        return (words[floor >>> 6] & (1L << floor)) != 0;
+    }
+
+    void add(int floor) {
+        if (!contains(floor)) {
+            words[floor >>> 6] |= 1L << floor;
+            size++;
+        }
+    }
+
+    boolean remove(int floor) {
+        if (!contains(floor)) {
+            return false;
+        }
+        words[floor >>> 6] &= ~(1L << floor);
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * floors in the set from from to to, both inclusive, 0 when from > to
+     */
+    int count(int from, int to) {
+        if (from > to || size == 0) {
+            return 0;
+        }
+        int first = from >>> 6;
+        int last = to >>> 6;
+        // shifts take the low 6 bits, -1L << from keeps bits from % 64 and up
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> (63 - (to & 63));
+        if (first == last) {
+            return Long.bitCount(words[first] & firstMask & lastMask);
+        }
+        int count = Long.bitCount(words[first] & firstMask);
+        for (int i = first + 1; i < last; i++) {
+            count += Long.bitCount(words[i]);
+        }
+        return count + Long.bitCount(words[last] & lastMask);
+    }
+
+    /**
+     * the highest floor in the set, -1 when it is empty
+     */
+    int highest() {
+        if (size > 0) {
+            for (int i = words.length - 1; i >= 0; i--) {
+                if (words[i] != 0) {
+                    return (i << 6) + 63 - Long.numberOfLeadingZeros(words[i]);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * the lowest floor in the set, -1 when it is empty
+     */
+    int lowest() {
+        if (size > 0) {
+            for (int i = 0; i < words.length; i++) {
+                if (words[i] != 0) {
+                    return (i << 6) + Long.numberOfTrailingZeros(words[i]);
+                }
+            }
+        }
+        return -1;
+    }
+}
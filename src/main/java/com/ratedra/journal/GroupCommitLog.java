@@ -0,0 +1,399 @@
+package com.ratedra.journal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of checksummed records with group commit, the write ahead logs of the task scheduler and of the
+ * saga engine are built on it. a single writer thread drains whatever was appended since its last fsync, writes it in
+ * one go and fsyncs once for the whole batch, only then the entries of the batch are durable.
+ *
+ * the log is a sequence of generations prefix-n.log. every generation starts with a checkpoint, the records the
+ * subclass writes for its live state followed by a checkpoint record carrying the next id, and continues with new
+ * records. once the current generation grew past checkpointBytes and past the size of a fresh checkpoint the writer
+ * rolls over to the next generation and deletes the older ones, so recovery reads at most one checkpoint plus
+ * checkpointBytes of log. recovery replays the newest generation with a complete checkpoint, up to the first torn or
+ * corrupt record.
+ *
+ * once a write failed or the log was closed every append throws, and the entries that were appended but never made
+ * it to disk go to lost instead of durable, so nobody waits for them forever.
+ *
+ * record layout: [int payload length][int crc32 of payload][byte type][long id][body]
+ */
+public abstract class GroupCommitLog<E> {
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MAX_BATCH = 8192;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final Path dir;
+    private final String filePrefix;
+    private final String name;
+    private final long checkpointBytes;
+    private final byte checkpointType;
+    private final BlockingQueue<Object> pending = new LinkedBlockingQueue<>();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+    private Thread writer;
+    private long nextId;
+    private long generation;
+    private FileChannel channel;
+    private long generationBytes;
+    private long checkpointSizeBytes;
+    private int recordStart;
+    private volatile boolean closing;
+    private volatile boolean stopped;
+    private volatile IOException failure;
+
+    /**
+     * files are named filePrefix-n.log, name shows up in errors and the writer thread's name. checkpointType is the
+     * record type the subclass leaves to the checkpoint record
+     */
+    protected GroupCommitLog(Path dir, String filePrefix, String name, long checkpointBytes, byte checkpointType) {
+        this.dir = dir;
+        this.filePrefix = filePrefix;
+        this.name = name;
+        this.checkpointBytes = checkpointBytes;
+        this.checkpointType = checkpointType;
+    }
+
+    /**
+     * writes the records of an appended entry, on the writer thread
+     */
+    protected abstract void apply(E entry) throws IOException;
+
+    /**
+     * the entry's records are fsynced, on the writer thread, must not block
+     */
+    protected abstract void durable(E entry);
+
+    /**
+     * the entry never will be durable because the log failed or was closed, on the writer thread. an entry whose
+     * append threw never gets here
+     */
+    protected abstract void lost(E entry, IOException cause);
+
+    /**
+     * writes the records of the live state at the start of a new generation, on the writer thread
+     */
+    protected abstract void checkpoint() throws IOException;
+
+    /**
+     * recovery starts on a generation, forget what replay collected from a newer one that turned out incomplete
+     */
+    protected abstract void replayStarting();
+
+    /**
+     * a record of the generation recovery reads, body starts after the id
+     */
+    protected abstract void replay(byte type, long id, ByteBuffer body);
+
+    /**
+     * recovers the newest generation through replay, starts the next one with a checkpoint and starts the writer.
+     * the subclass calls it at the end of its constructor, once the state replay and checkpoint touch exists
+     */
+    protected final void open() {
+        try {
+            Files.createDirectories(dir);
+            recover();
+            openGeneration(generation + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writer = new Thread(this::run, name.replace(' ', '-') + "-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * first id that is safe to hand out, ids seen in the log are never reused
+     */
+    public long nextId() {
+        return nextId;
+    }
+
+    /**
+     * blocks until everything appended so far is fsynced, or will never be
+     */
+    public void flush() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        enqueue(new Barrier(latch, false));
+        latch.await();
+    }
+
+    /**
+     * syncs what is pending and stops the writer, appends fail from now on
+     */
+    public void close() throws InterruptedException {
+        closing = true;
+        if (writer == null || !writer.isAlive()) {
+            return;
+        }
+        pending.add(new Barrier(null, true));
+        writer.join();
+    }
+
+    protected final void append(E entry) {
+        enqueue(entry);
+    }
+
+    /**
+     * for ids the subclass hands out itself
+     */
+    protected final void seenId(long id) {
+        nextId = Math.max(nextId, id + 1);
+    }
+
+    /**
+     * starts a record, the caller puts exactly bodyBytes into the returned buffer and calls endRecord
+     */
+    protected final ByteBuffer beginRecord(byte type, long id, int bodyBytes) throws IOException {
+        int payloadBytes = 1 + 8 + bodyBytes;
+        if (buffer.remaining() < RECORD_HEADER_BYTES + payloadBytes) {
+            flushBuffer();
+        }
+        recordStart = buffer.position();
+        buffer.putInt(payloadBytes);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putLong(id);
+        return buffer;
+    }
+
+    protected final void endRecord() {
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(recordStart + RECORD_HEADER_BYTES).limit(buffer.position());
+        crc.reset();
+        crc.update(payload);
+        buffer.putInt(recordStart + 4, (int) crc.getValue());
+        generationBytes += buffer.position() - recordStart;
+    }
+
+    /**
+     * reads an [int length][utf-8 bytes] string of a replayed body
+     */
+    protected static String readString(ByteBuffer body) {
+        int bytes = body.getInt();
+        String value = new String(body.array(), body.arrayOffset() + body.position(), bytes, StandardCharsets.UTF_8);
+        body.position(body.position() + bytes);
+        return value;
+    }
+
+    private void enqueue(Object entry) {
+        if (closing || failure != null) {
+            throw rejected();
+        }
+        pending.add(entry);
+        // the writer may have stopped between the check and the add, whoever takes the entry out handles it
+        if (stopped && pending.remove(entry)) {
+            throw rejected();
+        }
+    }
+
+    private UncheckedIOException rejected() {
+        IOException cause = failure;
+        return cause != null
+                ? new UncheckedIOException(name + " failed", cause)
+                : new UncheckedIOException(name + " is closed", new ClosedChannelException());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run() {
+        List<Object> batch = new ArrayList<>(MAX_BATCH);
+        IOException cause = null;
+        boolean stopping = false;
+        try {
+            while (!stopping) {
+                batch.add(pending.take());
+                pending.drainTo(batch, MAX_BATCH - 1);
+                for (Object entry : batch) {
+                    if (entry instanceof Barrier) {
+                        stopping |= ((Barrier) entry).stop;
+                    } else {
+                        apply((E) entry);
+                    }
+                }
+                flushBuffer();
+                channel.force(false);
+                for (Object entry : batch) {
+                    if (entry instanceof Barrier) {
+                        ((Barrier) entry).release();
+                    } else {
+                        try {
+                            durable((E) entry);
+                        } catch (RuntimeException e) {
+                            // the entry is durable all the same, one callback must not take the writer down
+                            System.out.println(name + " callback failed: " + e);
+                        }
+                    }
+                }
+                batch.clear();
+                // only worth it once the log outgrew the checkpoint that replaces it
+                if (generationBytes - checkpointSizeBytes >= checkpointBytes
+                        && generationBytes >= 2 * checkpointSizeBytes) {
+                    openGeneration(generation + 1);
+                }
+            }
+        } catch (InterruptedException e) {
+            cause = new InterruptedIOException(name + " writer was interrupted");
+        } catch (IOException e) {
+            cause = e;
+            System.out.println(name + " failed: " + e.getMessage());
+        } finally {
+            failure = cause;
+            stopped = true;
+            pending.drainTo(batch);
+            IOException lostCause = cause != null ? cause : new ClosedChannelException();
+            for (Object entry : batch) {
+                if (entry instanceof Barrier) {
+                    ((Barrier) entry).release();
+                } else {
+                    lost((E) entry, lostCause);
+                }
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("failed to close " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * starts the next generation with a checkpoint of the live state, the older generations are deleted once it is durable
+     */
+    private void openGeneration(long next) throws IOException {
+        Path path = dir.resolve(filePrefix + "-" + next + ".log");
+        FileChannel nextChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        FileChannel previous = channel;
+        channel = nextChannel;
+        generationBytes = 0;
+        checkpoint();
+        // carries the next id, the ids of finished entries are gone from the checkpoint
+        beginRecord(checkpointType, nextId, 0);
+        endRecord();
+        flushBuffer();
+        channel.force(false);
+        checkpointSizeBytes = generationBytes;
+        generation = next;
+        if (previous != null) {
+            previous.close();
+        }
+        for (Path old : generations()) {
+            if (generationOf(old) != generation) {
+                Files.delete(old);
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void recover() throws IOException {
+        List<Path> generations = generations();
+        for (int i = generations.size() - 1; i >= 0; i--) {
+            replayStarting();
+            if (replay(generations.get(i))) {
+                generation = generationOf(generations.get(i));
+                return;
+            }
+            // a rollover that crashed before its checkpoint was durable, the generation before it is still intact
+        }
+        replayStarting();
+    }
+
+    private boolean replay(Path path) throws IOException {
+        boolean checkpointed = false;
+        CRC32 checksum = new CRC32();
+        byte[] payload = new byte[256];
+        try (InputStream file = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, BUFFER_BYTES))) {
+            while (true) {
+                int payloadBytes = in.readInt();
+                int expectedCrc = in.readInt();
+                if (payloadBytes < 9 || payloadBytes > BUFFER_BYTES) {
+                    break;
+                }
+                if (payload.length < payloadBytes) {
+                    payload = new byte[payloadBytes];
+                }
+                in.readFully(payload, 0, payloadBytes);
+                checksum.reset();
+                checksum.update(payload, 0, payloadBytes);
+                if ((int) checksum.getValue() != expectedCrc) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(payload, 0, payloadBytes);
+                byte type = record.get();
+                long id = record.getLong();
+                if (type == checkpointType) {
+                    checkpointed = true;
+                    nextId = Math.max(nextId, id);
+                } else {
+                    replay(type, id, record);
+                }
+            }
+        } catch (EOFException e) {
+            // torn tail of the last batch, it was never acknowledged
+        }
+        return checkpointed;
+    }
+
+    private List<Path> generations() throws IOException {
+        String pattern = filePrefix + "-\\d+\\.log";
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().matches(pattern))
+                    .sorted(Comparator.comparingLong(this::generationOf))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private long generationOf(Path path) {
+        String fileName = path.getFileName().toString();
+        return Long.parseLong(fileName.substring(filePrefix.length() + 1, fileName.length() - ".log".length()));
+    }
+
+    /**
+     * a flush waiting for the entries before it, or the stop of close
+     */
+    private static class Barrier {
+        private final CountDownLatch latch;
+        private final boolean stop;
+
+        Barrier(CountDownLatch latch, boolean stop) {
+            this.latch = latch;
+            this.stop = stop;
+        }
+
+        void release() {
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package com.ratedra.messagequeue;
 
+import com.ratedra.metrics.LatencyHistogram;
+import com.ratedra.metrics.MetricsRegistry;
+
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 interface ISubscriber{
     String getId();
@@ -16,10 +22,20 @@ interface ISubscriber{
 class Message{
     private String id;
     private String payload;
+    // System.nanoTime() when the message was published, used for publish to consume latency
+    private volatile long publishNanos;
+
+    private final int sizeInBytes;
 
     public Message(String id, String payload) {
         this.id = id;
         this.payload = payload;
+        this.sizeInBytes = id.getBytes(StandardCharsets.UTF_8).length
+                + (payload == null ? 0 : payload.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    public int getSizeInBytes() {
+        return sizeInBytes;
     }
 
     public String getId() {
@@ -29,23 +45,194 @@ class Message{
     public String getPayload() {
         return payload;
     }
+
+    public long getPublishNanos() {
+        return publishNanos;
+    }
+
+    public void setPublishNanos(long publishNanos) {
+        this.publishNanos = publishNanos;
+    }
+}
+
+/**
+ * what a producer gets when the topic is at its bound
+ */
+enum OverflowPolicy{
+    // wait up to the block timeout for subscribers to make room
+    BLOCK,
+    // reject the message right away
+    FAIL_FAST,
+    // evict the oldest messages, subscribers that had not read them skip ahead
+    DROP_OLDEST
 }
 
+/**
+ * messages are kept in a ring and addressed by absolute offset, baseOffset is the offset of the oldest one still held.
+ * a message is reclaimed as soon as every subscriber is past it, so memory tracks the slowest subscriber's lag
+ * and never exceeds maxMessages / maxBytes
+ */
 class Topic{
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+
     private String id;
     private String name;
     private List<TopicSubscriber> subscribers;
-    private List<Message> messages;
+    private Message[] ring;
+    private int head;
+    private int count;
+    private int baseOffset;
+    private long bytes;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private long droppedMessages;
+    // set by the broker on the first publish, not looked up by name per message
+    private volatile LongAdder publishedCounter;
 
-    public synchronized void addMessage(Message message){
-        this.messages.add(message);
+    public Topic(String id, String name) {
+        this(id, name, UNBOUNDED, Long.MAX_VALUE, OverflowPolicy.BLOCK, 0);
     }
 
-    public Topic(String id, String name) {
+    public Topic(String id, String name, int maxMessages, long maxBytes, OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        if(maxMessages < 1 || maxBytes < 1){
+            throw new RuntimeException("topic " + name + " needs room for a message, got max messages " + maxMessages
+                    + " and max bytes " + maxBytes);
+        }
         this.id = id;
         this.name = name;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
         subscribers = new ArrayList<>();
-        messages = new ArrayList<>();
+        ring = new Message[16];
+    }
+
+    public synchronized void addMessage(Message message){
+        if(message.getSizeInBytes() > maxBytes){
+            throw new RuntimeException("message " + message.getId() + " is larger than the byte bound of topic " + name);
+        }
+        long start = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        while(!hasRoomFor(message)){
+            switch (overflowPolicy){
+                case FAIL_FAST:
+                    throw new RuntimeException("topic " + name + " is full");
+                case DROP_OLDEST:
+                    dropOldest();
+                    break;
+                default:
+                    if(subscribers.isEmpty()){
+                        // nobody will ever read and reclaim, waiting can't make room
+                        throw new RuntimeException("topic " + name + " is full and has no subscriber");
+                    }
+                    long remainingNanos = timeoutNanos - (System.nanoTime() - start);
+                    if(remainingNanos <= 0){
+                        throw new RuntimeException("timed out waiting for room in topic " + name);
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+            }
+        }
+        message.setPublishNanos(System.nanoTime());
+        if(count == ring.length){
+            grow();
+        }
+        ring[(head + count) & (ring.length - 1)] = message;
+        count++;
+        bytes += message.getSizeInBytes();
+    }
+
+    private boolean hasRoomFor(Message message){
+        return count < maxMessages && bytes + message.getSizeInBytes() <= maxBytes;
+    }
+
+    private void grow(){
+        Message[] grown = new Message[ring.length * 2];
+        for(int i=0; i<count; i++){
+            grown[i] = ring[(head + i) & (ring.length - 1)];
+        }
+        ring = grown;
+        head = 0;
+    }
+
+    private void dropOldest(){
+        removeHead();
+        droppedMessages++;
+    }
+
+    private void removeHead(){
+        bytes -= ring[head].getSizeInBytes();
+        ring[head] = null;
+        head = (head + 1) & (ring.length - 1);
+        count--;
+        baseOffset++;
+    }
+
+    /**
+     * frees every message all subscribers have read and wakes producers blocked on the bound
+     */
+    public synchronized void reclaim(){
+        if(subscribers.isEmpty()){
+            return;
+        }
+        int minOffset = Integer.MAX_VALUE;
+        for(TopicSubscriber subscriber : subscribers){
+            minOffset = Math.min(minOffset, subscriber.getOffset().get());
+        }
+        boolean reclaimed = false;
+        while(count > 0 && baseOffset < minOffset){
+            removeHead();
+            reclaimed = true;
+        }
+        if(reclaimed){
+            notifyAll();
+        }
+    }
+
+    /**
+     * offset the next published message gets
+     */
+    public synchronized int size(){
+        return baseOffset + count;
+    }
+
+    public synchronized int getBaseOffset(){
+        return baseOffset;
+    }
+
+    /**
+     * null when the message at offset was already dropped
+     */
+    public synchronized Message getMessage(int offset){
+        if(offset < baseOffset){
+            return null;
+        }
+        return ring[(head + offset - baseOffset) & (ring.length - 1)];
+    }
+
+    public synchronized int retainedMessages(){
+        return count;
+    }
+
+    public synchronized long retainedBytes(){
+        return bytes;
+    }
+
+    public synchronized long getDroppedMessages(){
+        return droppedMessages;
+    }
+
+    public synchronized void addSubscriber(TopicSubscriber subscriber){
+        // a late subscriber starts from the oldest message still held
+        subscriber.getOffset().set(baseOffset);
+        subscribers.add(subscriber);
     }
 
     public String getId() {
@@ -64,20 +251,24 @@ class Topic{
         this.name = name;
     }
 
-    public List<TopicSubscriber> getSubscribers() {
-        return subscribers;
+    LongAdder getPublishedCounter() {
+        return publishedCounter;
     }
 
-    public void setSubscribers(List<TopicSubscriber> subscribers) {
-        this.subscribers = subscribers;
+    void setPublishedCounter(LongAdder publishedCounter) {
+        this.publishedCounter = publishedCounter;
     }
 
-    public List<Message> getMessages() {
-        return messages;
+    public synchronized List<TopicSubscriber> getSubscribers() {
+        return new ArrayList<>(subscribers);
     }
 
-    public void setMessages(List<Message> messages) {
-        this.messages = messages;
+    public synchronized List<Message> getMessages() {
+        List<Message> messages = new ArrayList<>(count);
+        for(int i=0; i<count; i++){
+            messages.add(ring[(head + i) & (ring.length - 1)]);
+        }
+        return messages;
     }
 }
 
@@ -113,7 +304,34 @@ class DummySubscriber implements ISubscriber{
 
     @Override
     public void subscribe(Topic t) {
-        t.getSubscribers().add(new TopicSubscriber(this));
+        t.addSubscriber(new TopicSubscriber(this));
+    }
+}
+
+class SlowSubscriber implements ISubscriber{
+    private final String id;
+
+    public SlowSubscriber(String id) {
+        this.id = id;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void consume(Message message) {
+        // a little work per message so producers outrun it
+        long until = System.nanoTime() + 2000;
+        while(System.nanoTime() < until){
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public void subscribe(Topic t) {
+        t.addSubscriber(new TopicSubscriber(this));
     }
 }
 
@@ -121,28 +339,60 @@ class SubscriberWorker implements Runnable{
 
     private Topic topic;
     private TopicSubscriber topicSubscriber;
+    // looked up once, not per message
+    private final LongAdder consumed;
+    private final LongAdder skipped;
+    private final LongAdder failed;
+    private final LatencyHistogram latency;
 
-    public SubscriberWorker(Topic topic,  TopicSubscriber topicSubscriber) {
+    public SubscriberWorker(Topic topic,  TopicSubscriber topicSubscriber, MetricsRegistry metrics) {
         this.topicSubscriber = topicSubscriber;
         this.topic = topic;
+        String metricPrefix = "topic." + topic.getName() + ".subscriber." + topicSubscriber.getSubscriber().getId();
+        this.consumed = metrics.counter(metricPrefix + ".consumed");
+        this.skipped = metrics.counter(metricPrefix + ".skipped");
+        this.failed = metrics.counter(metricPrefix + ".failed");
+        this.latency = metrics.histogram(metricPrefix + ".latency");
     }
 
     @Override
     public void run() {
-        synchronized (topicSubscriber){
-            int currOffset = topicSubscriber.getOffset().get();
-            if(currOffset > this.topic.getMessages().size()){
-                try {
-                    topicSubscriber.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException(e);
+        while(!Thread.currentThread().isInterrupted()){
+            Message message;
+            int currOffset;
+            synchronized (topicSubscriber){
+                currOffset = topicSubscriber.getOffset().get();
+                while(currOffset >= this.topic.size()){
+                    try {
+                        topicSubscriber.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    currOffset = topicSubscriber.getOffset().get();
+                }
+                message = this.topic.getMessage(currOffset);
+                if(message == null){
+                    // evicted by DROP_OLDEST before this subscriber got to it
+                    int baseOffset = this.topic.getBaseOffset();
+                    skipped.add(baseOffset - currOffset);
+                    topicSubscriber.getOffset().compareAndSet(currOffset, baseOffset);
+                    continue;
                 }
             }
-            Message message = this.topic.getMessages().get(currOffset);
-            topicSubscriber.getSubscriber().consume(message);
-
-            topicSubscriber.getOffset().compareAndSet(currOffset, currOffset+1);
+            try {
+                topicSubscriber.getSubscriber().consume(message);
+                consumed.increment();
+            } catch (RuntimeException e) {
+                // the worker has to keep going, producers blocked on the bound wait for it to make room
+                failed.increment();
+            }
+            latency.record(System.nanoTime() - message.getPublishNanos());
+            // only a processed message counts as delivered and can be reclaimed, a resetOffset in between wins
+            synchronized (topicSubscriber){
+                topicSubscriber.getOffset().compareAndSet(currOffset, currOffset+1);
+            }
+            this.topic.reclaim();
         }
     }
 
@@ -155,10 +405,13 @@ class SubscriberWorker implements Runnable{
 
 class Broker{
 
-    private Map<String, SubscriberWorker> workers;
+    // one worker per topic and subscriber, a TopicSubscriber is exactly that pair
+    private Map<TopicSubscriber, SubscriberWorker> workers;
+    private MetricsRegistry metrics;
 
     private Broker(){
         workers = new HashMap<>();
+        metrics = new MetricsRegistry();
     }
 
     private static Broker INSTANCE = null;
@@ -170,21 +423,41 @@ class Broker{
         return INSTANCE;
     }
 
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * blocks, fails or drops according to the topic's overflow policy when the topic is at its bound
+     */
     public void addMessage(Topic topic, Message message){
         topic.addMessage(message);
-        new Thread(() -> publish(topic)).start();
+        LongAdder published = topic.getPublishedCounter();
+        if(published == null){
+            published = metrics.counter("topic." + topic.getName() + ".published");
+            topic.setPublishedCounter(published);
+        }
+        published.increment();
+        // waking the workers is cheap, doing it inline keeps a slow subscriber from piling up producer side threads
+        publish(topic);
     }
 
-    private void publish(Topic t) {
+    private synchronized void publish(Topic t) {
         List<TopicSubscriber> subscribers = t.getSubscribers();
         for(TopicSubscriber topicSubscriber : subscribers){
-            ISubscriber subscriber = topicSubscriber.getSubscriber();
-            if(!workers.containsKey(subscriber.getId())){
-                SubscriberWorker subscriberWorker = new SubscriberWorker(t, topicSubscriber);
-                workers.put(subscriber.getId(), subscriberWorker);
-                new Thread(subscriberWorker).start();
+            SubscriberWorker worker = workers.get(topicSubscriber);
+            if(worker == null){
+                ISubscriber subscriber = topicSubscriber.getSubscriber();
+                SubscriberWorker subscriberWorker = new SubscriberWorker(t, topicSubscriber, metrics);
+                workers.put(topicSubscriber, subscriberWorker);
+                metrics.gauge("topic." + t.getName() + ".subscriber." + subscriber.getId() + ".lag",
+                        () -> t.size() - topicSubscriber.getOffset().get());
+                metrics.gauge("topic." + t.getName() + ".retained.messages", t::retainedMessages);
+                metrics.gauge("topic." + t.getName() + ".retained.bytes", t::retainedBytes);
+                Thread workerThread = new Thread(subscriberWorker);
+                workerThread.setDaemon(true);
+                workerThread.start();
             } else{
-                SubscriberWorker worker = workers.get(subscriber.getId());
                 worker.wakeUp();
             }
         }
@@ -193,7 +466,8 @@ class Broker{
     public void resetOffset(Topic t, ISubscriber subscriber, int offset){
         for (TopicSubscriber topicSubscriber : t.getSubscribers()){
             if(topicSubscriber.getSubscriber().getId() == subscriber.getId()){
-                topicSubscriber.getOffset().set(offset);
+                // messages below the base offset were reclaimed or dropped
+                topicSubscriber.getOffset().set(Math.max(offset, t.getBaseOffset()));
                 publish(t);
             }
         }
@@ -219,5 +493,33 @@ public class MessageQueueLLD {
         broker.addMessage(t1, m1);
         broker.addMessage(t1, m2);
         broker.addMessage(t2, m1);
+
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println(broker.getMetrics().snapshot());
+
+        boundedTopicDemo(broker);
+    }
+
+    private static void boundedTopicDemo(Broker broker){
+        for(OverflowPolicy policy : OverflowPolicy.values()){
+            Topic bounded = new Topic("bounded-" + policy, "bounded-" + policy, 1000, 64 * 1024, policy, 5000);
+            new SlowSubscriber("slow-" + policy).subscribe(bounded);
+            int rejected = 0;
+            long maxRetained = 0;
+            for(int i=0; i<100000; i++){
+                try {
+                    broker.addMessage(bounded, new Message(String.valueOf(i), "payload " + i));
+                } catch (RuntimeException e){
+                    rejected++;
+                }
+                maxRetained = Math.max(maxRetained, bounded.retainedMessages());
+            }
+            System.out.println(String.format("policy: %s rejected: %d dropped: %d max retained: %d retained bytes now: %d",
+                    policy, rejected, bounded.getDroppedMessages(), maxRetained, bounded.retainedBytes()));
+        }
     }
 }
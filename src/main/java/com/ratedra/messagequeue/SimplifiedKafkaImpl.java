@@ -1,29 +1,347 @@
 package com.ratedra.messagequeue;
 
+import com.ratedra.metrics.LatencyHistogram;
+import com.ratedra.metrics.MetricsRegistry;
+import com.ratedra.thread.VirtualThreadExecutor;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * Topic - topic has partitions
  * Partition - partition has messages
  * ConsumerGroup - ConsumerGroup has consumers
- * Consumer - Consumer has partition associated with it and offset
+ * Consumer - Consumer polls the partitions assigned to it and tracks a position per partition
  * Topics should have list of consumerGroups associated with
- * consumers in a CG should be less than or equal to partitions in a topic
+ * consumers in a CG can join and leave at any time, partitions are rebalanced across the members,
+ * members beyond the partition count stay idle
+ * Partitioner - decides the partition of a message, pluggable per topic
+ * OffsetsLog - compacted log of committed offsets per group and partition
+ * PartitionLog - optional on disk log of a partition, a list of LogSegment files
+ * FetchServer - serves partition ranges over loopback straight from the segment files
+ * LogCleaner - compacts the sealed segments of compacted topics down to the latest record per key
+ * MetricsRegistry - publish and consume rates per topic, partition and group, lag per group and partition,
+ * publish to consume latency per group
+ * KafkaCluster - N in process brokers, every partition has a leader and followers that replicate by fetching,
+ * the leader tracks the in sync replicas and the high watermark, producers choose acks 0, 1 or all
  */
 public class SimplifiedKafkaImpl {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        partitionerDemo();
+        consumerGroupDemo();
+        fetchDemo();
+        compactionDemo();
+        replicationDemo();
+        virtualThreadConsumersDemo();
+    }
+
+    /**
+     * thousands of consumer groups, each consumer blocks in its long poll, on virtual threads none of them holds an os thread
+     */
+    private static void virtualThreadConsumersDemo() throws InterruptedException {
+        SimplifiedKafkaImpl kafka = new SimplifiedKafkaImpl();
+        KafkaBroker broker = kafka.new KafkaBroker();
+        broker.useVirtualThreads(10_000);
+        broker.addTopic("events", 1);
+        int groups = 2000;
+        int messages = 100;
+        LongAdder processed = new LongAdder();
+        for (int g = 0; g < groups; g++) {
+            broker.startConsumer("events", "group-" + g, "consumer-" + g, message -> processed.increment());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            broker.publishMessage("events", kafka.new Message(i, "event " + i));
+        }
+        while (processed.sum() < (long) groups * messages && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30)) {
+            Thread.sleep(10);
+        }
+        System.out.println(String.format("virtual threads: %s consumers: %d delivered: %d in %.0fms platform threads: %d",
+                VirtualThreadExecutor.isSupported(), groups, processed.sum(), (System.nanoTime() - start) / 1e6, Thread.activeCount()));
+        broker.shutdown();
+    }
+
+    private static void partitionerDemo() {
+        SimplifiedKafkaImpl kafka = new SimplifiedKafkaImpl();
+        KafkaBroker broker = kafka.new KafkaBroker();
+
+        broker.addTopic("orders", 4, kafka.new HashPartitioner(kafka.new StickyPartitioner(16)));
+        broker.addTopic("clicks", 4, kafka.new StickyPartitioner(16));
+        broker.addTopic("jobs", 4, kafka.new LoadAwarePartitioner());
+        broker.addConsumerGroup("jobs", "workers");
+
+        for (int i = 0; i < 1000; i++) {
+            // skewed ids, every id is a multiple of 4 and would land on partition 0 with id % partitions
+            int id = i * 4;
+            broker.publishMessage("orders", kafka.new Message(id, "customer-" + (i % 10), "order " + id));
+            broker.publishMessage("clicks", kafka.new Message(id, "click " + id));
+            broker.publishMessage("jobs", kafka.new Message(id, "job " + id));
+        }
+
+        broker.printIngestStats("orders");
+        broker.printIngestStats("clicks");
+        broker.printIngestStats("jobs");
+    }
+
+    private static void consumerGroupDemo() throws InterruptedException {
+        SimplifiedKafkaImpl kafka = new SimplifiedKafkaImpl();
+        KafkaBroker broker = kafka.new KafkaBroker();
+        broker.addTopic("payments", 6);
+        broker.addConsumerGroup("payments", "ledger", kafka.new CooperativeStickyAssignor());
+
+        int totalMessages = 3000;
+        AtomicInteger processed = new AtomicInteger();
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        MessageHandler handler = message -> {
+            processed.incrementAndGet();
+            if (!seen.add(message.id)) {
+                duplicates.incrementAndGet();
+            }
+        };
+
+        Consumer first = broker.startConsumer("payments", "ledger", "c1", handler);
+        Thread producer = new Thread(() -> {
+            for (int id = 0; id < totalMessages; id++) {
+                broker.publishMessage("payments", kafka.new Message(id, "account-" + (id % 50), "payment " + id));
+                if (id % 500 == 0) {
+                    sleep(20);
+                }
+            }
+        });
+        producer.start();
+
+        Thread.sleep(30);
+        Consumer second = broker.startConsumer("payments", "ledger", "c2", handler);
+        Thread.sleep(30);
+        broker.startConsumer("payments", "ledger", "c3", handler);
+        Thread.sleep(30);
+        broker.stopConsumer(first);
+        Thread.sleep(30);
+        broker.stopConsumer(second);
+        producer.join();
+
+        while (processed.get() < totalMessages) {
+            Thread.sleep(10);
+        }
+        System.out.println(String.format("processed: %d duplicates: %d offsets log records: %d",
+                processed.get(), duplicates.get(), broker.offsetsLog.size()));
+        System.out.println(broker.metrics.snapshot());
+        broker.shutdown();
+    }
+
+    private static void fetchDemo() throws InterruptedException {
+        SimplifiedKafkaImpl kafka = new SimplifiedKafkaImpl();
+        Path logDir;
+        try {
+            logDir = Files.createTempDirectory("kafka-logs");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        KafkaBroker broker = kafka.new KafkaBroker(logDir, 64 * 1024);
+        broker.addTopic("events", 1);
+        int port = broker.startFetchServer(0);
+
+        int totalMessages = 20000;
+        Thread remoteConsumer = new Thread(() -> {
+            try (FetchClient client = kafka.new FetchClient(port)) {
+                long offset = 0;
+                int fetches = 0;
+                while (offset < totalMessages) {
+                    List<Message> batch = client.fetch("events", 0, offset, 256 * 1024, 500, 16 * 1024);
+                    if (!batch.isEmpty()) {
+                        offset = batch.get(batch.size() - 1).offset + 1;
+                    }
+                    fetches++;
+                }
+                System.out.println(String.format("remote consumer read %d messages in %d fetches", offset, fetches));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        remoteConsumer.start();
+
+        for (int id = 0; id < totalMessages; id++) {
+            broker.publishMessage("events", kafka.new Message(id, "event payload " + id));
+            if (id % 5000 == 0) {
+                sleep(100);
+            }
+        }
+        remoteConsumer.join();
+        System.out.println("segments on disk: " + broker.topics.get("events").partitions.get(0).log.segments.size());
+        broker.shutdown();
+    }
+
+    private static void compactionDemo() throws InterruptedException {
+        SimplifiedKafkaImpl kafka = new SimplifiedKafkaImpl();
+        Path logDir;
+        try {
+            logDir = Files.createTempDirectory("kafka-compacted-logs");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        KafkaBroker broker = kafka.new KafkaBroker(logDir, 16 * 1024);
+        broker.addCompactedTopic("profiles", 1);
+        Partition partition = broker.topics.get("profiles").partitions.get(0);
+
+        int keys = 200;
+        for (int id = 0; id < 50000; id++) {
+            String key = "user-" + (id % keys);
+            // every tenth user deletes the profile at the end
+            String data = id >= 50000 - keys && id % 10 == 0 ? null : "profile version " + id;
+            broker.publishMessage("profiles", kafka.new Message(id, key, data));
+        }
+        // roll the active segment so everything above is eligible for cleaning
+        broker.publishMessage("profiles", kafka.new Message(-1, "user-0", "latest"));
+        System.out.println(String.format("before cleaning bytes on disk: %d messages in memory: %d",
+                partition.log.availableBytes(0), partition.read(0, Integer.MAX_VALUE).size()));
+
+        broker.startLogCleaner(16 * 1024, 32 * 1024 * 1024, 0, 50);
+        Thread.sleep(1000);
+        System.out.println(String.format("after cleaning bytes on disk: %d messages in memory: %d",
+                partition.log.availableBytes(0), partition.read(0, Integer.MAX_VALUE).size()));
+        broker.shutdown();
+    }
+
+    private static void replicationDemo() throws InterruptedException {
+        SimplifiedKafkaImpl kafka = new SimplifiedKafkaImpl();
+        KafkaCluster cluster = kafka.new KafkaCluster(3, 200);
+        cluster.createTopic("trades", 6, 3, 2);
+
+        int producers = 8;
+        int messagesPerProducer = 5000;
+        for (Acks acks : Acks.values()) {
+            long[] latencies = new long[producers * messagesPerProducer];
+            Thread[] producerThreads = new Thread[producers];
+            long start = System.nanoTime();
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                producerThreads[p] = new Thread(() -> {
+                    for (int i = 0; i < messagesPerProducer; i++) {
+                        int id = producer * messagesPerProducer + i;
+                        long sent = System.nanoTime();
+                        try {
+                            cluster.publish("trades", kafka.new Message(id, "trade " + id), acks).get();
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                        latencies[id] = System.nanoTime() - sent;
+                    }
+                });
+                producerThreads[p].start();
+            }
+            for (Thread producerThread : producerThreads) {
+                producerThread.join();
+            }
+            long elapsedNanos = System.nanoTime() - start;
+            Arrays.sort(latencies);
+            System.out.println(String.format("acks=%s throughput: %.0f msg/s p50: %dus p99: %dus", acks.name().toLowerCase(),
+                    latencies.length * 1e9 / elapsedNanos, latencies[latencies.length / 2] / 1000,
+                    latencies[(int) (latencies.length * 0.99)] / 1000));
+        }
+
+        PartitionReplicas replicas = cluster.replicasOf("trades", 0);
+        long committedBefore = replicas.highWatermark();
+        int oldLeader = replicas.leaderId;
+        cluster.killBroker(oldLeader);
+        System.out.println(String.format("killed broker %d, partition trades-0 leader: %d epoch: %d isr: %s",
+                oldLeader, replicas.leaderId, replicas.leaderEpoch, replicas.isr()));
+        for (int id = 0; id < 100; id++) {
+            try {
+                cluster.publish("trades", kafka.new Message(id, "after failover " + id), Acks.ALL).get();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        System.out.println(String.format("committed before failover: %d, readable from new leader: %d",
+                committedBefore, cluster.fetch("trades", 0, 0, Integer.MAX_VALUE).size()));
+        cluster.shutdown();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Picks the partition a message is appended to.
+     * Implementations are called concurrently by producers and must be thread safe.
+     */
+    interface Partitioner{
+        int partition(Topic topic, Message message);
+    }
+
+    /**
+     * Maps the members of a consumer group to the partitions they own.
+     * currentAssignment holds what every member owns before the rebalance.
+     */
+    interface PartitionAssignor{
+        Map<String, List<Partition>> assign(List<String> memberIds, List<Partition> partitions,
+                                            Map<String, List<Partition>> currentAssignment);
+
+        /**
+         * cooperative assignors only revoke the partitions that move, eager ones revoke everything first
+         */
+        default boolean isCooperative(){
+            return false;
+        }
+    }
 
+    interface MessageHandler{
+        void handle(Message message);
+    }
+
+    enum Acks{
+        // fire and forget, the producer does not wait for the leader
+        NONE,
+        // acknowledged once the leader has appended
+        LEADER,
+        // acknowledged once every in sync replica has the message, i.e. the high watermark passed it
+        ALL
     }
 
     @Getter
@@ -32,25 +350,79 @@ public class SimplifiedKafkaImpl {
         private static final int DEFAULT_PARTITIONS = 1;
 
         private String name;
+        // keeps only the latest record per key, tombstones (null data) delete the key
+        private boolean compacted;
+        private LongAdder publishedCounter;
         private List<Partition> partitions;
         private List<ConsumerGroup> consumerGroups;
         private int totalPartitionsCount = DEFAULT_PARTITIONS;
+        private Partitioner partitioner;
+
+        public Topic(String name, int totalPartitionsCount, Partitioner partitioner) {
+            this(name, totalPartitionsCount, partitioner, null, 0);
+        }
 
-        public Topic(String name, int totalPartitionsCount) {
+        /**
+         * with a logDir every partition also writes its messages to segment files of up to segmentBytes
+         */
+        public Topic(String name, int totalPartitionsCount, Partitioner partitioner, Path logDir, int segmentBytes) {
             this.totalPartitionsCount = totalPartitionsCount;
             this.name = name;
+            this.partitioner = partitioner;
             this.partitions = new ArrayList<>();
             this.consumerGroups = new ArrayList<>();
             for(int partition=0; partition<totalPartitionsCount; partition++){
-                Partition createdPartition = new Partition(name + "-" + partition);
+                String partitionName = name + "-" + partition;
+                PartitionLog log = logDir == null ? null : new PartitionLog(logDir.resolve(partitionName), segmentBytes);
+                Partition createdPartition = new Partition(partitionName, this, log);
                 partitions.add(createdPartition);
             }
         }
 
+        // a lock rather than a monitor, a virtual thread waiting on a monitor pins its carrier thread
+        private final Lock newDataLock = new ReentrantLock();
+        private final Condition newData = newDataLock.newCondition();
+        // bumped on every append, a reader takes it before looking and only waits while it has not moved
+        private long dataVersion;
+
         public List<Partition> getPartitions() {
             return partitions;
         }
 
+        void signalNewData(){
+            newDataLock.lock();
+            try {
+                dataVersion++;
+                newData.signalAll();
+            } finally {
+                newDataLock.unlock();
+            }
+        }
+
+        long dataVersion(){
+            newDataLock.lock();
+            try {
+                return dataVersion;
+            } finally {
+                newDataLock.unlock();
+            }
+        }
+
+        /**
+         * waits until something was appended after dataVersion() returned version, or the timeout passed
+         */
+        void awaitNewData(long version, long timeoutMillis) throws InterruptedException {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            newDataLock.lock();
+            try {
+                while(dataVersion == version && remainingNanos > 0){
+                    remainingNanos = newData.awaitNanos(remainingNanos);
+                }
+            } finally {
+                newDataLock.unlock();
+            }
+        }
+
         public void setPartitions(List<Partition> partitions) {
             this.partitions = partitions;
         }
@@ -60,34 +432,247 @@ public class SimplifiedKafkaImpl {
     @Setter
     class Partition{
         private String name;
+        private Topic topic;
         private List<Message> messages;
+        private PartitionLog log;
+        private long nextOffset;
+        private final AtomicLong ingestedMessages = new AtomicLong();
+        private final AtomicLong ingestedBytes = new AtomicLong();
+        private LongAdder publishedCounter;
 
-        public Partition(String name) {
+        public Partition(String name, Topic topic, PartitionLog log) {
             this.name = name;
+            this.topic = topic;
+            this.log = log;
             this.messages = new ArrayList<>();
         }
+
+        public void append(Message message){
+            message.publishNanos = System.nanoTime();
+            synchronized (this) {
+                message.offset = nextOffset++;
+                message.timestamp = System.currentTimeMillis();
+                messages.add(message);
+                if(log != null){
+                    log.append(message);
+                }
+            }
+            ingestedMessages.incrementAndGet();
+            ingestedBytes.addAndGet(message.sizeInBytes());
+            topic.signalNewData();
+        }
+
+        public synchronized long logEndOffset(){
+            return nextOffset;
+        }
+
+        /**
+         * follower side of replication, keeps the offset and timestamp the leader assigned
+         */
+        public void appendReplica(Message message){
+            synchronized (this) {
+                if(message.offset != nextOffset){
+                    throw new RuntimeException(String.format("replica %s expected offset %d but got %d", name, nextOffset, message.offset));
+                }
+                nextOffset = message.offset + 1;
+                messages.add(message);
+                if(log != null){
+                    log.append(message);
+                }
+            }
+            ingestedMessages.incrementAndGet();
+            ingestedBytes.addAndGet(message.sizeInBytes());
+            topic.signalNewData();
+        }
+
+        /**
+         * drops everything from offset onwards, used when a follower falls back to the high watermark on leader change
+         */
+        public synchronized void truncateTo(long offset){
+            if(log != null){
+                throw new RuntimeException("truncation is only supported for in memory partitions");
+            }
+            messages = new ArrayList<>(messages.subList(0, indexOf(offset)));
+            nextOffset = Math.min(nextOffset, offset);
+        }
+
+        /**
+         * drops the in memory messages below cleanedUpTo that the cleaner removed from disk
+         */
+        synchronized void retainCleaned(long cleanedUpTo, Predicate<Message> retain){
+            List<Message> retained = new ArrayList<>(messages.size());
+            for(Message message : messages){
+                if(message.offset >= cleanedUpTo || retain.test(message)){
+                    retained.add(message);
+                }
+            }
+            messages = retained;
+        }
+
+        /**
+         * up to maxRecords messages starting at the first offset greater than or equal to fromOffset
+         */
+        public synchronized List<Message> read(long fromOffset, int maxRecords){
+            int from = indexOf(fromOffset);
+            int to = (int) Math.min(messages.size(), (long) from + maxRecords);
+            return from >= to ? Collections.emptyList() : new ArrayList<>(messages.subList(from, to));
+        }
+
+        // offsets are increasing but not necessarily dense, so look them up instead of using them as index
+        private int indexOf(long offset){
+            int low = 0;
+            int high = messages.size();
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(messages.get(mid).offset < offset){
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * messages appended to this partition that the slowest consumer group has not committed yet
+         */
+        public long backlog(){
+            long logEndOffset = logEndOffset();
+            long backlog = 0;
+            for(ConsumerGroup consumerGroup : topic.consumerGroups){
+                backlog = Math.max(backlog, logEndOffset - consumerGroup.committedOffset(this));
+            }
+            return backlog;
+        }
     }
 
     @Getter
     @Setter
     class Message{
         private int id;
+        private long offset = -1;
+        private long timestamp;
+        // System.nanoTime() on append, only meaningful inside this process
+        private long publishNanos;
+        private String key;
         private String data;
 
         public Message(int id, String data) {
+            this(id, null, data);
+        }
+
+        public Message(int id, String key, String data) {
             this.id = id;
+            this.key = key;
             this.data = data;
         }
 
+        public int sizeInBytes(){
+            int size = data == null ? 0 : data.getBytes(StandardCharsets.UTF_8).length;
+            return key == null ? size : size + key.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        Message copy(){
+            Message copy = new Message(id, key, data);
+            copy.offset = offset;
+            copy.timestamp = timestamp;
+            copy.publishNanos = publishNanos;
+            return copy;
+        }
+
         @Override
         public String toString() {
             return "Message{" +
                     "id=" + id +
+                    ", offset=" + offset +
+                    ", key='" + key + '\'' +
                     ", data='" + data + '\'' +
                     '}';
         }
     }
 
+    /**
+     * murmur2 over the message key, so every message of a key lands on the same partition and stays ordered.
+     * messages without a key are handed to the unkeyed partitioner
+     */
+    class HashPartitioner implements Partitioner{
+        private final Partitioner unkeyedPartitioner;
+
+        public HashPartitioner(Partitioner unkeyedPartitioner) {
+            this.unkeyedPartitioner = unkeyedPartitioner;
+        }
+
+        @Override
+        public int partition(Topic topic, Message message) {
+            if(message.key == null){
+                return unkeyedPartitioner.partition(topic, message);
+            }
+            byte[] keyBytes = message.key.getBytes(StandardCharsets.UTF_8);
+            return (murmur2(keyBytes) & 0x7fffffff) % topic.totalPartitionsCount;
+        }
+    }
+
+    /**
+     * keeps sending unkeyed messages to one partition until a batch of batchSize is filled,
+     * then sticks to another randomly chosen partition
+     */
+    class StickyPartitioner implements Partitioner{
+        private final int batchSize;
+        private final Map<String, StickyBatch> batchByTopic = new ConcurrentHashMap<>();
+
+        public StickyPartitioner(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public int partition(Topic topic, Message message) {
+            StickyBatch batch = batchByTopic.computeIfAbsent(topic.name, name -> new StickyBatch());
+            synchronized (batch){
+                if(batch.partition < 0 || batch.count >= batchSize){
+                    batch.partition = nextPartition(batch.partition, topic.totalPartitionsCount);
+                    batch.count = 0;
+                }
+                batch.count++;
+                return batch.partition;
+            }
+        }
+
+        private int nextPartition(int previous, int totalPartitionsCount){
+            if(totalPartitionsCount == 1){
+                return 0;
+            }
+            int next = ThreadLocalRandom.current().nextInt(totalPartitionsCount - 1);
+            // skip over the previous partition so a new batch always moves
+            return previous >= 0 && next >= previous ? next + 1 : next;
+        }
+    }
+
+    class StickyBatch{
+        int partition = -1;
+        int count;
+    }
+
+    /**
+     * power of two choices - samples two partitions and picks the one with the smaller consumer backlog.
+     * keyed messages still go through the hash so ordering per key is not broken
+     */
+    class LoadAwarePartitioner implements Partitioner{
+        private final Partitioner keyedPartitioner = new HashPartitioner(this);
+
+        @Override
+        public int partition(Topic topic, Message message) {
+            if(message.key != null){
+                return keyedPartitioner.partition(topic, message);
+            }
+            int totalPartitionsCount = topic.totalPartitionsCount;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(totalPartitionsCount);
+            int second = random.nextInt(totalPartitionsCount);
+            List<Partition> partitions = topic.partitions;
+            return partitions.get(first).backlog() <= partitions.get(second).backlog() ? first : second;
+        }
+    }
+
     @Getter
     @Setter
     class ConsumerGroup{
@@ -95,18 +680,75 @@ public class SimplifiedKafkaImpl {
         private String name;
         private Topic topic;
         private List<Consumer> consumers;
+        private PartitionAssignor assignor;
+        private OffsetsLog offsetsLog;
+        private MetricsRegistry metrics;
+        private volatile int generation;
 
-        public ConsumerGroup(String name, Topic topic) {
+        public ConsumerGroup(String name, Topic topic, PartitionAssignor assignor, OffsetsLog offsetsLog, MetricsRegistry metrics) {
             this.name = name;
             this.topic = topic;
+            this.assignor = assignor;
+            this.offsetsLog = offsetsLog;
+            this.metrics = metrics;
             consumers = new ArrayList<>();
-            initConsumers();
+            metrics.gauge("group." + name + ".generation", () -> generation);
+            for(Partition partition : topic.partitions){
+                metrics.gauge("group." + name + ".partition." + partition.name + ".lag",
+                        () -> partition.logEndOffset() - committedOffset(partition));
+            }
         }
 
-        private void initConsumers(){
-            List<Partition> partitions = this.topic.partitions;
-            for(Partition partition : partitions){
-                consumers.add(new Consumer(partition.name, this.name, partition, 0));
+        public synchronized void join(Consumer consumer){
+            consumers.add(consumer);
+            rebalance();
+        }
+
+        public synchronized void leave(Consumer consumer){
+            if(consumers.remove(consumer)){
+                consumer.revoke(consumer.assignedPartitions());
+                rebalance();
+            }
+        }
+
+        public long committedOffset(Partition partition){
+            return offsetsLog.committed(name, partition.name);
+        }
+
+        public void commit(Partition partition, long offset){
+            offsetsLog.commit(name, partition.name, offset);
+        }
+
+        private void rebalance(){
+            generation++;
+            if(consumers.isEmpty()){
+                consumerByPartition.clear();
+                return;
+            }
+            List<String> memberIds = new ArrayList<>();
+            Map<String, List<Partition>> currentAssignment = new HashMap<>();
+            for(Consumer consumer : consumers){
+                memberIds.add(consumer.id);
+                currentAssignment.put(consumer.id, consumer.assignedPartitions());
+            }
+            Collections.sort(memberIds);
+            Map<String, List<Partition>> assignment = assignor.assign(memberIds, topic.partitions, currentAssignment);
+
+            // everything that moves is revoked and committed before any member picks it up
+            for(Consumer consumer : consumers){
+                List<Partition> revoked = consumer.assignedPartitions();
+                if(assignor.isCooperative()){
+                    revoked.removeAll(assignment.get(consumer.id));
+                }
+                consumer.revoke(revoked);
+            }
+            consumerByPartition.clear();
+            for(Consumer consumer : consumers){
+                List<Partition> owned = assignment.get(consumer.id);
+                consumer.assign(owned);
+                for(Partition partition : owned){
+                    consumerByPartition.put(partition.name, consumer);
+                }
             }
         }
     }
@@ -116,81 +758,1677 @@ public class SimplifiedKafkaImpl {
     class Consumer{
         private String id;
         private String groupName;
-        private Partition partition;
-        private int offset;
+        private ConsumerGroup group;
+        private Map<Partition, Long> positions = new LinkedHashMap<>();
+        private final AtomicBoolean running = new AtomicBoolean(true);
+        private final Map<Partition, LongAdder> consumedCounters = new HashMap<>();
+        private int nextPartitionIdx;
 
-        public Consumer(String id, String groupName, Partition partition, int offset) {
+        public Consumer(String id, ConsumerGroup group) {
             this.id = "consumer-"+id;
-            this.groupName = groupName;
-            this.partition = partition;
-            this.offset = offset;
+            this.groupName = group.name;
+            this.group = group;
+        }
+
+        /**
+         * returns as soon as any assigned partition has messages, or empty once timeoutMillis has passed
+         */
+        public List<Message> poll(int maxRecords, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while(true){
+                long version = group.topic.dataVersion();
+                List<Message> records = fetch(maxRecords);
+                long remaining = deadline - System.currentTimeMillis();
+                if(!records.isEmpty() || remaining <= 0 || !running.get()){
+                    return records;
+                }
+                group.topic.awaitNewData(version, remaining);
+            }
+        }
+
+        private synchronized List<Message> fetch(int maxRecords){
+            List<Message> records = new ArrayList<>();
+            List<Partition> partitions = new ArrayList<>(positions.keySet());
+            // rotate the starting partition so one busy partition does not starve the others
+            for(int i=0; i<partitions.size() && records.size() < maxRecords; i++){
+                Partition partition = partitions.get((nextPartitionIdx + i) % partitions.size());
+                List<Message> fetched = partition.read(positions.get(partition), maxRecords - records.size());
+                if(!fetched.isEmpty()){
+                    consumedCounters.computeIfAbsent(partition, p -> group.metrics.counter(
+                            "group." + groupName + ".partition." + p.name + ".consumed")).add(fetched.size());
+                    positions.put(partition, fetched.get(fetched.size() - 1).offset + 1);
+                    records.addAll(fetched);
+                }
+            }
+            nextPartitionIdx++;
+            return records;
+        }
+
+        public synchronized void commitSync(){
+            positions.forEach(group::commit);
+        }
+
+        synchronized List<Partition> assignedPartitions(){
+            return new ArrayList<>(positions.keySet());
+        }
+
+        synchronized void revoke(List<Partition> partitions){
+            for(Partition partition : partitions){
+                Long position = positions.remove(partition);
+                if(position != null){
+                    group.commit(partition, position);
+                }
+            }
+        }
+
+        synchronized void assign(List<Partition> partitions){
+            for(Partition partition : partitions){
+                if(!positions.containsKey(partition)){
+                    positions.put(partition, group.committedOffset(partition));
+                }
+            }
+        }
+
+        public void run(MessageHandler handler){
+            LatencyHistogram latency = group.metrics.histogram("group." + groupName + ".topic." + group.topic.name + ".latency");
+            while(running.get()){
+                try {
+                    List<Message> records = poll(DEFAULT_MAX_POLL_RECORDS, DEFAULT_POLL_TIMEOUT_MILLIS);
+                    for(Message message : records){
+                        handler.handle(message);
+                        latency.record(System.nanoTime() - message.publishNanos);
+                    }
+                    commitSync();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
 
         public void consume(){
-            List<Message> messages = partition.messages;
-            List<Message> fromOffset = messages.subList(offset, messages.size());
-            System.out.println(String.format("Consumer: %s started consuming from offset: %s for partition: %s", this.id, this.offset, this.partition.name));
-            for (Message message : fromOffset){
+            List<Message> records = fetch(Integer.MAX_VALUE);
+            System.out.println(String.format("Consumer: %s read %d messages from partitions: %s", this.id, records.size(), positions.keySet().size()));
+            for (Message message : records){
                 System.out.println("read message: " + message.toString());
-                this.offset+=1;
             }
+            commitSync();
+        }
+
+        void close(){
+            running.set(false);
+            group.topic.signalNewData();
         }
     }
 
-    class KafkaBroker{
-        Map<String, Topic> topics = new HashMap<>();
-        Lock topicCreationLock = new ReentrantLock();
-        ExecutorService consumerGroupExecutor = Executors.newFixedThreadPool(2);
-        ExecutorService consumerExecutor = Executors.newFixedThreadPool(2);
+    private static final int DEFAULT_MAX_POLL_RECORDS = 500;
+    private static final long DEFAULT_POLL_TIMEOUT_MILLIS = 100;
 
-        void addTopic(String name, int partitions){
-            try {
-                topicCreationLock.lock();
-                if (topics.containsKey(name)) {
-                    throw new RuntimeException("topic with name already exists, try giving some other name")
+    /**
+     * contiguous ranges of partitions per member, the first members get one extra when it does not divide evenly
+     */
+    class RangeAssignor implements PartitionAssignor{
+        @Override
+        public Map<String, List<Partition>> assign(List<String> memberIds, List<Partition> partitions,
+                                                   Map<String, List<Partition>> currentAssignment) {
+            Map<String, List<Partition>> assignment = emptyAssignment(memberIds);
+            int perMember = partitions.size() / memberIds.size();
+            int withExtra = partitions.size() % memberIds.size();
+            int partitionIdx = 0;
+            for(int memberIdx=0; memberIdx<memberIds.size(); memberIdx++){
+                int count = perMember + (memberIdx < withExtra ? 1 : 0);
+                for(int i=0; i<count; i++){
+                    assignment.get(memberIds.get(memberIdx)).add(partitions.get(partitionIdx++));
                 }
-                Topic topic = new Topic(name, partitions);
-                topics.put(name, topic);
-            } catch (Exception exception){
-                topicCreationLock.unlock();
-                throw exception;
-            } finally {
-                topicCreationLock.unlock();
             }
+            return assignment;
         }
+    }
 
-        void addConsumerGroup(String tName, String gName){
-            Topic topic = topics.get(tName);
-            ConsumerGroup consumerGroup = new ConsumerGroup(gName, topic);
-            topic.consumerGroups.add(consumerGroup);
+    class RoundRobinAssignor implements PartitionAssignor{
+        @Override
+        public Map<String, List<Partition>> assign(List<String> memberIds, List<Partition> partitions,
+                                                   Map<String, List<Partition>> currentAssignment) {
+            Map<String, List<Partition>> assignment = emptyAssignment(memberIds);
+            for(int partitionIdx=0; partitionIdx<partitions.size(); partitionIdx++){
+                assignment.get(memberIds.get(partitionIdx % memberIds.size())).add(partitions.get(partitionIdx));
+            }
+            return assignment;
         }
+    }
 
-        void publishMessage(String topicName, Message message){
-            // get all partitions from the topicName
-            // get the partition from the message
+    /**
+     * balanced like round robin, but members keep as many of the partitions they already own as their quota allows,
+     * so a rebalance only moves the partitions it has to
+     */
+    class CooperativeStickyAssignor implements PartitionAssignor{
+        @Override
+        public Map<String, List<Partition>> assign(List<String> memberIds, List<Partition> partitions,
+                                                   Map<String, List<Partition>> currentAssignment) {
+            Map<String, List<Partition>> assignment = emptyAssignment(memberIds);
+            int minQuota = partitions.size() / memberIds.size();
+            int membersWithExtra = partitions.size() % memberIds.size();
+            Set<Partition> unassigned = new HashSet<>(partitions);
 
-            Topic topic = topics.get(topicName);
-            List<Partition> partitions = topic.partitions;
-            int totalPartitionsCount = topic.totalPartitionsCount;
+            List<String> byOwnedDesc = new ArrayList<>(memberIds);
+            byOwnedDesc.sort((m1, m2) -> Integer.compare(owned(currentAssignment, m2).size(), owned(currentAssignment, m1).size()));
+            for(String memberId : byOwnedDesc){
+                List<Partition> owned = owned(currentAssignment, memberId);
+                int quota = minQuota;
+                if(owned.size() > minQuota && membersWithExtra > 0){
+                    quota++;
+                    membersWithExtra--;
+                }
+                for(Partition partition : owned){
+                    if(assignment.get(memberId).size() < quota && unassigned.remove(partition)){
+                        assignment.get(memberId).add(partition);
+                    }
+                }
+            }
 
-            int partitionIdx = message.id % totalPartitionsCount;
-            partitions.get(partitionIdx).messages.add(message);
+            for(Partition partition : partitions){
+                if(!unassigned.contains(partition)){
+                    continue;
+                }
+                String target = null;
+                for(String memberId : memberIds){
+                    int size = assignment.get(memberId).size();
+                    if(target == null || size < assignment.get(target).size()){
+                        target = memberId;
+                    }
+                }
+                if(assignment.get(target).size() >= minQuota){
+                    membersWithExtra--;
+                }
+                assignment.get(target).add(partition);
+            }
+            return assignment;
         }
 
-        void consumeMessage(String topicName){
-            // get all CGs for the topic
-            // get all consumers and read from the assigned partition
+        private List<Partition> owned(Map<String, List<Partition>> currentAssignment, String memberId){
+            return currentAssignment.getOrDefault(memberId, Collections.emptyList());
+        }
 
-            Topic topic = topics.get(topicName);
-            List<ConsumerGroup> consumerGroups = topic.consumerGroups;
+        @Override
+        public boolean isCooperative() {
+            return true;
+        }
+    }
 
-            consumerGroups.forEach(consumerGroup -> {
-                CompletableFuture.runAsync(() ->{
-                    consumerGroup.consumers.forEach( consumer -> {
-                        CompletableFuture.runAsync(consumer::consume, consumerExecutor);
-                    });
-                }, consumerGroupExecutor);
-            });
+    private static Map<String, List<Partition>> emptyAssignment(List<String> memberIds){
+        Map<String, List<Partition>> assignment = new HashMap<>();
+        memberIds.forEach(memberId -> assignment.put(memberId, new ArrayList<>()));
+        return assignment;
+    }
+
+    /**
+     * internal __consumer_offsets log - every commit is appended as a record, and once the log holds
+     * mostly superseded records it is compacted down to the latest record per group and partition
+     */
+    class OffsetsLog{
+        private static final int MIN_COMPACTION_SIZE = 1024;
+
+        private List<OffsetCommit> log = new ArrayList<>();
+        private final Map<String, Long> latest = new HashMap<>();
+
+        public synchronized void commit(String groupName, String partitionName, long offset){
+            String key = groupName + "/" + partitionName;
+            Long previous = latest.get(key);
+            if(previous != null && previous == offset){
+                return;
+            }
+            log.add(new OffsetCommit(key, offset));
+            latest.put(key, offset);
+            if(log.size() >= MIN_COMPACTION_SIZE && log.size() > 2 * latest.size()){
+                compact();
+            }
+        }
+
+        public synchronized long committed(String groupName, String partitionName){
+            return latest.getOrDefault(groupName + "/" + partitionName, 0L);
+        }
+
+        public synchronized int size(){
+            return log.size();
+        }
+
+        private void compact(){
+            List<OffsetCommit> compacted = new ArrayList<>(latest.size());
+            for(OffsetCommit record : log){
+                if(latest.get(record.key) == record.offset){
+                    compacted.add(record);
+                }
+            }
+            log = compacted;
+        }
+    }
+
+    class OffsetCommit{
+        private final String key;
+        private final long offset;
+
+        public OffsetCommit(String key, long offset) {
+            this.key = key;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * record frame on disk and on the wire:
+     * [int frame size][long offset][long timestamp][int id][int key length][key][int data length][data]
+     * a length of -1 stands for a null key or data
+     */
+    private static final int FRAME_HEADER_BYTES = 4 + 8 + 8 + 4 + 4 + 4;
+
+    class PartitionLog{
+        private final Path dir;
+        private final int segmentBytes;
+        private volatile List<LogSegment> segments = new ArrayList<>();
+
+        public PartitionLog(Path dir, int segmentBytes) {
+            this.dir = dir;
+            this.segmentBytes = segmentBytes;
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
+
+        // called under the partition lock, so there is a single writer
+        void append(Message message){
+            ByteBuffer frame = encode(message);
+            LogSegment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if(active == null || (active.sizeInBytes() > 0 && active.sizeInBytes() + frame.remaining() > segmentBytes)){
+                if(active != null){
+                    active.seal();
+                }
+                active = new LogSegment(dir, message.offset);
+                List<LogSegment> rolled = new ArrayList<>(segments);
+                rolled.add(active);
+                segments = rolled;
+            }
+            active.append(frame, message.offset);
+        }
+
+        private ByteBuffer encode(Message message){
+            byte[] key = message.key == null ? null : message.key.getBytes(StandardCharsets.UTF_8);
+            byte[] data = message.data == null ? null : message.data.getBytes(StandardCharsets.UTF_8);
+            int size = FRAME_HEADER_BYTES + (key == null ? 0 : key.length) + (data == null ? 0 : data.length);
+            ByteBuffer frame = ByteBuffer.allocate(size);
+            frame.putInt(size - 4).putLong(message.offset).putLong(message.timestamp).putInt(message.id);
+            frame.putInt(key == null ? -1 : key.length);
+            if(key != null){
+                frame.put(key);
+            }
+            frame.putInt(data == null ? -1 : data.length);
+            if(data != null){
+                frame.put(data);
+            }
+            frame.flip();
+            return frame;
+        }
+
+        /**
+         * bytes of whole frames from fromOffset to the end of the log
+         */
+        long availableBytes(long fromOffset){
+            long available = 0;
+            for(LogSegment segment : segments){
+                available += segment.bytesFrom(fromOffset);
+            }
+            return available;
+        }
+
+        /**
+         * the segment holding fromOffset with a reference taken on it, so the cleaner can't close it under a fetch
+         * that is still reading it. null when there is nothing from fromOffset on, the caller releases the segment
+         */
+        LogSegment acquire(long fromOffset){
+            while(true){
+                LogSegment found = null;
+                for(LogSegment segment : segments){
+                    if(segment.bytesFrom(fromOffset) > 0){
+                        found = segment;
+                        break;
+                    }
+                }
+                if(found == null || found.retain()){
+                    return found;
+                }
+                // retired between the lookup and the retain, the swapped list already has its replacement
+            }
+        }
+
+        /**
+         * swaps the first replacedCount segments for the cleaned ones, called under the partition lock
+         */
+        void replaceSegments(int replacedCount, List<LogSegment> cleaned) throws IOException {
+            List<LogSegment> swapped = new ArrayList<>(cleaned);
+            swapped.addAll(segments.subList(replacedCount, segments.size()));
+            // unlink the old files first, their channels stay readable for fetches still in flight
+            for(LogSegment segment : segments.subList(0, replacedCount)){
+                segment.delete();
+            }
+            for(LogSegment segment : cleaned){
+                segment.renameToLog();
+            }
+            segments = swapped;
+        }
+
+        void close(){
+            segments.forEach(LogSegment::release);
+        }
+    }
+
+    /**
+     * fixed size open addressing map from a 64 bit key hash to the latest offset of that key.
+     * it is allocated once and cleared between passes, so the cleaner's memory does not grow with the number of keys,
+     * a pass that fills it only cleans up to the segment where it filled
+     */
+    class OffsetMap{
+        private static final double MAX_LOAD = 0.75;
+
+        private final long[] hashes;
+        private final long[] offsets;
+        private final int mask;
+        private int size;
+
+        public OffsetMap(int capacity) {
+            int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.hashes = new long[slots];
+            this.offsets = new long[slots];
+            this.mask = slots - 1;
+        }
+
+        void put(long hash, long offset){
+            int slot = (int) hash & mask;
+            while(offsets[slot] != 0 && hashes[slot] != hash){
+                slot = (slot + 1) & mask;
+            }
+            if(offsets[slot] == 0){
+                size++;
+            }
+            hashes[slot] = hash;
+            // stored as offset + 1 so zero marks an empty slot
+            offsets[slot] = offset + 1;
+        }
+
+        long get(long hash){
+            int slot = (int) hash & mask;
+            while(offsets[slot] != 0){
+                if(hashes[slot] == hash){
+                    return offsets[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        boolean isFull(){
+            return size >= hashes.length * MAX_LOAD;
+        }
+
+        void clear(){
+            Arrays.fill(offsets, 0);
+            size = 0;
+        }
+    }
+
+    /**
+     * limits the cleaner to bytesPerSecond of combined reads and writes
+     */
+    class IoThrottler{
+        private final long bytesPerSecond;
+        private long windowStart = System.nanoTime();
+        private long bytesInWindow;
+
+        public IoThrottler(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(long bytes) throws InterruptedException {
+            bytesInWindow += bytes;
+            long elapsedNanos = System.nanoTime() - windowStart;
+            long expectedNanos = bytesInWindow * 1_000_000_000L / bytesPerSecond;
+            if(expectedNanos > elapsedNanos){
+                TimeUnit.NANOSECONDS.sleep(expectedNanos - elapsedNanos);
+            }
+            if(elapsedNanos > 1_000_000_000L){
+                windowStart = System.nanoTime();
+                bytesInWindow = 0;
+            }
+        }
+    }
+
+    /**
+     * background thread that rewrites the sealed segments of compacted topics.
+     * first pass builds the offset map of the latest offset per key, second pass copies only the frames that are
+     * still the latest for their key. tombstones are kept for deleteRetentionMs so consumers get to see the delete
+     */
+    class LogCleaner implements Runnable{
+        private final KafkaBroker broker;
+        private final OffsetMap offsetMap;
+        private final IoThrottler throttler;
+        private final long deleteRetentionMs;
+        private final long intervalMs;
+        private final Map<Partition, Long> cleanedUpTo = new HashMap<>();
+        // when the oldest tombstone kept by the last pass may go, a quiet partition gets rewritten again for it
+        private final Map<Partition, Long> tombstonesExpireAt = new HashMap<>();
+        private volatile boolean running = true;
+        private ByteBuffer frameBuffer = ByteBuffer.allocate(64 * 1024);
+
+        public LogCleaner(KafkaBroker broker, int offsetMapEntries, long ioBytesPerSecond, long deleteRetentionMs, long intervalMs) {
+            this.broker = broker;
+            this.offsetMap = new OffsetMap(offsetMapEntries);
+            this.throttler = new IoThrottler(ioBytesPerSecond);
+            this.deleteRetentionMs = deleteRetentionMs;
+            this.intervalMs = intervalMs;
+        }
+
+        @Override
+        public void run() {
+            while(running){
+                try {
+                    for(Topic topic : broker.topics.values()){
+                        if(!topic.compacted){
+                            continue;
+                        }
+                        for(Partition partition : topic.partitions){
+                            clean(partition);
+                        }
+                    }
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException e) {
+                    System.out.println("log cleaner failed: " + e.getMessage());
+                }
+            }
+        }
+
+        void clean(Partition partition) throws IOException, InterruptedException {
+            List<LogSegment> sealed = new ArrayList<>();
+            for(LogSegment segment : partition.log.segments){
+                if(segment.isSealed()){
+                    sealed.add(segment);
+                }
+            }
+            long alreadyCleaned = cleanedUpTo.getOrDefault(partition, 0L);
+            long now = System.currentTimeMillis();
+            if(sealed.isEmpty() || (lastOffsetOf(sealed) < alreadyCleaned
+                    && now < tombstonesExpireAt.getOrDefault(partition, Long.MAX_VALUE))){
+                return;
+            }
+
+            long cleanUpTo = buildOffsetMap(sealed, alreadyCleaned);
+            List<LogSegment> cleaned = new ArrayList<>();
+            int replacedCount = 0;
+            long nextTombstoneExpiry = Long.MAX_VALUE;
+            for(LogSegment segment : sealed){
+                if(segment.baseOffset >= cleanUpTo){
+                    break;
+                }
+                replacedCount++;
+                for(int idx=0; idx<segment.entries(); idx++){
+                    frameBuffer = segment.readFrame(idx, frameBuffer);
+                    throttler.acquire(frameBuffer.limit());
+                    if(retain(frameBuffer, cleanUpTo, now)){
+                        if(isTombstone(frameBuffer) && keyOf(frameBuffer) != null && frameBuffer.getLong(4) < cleanUpTo){
+                            nextTombstoneExpiry = Math.min(nextTombstoneExpiry, frameBuffer.getLong(12) + deleteRetentionMs);
+                        }
+                        frameBuffer.rewind();
+                        copy(frameBuffer, cleaned, partition.log);
+                        throttler.acquire(frameBuffer.limit());
+                    }
+                }
+            }
+            cleaned.forEach(LogSegment::seal);
+
+            synchronized (partition){
+                partition.log.replaceSegments(replacedCount, cleaned);
+                partition.retainCleaned(cleanUpTo, message -> retain(message.key, message.data == null,
+                        message.offset, message.timestamp, cleanUpTo, now));
+            }
+            // fetches still reading a replaced segment hold a reference, its channel closes after the last of them
+            sealed.subList(0, replacedCount).forEach(LogSegment::release);
+            cleanedUpTo.put(partition, cleanUpTo);
+            tombstonesExpireAt.put(partition, nextTombstoneExpiry);
+        }
+
+        /**
+         * returns the offset up to which the map covers the segments, everything below it can be cleaned
+         */
+        private long buildOffsetMap(List<LogSegment> sealed, long alreadyCleaned) throws IOException, InterruptedException {
+            offsetMap.clear();
+            long cleanUpTo = sealed.get(0).baseOffset;
+            for(LogSegment segment : sealed){
+                for(int idx=0; idx<segment.entries(); idx++){
+                    if(offsetMap.isFull()){
+                        return cleanUpTo;
+                    }
+                    frameBuffer = segment.readFrame(idx, frameBuffer);
+                    throttler.acquire(frameBuffer.limit());
+                    long offset = frameBuffer.getLong(4);
+                    String key = keyOf(frameBuffer);
+                    if(key != null && offset >= alreadyCleaned){
+                        offsetMap.put(hash(key), offset);
+                    }
+                    cleanUpTo = offset + 1;
+                }
+            }
+            return cleanUpTo;
+        }
+
+        private boolean retain(ByteBuffer frame, long cleanUpTo, long now){
+            long offset = frame.getLong(4);
+            long timestamp = frame.getLong(12);
+            return retain(keyOf(frame), isTombstone(frame), offset, timestamp, cleanUpTo, now);
+        }
+
+        private boolean isTombstone(ByteBuffer frame){
+            int keyLength = frame.getInt(24);
+            return frame.getInt(28 + Math.max(keyLength, 0)) < 0;
+        }
+
+        private boolean retain(String key, boolean tombstone, long offset, long timestamp, long cleanUpTo, long now){
+            if(key == null || offset >= cleanUpTo){
+                return true;
+            }
+            long latest = offsetMap.get(hash(key));
+            if(latest > offset){
+                return false;
+            }
+            return !tombstone || timestamp + deleteRetentionMs > now;
+        }
+
+        private String keyOf(ByteBuffer frame){
+            int keyLength = frame.getInt(24);
+            if(keyLength < 0){
+                return null;
+            }
+            byte[] key = new byte[keyLength];
+            for(int i=0; i<keyLength; i++){
+                key[i] = frame.get(28 + i);
+            }
+            return new String(key, StandardCharsets.UTF_8);
+        }
+
+        // cleaned segments are packed up to the partition's segment size, so compaction also merges small segments
+        private void copy(ByteBuffer frame, List<LogSegment> cleaned, PartitionLog log){
+            LogSegment output = cleaned.isEmpty() ? null : cleaned.get(cleaned.size() - 1);
+            long offset = frame.getLong(4);
+            if(output == null || (output.sizeInBytes() > 0 && output.sizeInBytes() + frame.limit() > log.segmentBytes)){
+                output = new LogSegment(log.dir, offset, ".cleaned");
+                cleaned.add(output);
+            }
+            output.append(frame, offset);
+        }
+
+        private long lastOffsetOf(List<LogSegment> segments){
+            LogSegment last = segments.get(segments.size() - 1);
+            synchronized (last){
+                return last.offsets[last.entries - 1];
+            }
+        }
+
+        private long hash(String key){
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            return ((long) murmur2(bytes) << 32) ^ (key.hashCode() & 0xffffffffL);
+        }
+
+        void close(){
+            running = false;
+        }
+    }
+
+    /**
+     * one file of the partition log, named after the first offset in it.
+     * the offset to file position index is kept in memory. the log holds one reference to the segment and every
+     * fetch reading it one more, the channel is closed when the last one is released
+     */
+    class LogSegment{
+        private final long baseOffset;
+        private final FileChannel channel;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private long[] offsets = new long[64];
+        private int[] positions = new int[64];
+        private int entries;
+        private volatile int sizeInBytes;
+        private volatile boolean sealed;
+
+        private final Path dir;
+        private Path file;
+
+        public LogSegment(Path dir, long baseOffset) {
+            this(dir, baseOffset, "");
+        }
+
+        public LogSegment(Path dir, long baseOffset, String suffix) {
+            this.baseOffset = baseOffset;
+            this.dir = dir;
+            this.file = dir.resolve(fileName(baseOffset) + suffix);
+            try {
+                this.channel = new RandomAccessFile(file.toFile(), "rw").getChannel();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private String fileName(long baseOffset){
+            return String.format("%020d.log", baseOffset);
+        }
+
+        /**
+         * drops the suffix of a segment written by the cleaner, the open channel stays valid
+         */
+        void renameToLog() throws IOException {
+            Path target = dir.resolve(fileName(baseOffset));
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+            file = target;
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(file);
+        }
+
+        synchronized void append(ByteBuffer frame, long offset){
+            if(entries == offsets.length){
+                offsets = Arrays.copyOf(offsets, entries * 2);
+                positions = Arrays.copyOf(positions, entries * 2);
+            }
+            int position = sizeInBytes;
+            try {
+                while(frame.hasRemaining()){
+                    channel.write(frame, position + frame.position());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            offsets[entries] = offset;
+            positions[entries] = position;
+            entries++;
+            sizeInBytes = position + frame.limit();
+        }
+
+        int sizeInBytes(){
+            return sizeInBytes;
+        }
+
+        void seal(){
+            sealed = true;
+        }
+
+        boolean isSealed(){
+            return sealed;
+        }
+
+        synchronized int entries(){
+            return entries;
+        }
+
+        /**
+         * reads the frame at index idx into buffer, buffer is cleared and flipped for reading
+         */
+        ByteBuffer readFrame(int idx, ByteBuffer buffer) throws IOException {
+            int position;
+            int size;
+            synchronized (this){
+                position = positions[idx];
+                size = frameSize(idx);
+            }
+            if(buffer.capacity() < size){
+                buffer = ByteBuffer.allocate(size);
+            }
+            buffer.clear().limit(size);
+            while(buffer.hasRemaining()){
+                if(channel.read(buffer, position + buffer.position()) < 0){
+                    throw new IOException("segment " + baseOffset + " ended in the middle of a frame");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        synchronized long bytesFrom(long offset){
+            int idx = indexOf(offset);
+            return idx == entries ? 0 : sizeInBytes - positions[idx];
+        }
+
+        synchronized long sizeOf(long fromOffset, int maxBytes){
+            int from = indexOf(fromOffset);
+            if(from == entries){
+                return 0;
+            }
+            int start = positions[from];
+            // last frame that still ends inside maxBytes, but never less than the first frame
+            int to = from + 1;
+            while(to < entries && positions[to] + frameSize(to) - start <= maxBytes){
+                to++;
+            }
+            return positionEnd(to - 1) - start;
+        }
+
+        /**
+         * writes count bytes of whole frames starting at fromOffset into target with FileChannel.transferTo, the
+         * bytes go from the page cache to the socket without passing through the heap. count comes from sizeOf,
+         * which sends at least one frame even if it is larger than maxBytes, so a consumer can always make progress
+         */
+        long transferTo(long fromOffset, long count, WritableByteChannel target) throws IOException {
+            long start;
+            synchronized (this){
+                start = positions[indexOf(fromOffset)];
+            }
+            long transferred = 0;
+            while(transferred < count){
+                transferred += channel.transferTo(start + transferred, count - transferred, target);
+            }
+            return transferred;
+        }
+
+        private int frameSize(int idx){
+            return positionEnd(idx) - positions[idx];
+        }
+
+        private int positionEnd(int idx){
+            return idx + 1 < entries ? positions[idx + 1] : sizeInBytes;
+        }
+
+        private int indexOf(long offset){
+            int low = 0;
+            int high = entries;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(offsets[mid] < offset){
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * false when the segment was already closed
+         */
+        boolean retain(){
+            while(true){
+                int current = references.get();
+                if(current == 0){
+                    return false;
+                }
+                if(references.compareAndSet(current, current + 1)){
+                    return true;
+                }
+            }
+        }
+
+        void release(){
+            if(references.decrementAndGet() == 0){
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.out.println("failed to close segment " + baseOffset + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * request: [short topic length][topic][int partition][long fetch offset][int max bytes][int max wait ms][int min bytes]
+     * response: [long log end offset][int bytes] followed by bytes of record frames
+     * a fetch waits up to maxWaitMs until minBytes are available, so idle consumers do not spin.
+     * a fetch that can't be served gets a negative bytes, one of the FETCH_ error codes, and no frames
+     */
+    class FetchServer implements Runnable{
+        static final int FETCH_UNKNOWN_PARTITION = -1;
+        static final int FETCH_NOT_ON_DISK = -2;
+
+        private final KafkaBroker broker;
+        private final ServerSocketChannel serverChannel;
+
+        public FetchServer(KafkaBroker broker, int port) throws IOException {
+            this.broker = broker;
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+
+        int port(){
+            return serverChannel.socket().getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while(serverChannel.isOpen()){
+                try {
+                    SocketChannel connection = serverChannel.accept();
+                    connection.socket().setTcpNoDelay(true);
+                    CompletableFuture.runAsync(() -> serve(connection), broker.consumerExecutor);
+                } catch (IOException e) {
+                    if(serverChannel.isOpen()){
+                        System.out.println("fetch server failed to accept: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void serve(SocketChannel connection){
+            ByteBuffer header = ByteBuffer.allocate(12);
+            try (SocketChannel channel = connection){
+                while(true){
+                    ByteBuffer request = readRequest(channel);
+                    if(request == null){
+                        return;
+                    }
+                    byte[] topicName = new byte[request.getShort()];
+                    request.get(topicName);
+                    Topic topic = broker.topics.get(new String(topicName, StandardCharsets.UTF_8));
+                    int partitionId = request.getInt();
+                    long fetchOffset = request.getLong();
+                    int maxBytes = request.getInt();
+                    int maxWaitMs = request.getInt();
+                    int minBytes = request.getInt();
+
+                    Partition partition = topic == null || partitionId < 0 || partitionId >= topic.partitions.size()
+                            ? null : topic.partitions.get(partitionId);
+                    if(partition == null || partition.log == null){
+                        // the connection stays usable, only this fetch fails
+                        header.clear();
+                        header.putLong(-1).putInt(partition == null ? FETCH_UNKNOWN_PARTITION : FETCH_NOT_ON_DISK).flip();
+                        writeFully(channel, header);
+                        continue;
+                    }
+                    awaitMinBytes(partition, fetchOffset, minBytes, maxWaitMs);
+                    LogSegment segment = partition.log.acquire(fetchOffset);
+                    try {
+                        long bytes = segment == null ? 0 : segment.sizeOf(fetchOffset, maxBytes);
+                        header.clear();
+                        header.putLong(partition.logEndOffset()).putInt((int) bytes).flip();
+                        writeFully(channel, header);
+                        if(bytes > 0){
+                            // exactly the frames sized above, appends in between are not part of this response
+                            segment.transferTo(fetchOffset, bytes, channel);
+                        }
+                    } finally {
+                        if(segment != null){
+                            segment.release();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("fetch connection closed: " + e.getMessage());
+            }
+        }
+
+        private void awaitMinBytes(Partition partition, long fetchOffset, int minBytes, int maxWaitMs){
+            long deadline = System.currentTimeMillis() + maxWaitMs;
+            long remaining = maxWaitMs;
+            try {
+                while(remaining > 0){
+                    long version = partition.topic.dataVersion();
+                    if(partition.log.availableBytes(fetchOffset) >= minBytes){
+                        return;
+                    }
+                    partition.topic.awaitNewData(version, remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private ByteBuffer readRequest(SocketChannel channel) throws IOException {
+            ByteBuffer size = ByteBuffer.allocate(4);
+            if(!readFully(channel, size)){
+                return null;
+            }
+            size.flip();
+            ByteBuffer request = ByteBuffer.allocate(size.getInt());
+            if(!readFully(channel, request)){
+                return null;
+            }
+            request.flip();
+            return request;
+        }
+
+        void close(){
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                System.out.println("failed to close fetch server: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * client side of the fetch protocol, for consumers running out of process
+     */
+    class FetchClient implements AutoCloseable{
+        private final SocketChannel channel;
+        private long logEndOffset;
+
+        public FetchClient(int port) throws IOException {
+            this.channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            this.channel.socket().setTcpNoDelay(true);
+        }
+
+        public List<Message> fetch(String topicName, int partition, long fetchOffset, int maxBytes, int maxWaitMs, int minBytes) throws IOException {
+            byte[] topic = topicName.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer request = ByteBuffer.allocate(4 + 2 + topic.length + 4 + 8 + 4 + 4 + 4);
+            request.putInt(request.capacity() - 4).putShort((short) topic.length).put(topic)
+                    .putInt(partition).putLong(fetchOffset).putInt(maxBytes).putInt(maxWaitMs).putInt(minBytes).flip();
+            writeFully(channel, request);
+
+            ByteBuffer header = ByteBuffer.allocate(12);
+            if(!readFully(channel, header)){
+                throw new IOException("connection closed by broker");
+            }
+            header.flip();
+            long endOffset = header.getLong();
+            int bytes = header.getInt();
+            if(bytes == FetchServer.FETCH_UNKNOWN_PARTITION){
+                throw new IOException("unknown partition " + topicName + "-" + partition);
+            }
+            if(bytes == FetchServer.FETCH_NOT_ON_DISK){
+                throw new IOException("partition " + topicName + "-" + partition + " has no log on disk");
+            }
+            logEndOffset = endOffset;
+            ByteBuffer records = ByteBuffer.allocate(bytes);
+            if(!readFully(channel, records)){
+                throw new IOException("connection closed by broker");
+            }
+            records.flip();
+            return decode(records);
+        }
+
+        public long lastLogEndOffset(){
+            return logEndOffset;
+        }
+
+        private List<Message> decode(ByteBuffer records){
+            List<Message> messages = new ArrayList<>();
+            while(records.remaining() >= 4){
+                records.getInt();
+                long offset = records.getLong();
+                long timestamp = records.getLong();
+                int id = records.getInt();
+                String key = readString(records);
+                String data = readString(records);
+                Message message = new Message(id, key, data);
+                message.offset = offset;
+                message.timestamp = timestamp;
+                messages.add(message);
+            }
+            return messages;
+        }
+
+        private String readString(ByteBuffer buffer){
+            int length = buffer.getInt();
+            if(length < 0){
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * replication state of one partition, owned by the cluster and updated by the leader
+     */
+    class PartitionReplicas{
+        private final String topicName;
+        private final int partitionIdx;
+        private final List<Integer> replicas;
+        private final int minInsyncReplicas;
+        private final long replicaLagTimeMs;
+        private volatile int leaderId;
+        private int leaderEpoch;
+        private final Set<Integer> isr = new HashSet<>();
+        private final Map<Integer, Long> followerLogEndOffsets = new HashMap<>();
+        private final Map<Integer, Long> lastCaughtUpMs = new HashMap<>();
+        // the leader's log end offset when the follower fetched last
+        private final Map<Integer, Long> leaderEndAtLastFetch = new HashMap<>();
+        private long highWatermark;
+        // acks=all produce requests waiting for the high watermark, by the offset they wait for
+        private final TreeMap<Long, List<CompletableFuture<Long>>> pendingAcks = new TreeMap<>();
+
+        public PartitionReplicas(String topicName, int partitionIdx, List<Integer> replicas, int minInsyncReplicas, long replicaLagTimeMs) {
+            this.topicName = topicName;
+            this.partitionIdx = partitionIdx;
+            this.replicas = replicas;
+            this.minInsyncReplicas = minInsyncReplicas;
+            this.replicaLagTimeMs = replicaLagTimeMs;
+            this.leaderId = replicas.get(0);
+            long now = System.currentTimeMillis();
+            for(int replica : replicas){
+                isr.add(replica);
+                followerLogEndOffsets.put(replica, 0L);
+                lastCaughtUpMs.put(replica, now);
+                leaderEndAtLastFetch.put(replica, 0L);
+            }
+        }
+
+        synchronized long highWatermark(){
+            return highWatermark;
+        }
+
+        synchronized Set<Integer> isr(){
+            return new HashSet<>(isr);
+        }
+
+        synchronized void removeFromIsr(int brokerId){
+            isr.remove(brokerId);
+        }
+
+        synchronized void checkEnoughReplicas(){
+            if(isr.size() < minInsyncReplicas){
+                throw new RuntimeException(String.format("not enough in sync replicas for %s-%d, isr: %s", topicName, partitionIdx, isr));
+            }
+        }
+
+        synchronized CompletableFuture<Long> awaitHighWatermark(long offset){
+            CompletableFuture<Long> acked = new CompletableFuture<>();
+            if(highWatermark > offset){
+                acked.complete(offset);
+            } else {
+                pendingAcks.computeIfAbsent(offset, o -> new ArrayList<>()).add(acked);
+            }
+            return acked;
+        }
+
+        /**
+         * a follower fetching from fetchOffset confirms it has everything below it
+         */
+        synchronized void onFollowerFetch(int followerId, long fetchOffset, long leaderLogEndOffset){
+            followerLogEndOffsets.put(followerId, fetchOffset);
+            long now = System.currentTimeMillis();
+            // caught up to where the leader was at its previous fetch, like kafka does, a follower that keeps up
+            // under steady appends never reaches the moving log end offset itself
+            if(fetchOffset >= leaderLogEndOffset || fetchOffset >= leaderEndAtLastFetch.getOrDefault(followerId, 0L)){
+                lastCaughtUpMs.put(followerId, now);
+            }
+            leaderEndAtLastFetch.put(followerId, leaderLogEndOffset);
+            if(!isr.contains(followerId) && fetchOffset >= highWatermark){
+                isr.add(followerId);
+            }
+            maybeAdvanceHighWatermark(leaderLogEndOffset, now);
+        }
+
+        synchronized void maybeAdvanceHighWatermark(long leaderLogEndOffset, long now){
+            followerLogEndOffsets.put(leaderId, leaderLogEndOffset);
+            lastCaughtUpMs.put(leaderId, now);
+            isr.removeIf(replica -> now - lastCaughtUpMs.get(replica) > replicaLagTimeMs);
+            long newHighWatermark = leaderLogEndOffset;
+            for(int replica : isr){
+                newHighWatermark = Math.min(newHighWatermark, followerLogEndOffsets.get(replica));
+            }
+            if(newHighWatermark > highWatermark){
+                highWatermark = newHighWatermark;
+            }
+            while(!pendingAcks.isEmpty() && pendingAcks.firstKey() < highWatermark){
+                Map.Entry<Long, List<CompletableFuture<Long>>> acked = pendingAcks.pollFirstEntry();
+                acked.getValue().forEach(future -> future.complete(acked.getKey()));
+            }
+        }
+
+        /**
+         * moves leadership to the first live in sync replica, returns false when none is left
+         */
+        synchronized boolean electLeader(Set<Integer> deadBrokers){
+            isr.removeAll(deadBrokers);
+            for(int replica : replicas){
+                if(isr.contains(replica)){
+                    leaderId = replica;
+                    leaderEpoch++;
+                    long now = System.currentTimeMillis();
+                    isr.forEach(follower -> lastCaughtUpMs.put(follower, now));
+                    RuntimeException leaderChanged = leaderChanged();
+                    pendingAcks.values().forEach(futures -> futures.forEach(future -> future.completeExceptionally(leaderChanged)));
+                    pendingAcks.clear();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        RuntimeException leaderChanged(){
+            return new RuntimeException("leader of " + topicName + "-" + partitionIdx + " changed, retry");
+        }
+    }
+
+    /**
+     * a produce request queued on the leader's request handler, kept as its own runnable so a crash can fail the
+     * ones that never ran
+     */
+    class ProduceRequest implements Runnable{
+        final PartitionReplicas replicas;
+        final CompletableFuture<Long> appended = new CompletableFuture<>();
+        private final Supplier<Long> append;
+
+        ProduceRequest(PartitionReplicas replicas, Supplier<Long> append) {
+            this.replicas = replicas;
+            this.append = append;
+        }
+
+        @Override
+        public void run() {
+            try {
+                appended.complete(append.get());
+            } catch (RuntimeException e) {
+                appended.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * N brokers in one process. partition p is led by broker p % N and replicated on the next brokers.
+     * produce requests run on the leader's request handler thread, followers replicate with a fetcher thread each
+     */
+    class KafkaCluster{
+        private final List<KafkaBroker> brokers = new ArrayList<>();
+        private final List<ExecutorService> requestHandlers = new ArrayList<>();
+        private final List<Thread> replicaFetchers = new ArrayList<>();
+        private final Map<String, List<PartitionReplicas>> replicasByTopic = new ConcurrentHashMap<>();
+        private final Set<Integer> deadBrokers = ConcurrentHashMap.newKeySet();
+        private final long replicaLagTimeMs;
+        private final Object replicationSignal = new Object();
+        private long appendVersion;
+        private volatile boolean running = true;
+        private final Thread isrChecker;
+
+        public KafkaCluster(int brokerCount, long replicaLagTimeMs) {
+            this.replicaLagTimeMs = replicaLagTimeMs;
+            for(int brokerId=0; brokerId<brokerCount; brokerId++){
+                brokers.add(new KafkaBroker());
+                requestHandlers.add(Executors.newSingleThreadExecutor());
+            }
+            for(int brokerId=0; brokerId<brokerCount; brokerId++){
+                int followerId = brokerId;
+                Thread fetcher = new Thread(() -> replicate(followerId), "replica-fetcher-" + brokerId);
+                fetcher.setDaemon(true);
+                replicaFetchers.add(fetcher);
+                fetcher.start();
+            }
+            // followers that stopped fetching altogether still have to drop out of the isr
+            isrChecker = new Thread(() -> {
+                while(running){
+                    sleep(replicaLagTimeMs / 2);
+                    replicasByTopic.forEach((topicName, partitions) -> partitions.forEach(replicas ->
+                            replicas.maybeAdvanceHighWatermark(partitionOn(replicas.leaderId, replicas).logEndOffset(), System.currentTimeMillis())));
+                }
+            }, "isr-checker");
+            isrChecker.setDaemon(true);
+            isrChecker.start();
+        }
+
+        synchronized void createTopic(String name, int partitions, int replicationFactor, int minInsyncReplicas){
+            if(replicationFactor > brokers.size()){
+                throw new RuntimeException("replication factor is larger than the number of brokers");
+            }
+            List<PartitionReplicas> partitionReplicas = new ArrayList<>();
+            for(int partition=0; partition<partitions; partition++){
+                List<Integer> replicas = new ArrayList<>();
+                for(int r=0; r<replicationFactor; r++){
+                    replicas.add((partition + r) % brokers.size());
+                }
+                partitionReplicas.add(new PartitionReplicas(name, partition, replicas, minInsyncReplicas, replicaLagTimeMs));
+            }
+            brokers.forEach(broker -> broker.addTopic(name, partitions));
+            replicasByTopic.put(name, partitionReplicas);
+        }
+
+        /**
+         * completes with the offset of the message, or -1 for acks=NONE where the offset is never reported back
+         */
+        CompletableFuture<Long> publish(String topicName, Message message, Acks acks){
+            Topic anyTopic = brokers.get(0).topics.get(topicName);
+            PartitionReplicas replicas = replicasOf(topicName, anyTopic.partitioner.partition(anyTopic, message));
+            int leaderId = replicas.leaderId;
+            if(deadBrokers.contains(leaderId)){
+                CompletableFuture<Long> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new RuntimeException("no live leader for " + topicName + "-" + replicas.partitionIdx));
+                return failed;
+            }
+            if(acks == Acks.ALL){
+                replicas.checkEnoughReplicas();
+            }
+            ProduceRequest request = new ProduceRequest(replicas, () -> {
+                Partition leader = partitionOn(leaderId, replicas);
+                leader.append(message);
+                replicas.maybeAdvanceHighWatermark(leader.logEndOffset(), System.currentTimeMillis());
+                signalReplication();
+                return message.offset;
+            });
+            try {
+                requestHandlers.get(leaderId).execute(request);
+            } catch (RejectedExecutionException e) {
+                // the leader died between the check above and now
+                request.appended.completeExceptionally(replicas.leaderChanged());
+            }
+            CompletableFuture<Long> appended = request.appended;
+            switch (acks){
+                case NONE:
+                    return CompletableFuture.completedFuture(-1L);
+                case LEADER:
+                    return appended;
+                default:
+                    return appended.thenCompose(replicas::awaitHighWatermark);
+            }
+        }
+
+        /**
+         * reads from the leader, but only what all in sync replicas have, so a consumer never sees a message
+         * that a failover could lose
+         */
+        List<Message> fetch(String topicName, int partitionIdx, long fromOffset, int maxRecords){
+            PartitionReplicas replicas = replicasOf(topicName, partitionIdx);
+            long highWatermark = replicas.highWatermark();
+            List<Message> committed = new ArrayList<>();
+            for(Message message : partitionOn(replicas.leaderId, replicas).read(fromOffset, maxRecords)){
+                if(message.offset >= highWatermark){
+                    break;
+                }
+                committed.add(message);
+            }
+            return committed;
+        }
+
+        PartitionReplicas replicasOf(String topicName, int partitionIdx){
+            return replicasByTopic.get(topicName).get(partitionIdx);
+        }
+
+        private Partition partitionOn(int brokerId, PartitionReplicas replicas){
+            return brokers.get(brokerId).topics.get(replicas.topicName).partitions.get(replicas.partitionIdx);
+        }
+
+        /**
+         * fetch loop of one follower broker. every fetch first reports the follower's log end offset, which is what
+         * moves the leader's high watermark, then copies what the leader has beyond it
+         */
+        private void replicate(int followerId){
+            while(running && !deadBrokers.contains(followerId)){
+                long version;
+                synchronized (replicationSignal){
+                    version = appendVersion;
+                }
+                boolean fetchedAny = false;
+                for(List<PartitionReplicas> partitions : replicasByTopic.values()){
+                    for(PartitionReplicas replicas : partitions){
+                        try {
+                            fetchedAny |= fetchFromLeader(followerId, replicas);
+                        } catch (RuntimeException e) {
+                            System.out.println("replica fetcher " + followerId + " failed: " + e.getMessage());
+                        }
+                    }
+                }
+                if(!fetchedAny){
+                    awaitAppend(version);
+                }
+            }
+        }
+
+        /**
+         * holds the partition's replicas for the whole fetch, a leader change and the truncation that follows it
+         * happen either before the leader is looked up or after the fetched messages are appended
+         */
+        private boolean fetchFromLeader(int followerId, PartitionReplicas replicas){
+            synchronized (replicas){
+                int leaderId = replicas.leaderId;
+                if(leaderId == followerId || !replicas.replicas.contains(followerId) || deadBrokers.contains(leaderId)){
+                    return false;
+                }
+                Partition leader = partitionOn(leaderId, replicas);
+                Partition follower = partitionOn(followerId, replicas);
+                long fetchOffset = follower.logEndOffset();
+                replicas.onFollowerFetch(followerId, fetchOffset, leader.logEndOffset());
+                boolean fetchedAny = false;
+                for(Message message : leader.read(fetchOffset, MAX_REPLICA_FETCH_RECORDS)){
+                    follower.appendReplica(message.copy());
+                    fetchedAny = true;
+                }
+                return fetchedAny;
+            }
+        }
+
+        private void signalReplication(){
+            synchronized (replicationSignal){
+                appendVersion++;
+                replicationSignal.notifyAll();
+            }
+        }
+
+        private void awaitAppend(long version){
+            synchronized (replicationSignal){
+                if(appendVersion == version){
+                    try {
+                        replicationSignal.wait(replicaLagTimeMs / 4);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        /**
+         * simulates a crash, partitions it led move to the first live in sync replica and the remaining followers
+         * fall back to the high watermark before fetching from the new leader
+         */
+        synchronized void killBroker(int brokerId){
+            deadBrokers.add(brokerId);
+            // produce requests still queued on the dead broker never run, their producers retry on the new leader
+            for(Runnable queued : requestHandlers.get(brokerId).shutdownNow()){
+                ProduceRequest request = (ProduceRequest) queued;
+                request.appended.completeExceptionally(request.replicas.leaderChanged());
+            }
+            for(List<PartitionReplicas> partitions : replicasByTopic.values()){
+                for(PartitionReplicas replicas : partitions){
+                    if(replicas.leaderId != brokerId){
+                        replicas.removeFromIsr(brokerId);
+                        continue;
+                    }
+                    // excludes the fetchers of this partition until every follower is back at the high watermark
+                    synchronized (replicas){
+                        if(!replicas.electLeader(deadBrokers)){
+                            System.out.println(String.format("%s-%d is offline, no in sync replica left", replicas.topicName, replicas.partitionIdx));
+                            continue;
+                        }
+                        long highWatermark = replicas.highWatermark();
+                        for(int replica : replicas.replicas){
+                            if(replica != replicas.leaderId && !deadBrokers.contains(replica)){
+                                Partition follower = partitionOn(replica, replicas);
+                                if(follower.logEndOffset() > highWatermark){
+                                    follower.truncateTo(highWatermark);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            signalReplication();
+        }
+
+        void shutdown(){
+            running = false;
+            signalReplication();
+            requestHandlers.forEach(ExecutorService::shutdown);
+            brokers.forEach(KafkaBroker::shutdown);
+        }
+    }
+
+    private static final int MAX_REPLICA_FETCH_RECORDS = 1000;
+
+    class KafkaBroker{
+        private static final int DEFAULT_STICKY_BATCH_SIZE = 16;
+
+        private static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+
+        Map<String, Topic> topics = new ConcurrentHashMap<>();
+        // null keeps partitions in memory only
+        private final Path logDir;
+        private final int segmentBytes;
+        private FetchServer fetchServer;
+        private LogCleaner logCleaner;
+
+        public KafkaBroker() {
+            this(null, DEFAULT_SEGMENT_BYTES);
+        }
+
+        public KafkaBroker(Path logDir, int segmentBytes) {
+            this.logDir = logDir;
+            this.segmentBytes = segmentBytes;
+        }
+
+        Lock topicCreationLock = new ReentrantLock();
+        OffsetsLog offsetsLog = new OffsetsLog();
+        MetricsRegistry metrics = new MetricsRegistry();
+        // consumers are long running poll loops, one thread each. volatile, the fetch server threads read it
+        volatile ExecutorService consumerExecutor = Executors.newCachedThreadPool();
+
+        /**
+         * consumers and fetch connections run on virtual threads when the jvm has them, at most maxConcurrency at once.
+         * a consumer holds its slot until it stops, the ones started beyond the cap queue up and neither startConsumer
+         * nor the fetch server block on them. has to be called before the first consumer or fetch server starts
+         */
+        void useVirtualThreads(int maxConcurrency){
+            consumerExecutor.shutdown();
+            consumerExecutor = new VirtualThreadExecutor("consumer", maxConcurrency);
+        }
+
+        void addTopic(String name, int partitions){
+            addTopic(name, partitions, new HashPartitioner(new StickyPartitioner(DEFAULT_STICKY_BATCH_SIZE)));
+        }
+
+        void addTopic(String name, int partitions, Partitioner partitioner){
+            topicCreationLock.lock();
+            try {
+                if (topics.containsKey(name)) {
+                    throw new RuntimeException("topic with name already exists, try giving some other name");
+                }
+                Topic topic = new Topic(name, partitions, partitioner, logDir, segmentBytes);
+                topic.publishedCounter = metrics.counter("topic." + name + ".published");
+                topic.partitions.forEach(partition -> partition.publishedCounter = metrics.counter("partition." + partition.name + ".published"));
+                topics.put(name, topic);
+            } finally {
+                topicCreationLock.unlock();
+            }
+        }
+
+        /**
+         * a topic keyed for changelog use, the log cleaner keeps only the latest record of every key
+         */
+        void addCompactedTopic(String name, int partitions){
+            addTopic(name, partitions);
+            topics.get(name).compacted = true;
+        }
+
+        void addConsumerGroup(String tName, String gName){
+            addConsumerGroup(tName, gName, new RangeAssignor());
+        }
+
+        synchronized void addConsumerGroup(String tName, String gName, PartitionAssignor assignor){
+            Topic topic = topics.get(tName);
+            if(findConsumerGroup(topic, gName) != null){
+                throw new RuntimeException("consumer group with name already exists for topic: " + tName);
+            }
+            ConsumerGroup consumerGroup = new ConsumerGroup(gName, topic, assignor, offsetsLog, metrics);
+            List<ConsumerGroup> consumerGroups = new ArrayList<>(topic.consumerGroups);
+            consumerGroups.add(consumerGroup);
+            // copy on write, producers read the list to compute backlog
+            topic.consumerGroups = consumerGroups;
+        }
+
+        /**
+         * joins the group, the consumer gets its partitions from the rebalance and starts from the committed offsets
+         */
+        synchronized Consumer subscribe(String tName, String gName, String consumerId){
+            Topic topic = topics.get(tName);
+            ConsumerGroup consumerGroup = findConsumerGroup(topic, gName);
+            if(consumerGroup == null){
+                addConsumerGroup(tName, gName);
+                consumerGroup = findConsumerGroup(topic, gName);
+            }
+            Consumer consumer = new Consumer(consumerId, consumerGroup);
+            consumerGroup.join(consumer);
+            return consumer;
+        }
+
+        Consumer startConsumer(String tName, String gName, String consumerId, MessageHandler handler){
+            Consumer consumer = subscribe(tName, gName, consumerId);
+            CompletableFuture.runAsync(() -> consumer.run(handler), consumerExecutor);
+            return consumer;
+        }
+
+        void stopConsumer(Consumer consumer){
+            consumer.close();
+            consumer.group.leave(consumer);
+        }
+
+        /**
+         * serves fetches of partition ranges over loopback, port 0 picks a free port. returns the bound port
+         */
+        synchronized int startFetchServer(int port){
+            if(logDir == null){
+                throw new RuntimeException("fetch server needs a broker with a log directory");
+            }
+            try {
+                fetchServer = new FetchServer(this, port);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Thread acceptor = new Thread(fetchServer, "fetch-server-" + fetchServer.port());
+            acceptor.setDaemon(true);
+            acceptor.start();
+            return fetchServer.port();
+        }
+
+        synchronized void startLogCleaner(int offsetMapEntries, long ioBytesPerSecond, long deleteRetentionMs, long intervalMs){
+            if(logDir == null){
+                throw new RuntimeException("log cleaner needs a broker with a log directory");
+            }
+            logCleaner = new LogCleaner(this, offsetMapEntries, ioBytesPerSecond, deleteRetentionMs, intervalMs);
+            Thread cleanerThread = new Thread(logCleaner, "log-cleaner");
+            cleanerThread.setDaemon(true);
+            cleanerThread.start();
+        }
+
+        void shutdown(){
+            topics.values().forEach(topic -> topic.consumerGroups.forEach(consumerGroup ->
+                    new ArrayList<>(consumerGroup.consumers).forEach(this::stopConsumer)));
+            if(fetchServer != null){
+                fetchServer.close();
+            }
+            if(logCleaner != null){
+                logCleaner.close();
+            }
+            metrics.stopExporter();
+            consumerExecutor.shutdown();
+            topics.values().forEach(topic -> topic.partitions.forEach(partition -> {
+                if(partition.log != null){
+                    partition.log.close();
+                }
+            }));
+        }
+
+        private ConsumerGroup findConsumerGroup(Topic topic, String gName){
+            for(ConsumerGroup consumerGroup : topic.consumerGroups){
+                if(consumerGroup.name.equals(gName)){
+                    return consumerGroup;
+                }
+            }
+            return null;
+        }
+
+        void publishMessage(String topicName, Message message){
+            // get all partitions from the topicName
+            // let the topic's partitioner pick the partition for the message
+
+            Topic topic = topics.get(topicName);
+            List<Partition> partitions = topic.partitions;
+
+            int partitionIdx = topic.partitioner.partition(topic, message);
+            Partition partition = partitions.get(partitionIdx);
+            partition.append(message);
+            topic.publishedCounter.increment();
+            partition.publishedCounter.increment();
+        }
+
+        /**
+         * prints a metrics snapshot every periodMillis until the broker shuts down
+         */
+        void startMetricsExporter(long periodMillis){
+            metrics.startExporter(periodMillis, System.out::println);
+        }
+
+        void printIngestStats(String topicName){
+            Topic topic = topics.get(topicName);
+            long totalMessages = 0;
+            for(Partition partition : topic.partitions){
+                totalMessages += partition.ingestedMessages.get();
+            }
+            System.out.println("ingest stats for topic: " + topicName);
+            for(Partition partition : topic.partitions){
+                long ingested = partition.ingestedMessages.get();
+                System.out.println(String.format("  %s messages: %d bytes: %d share: %.1f%%", partition.name, ingested,
+                        partition.ingestedBytes.get(), totalMessages == 0 ? 0.0 : 100.0 * ingested / totalMessages));
+            }
+        }
+
+        void consumeMessage(String topicName){
+            // get all CGs for the topic
+            // one pass of every member over its assigned partitions, long running consumers use startConsumer
+
+            Topic topic = topics.get(topicName);
+            List<ConsumerGroup> consumerGroups = topic.consumerGroups;
+
+            consumerGroups.forEach(consumerGroup -> {
+                new ArrayList<>(consumerGroup.consumers).forEach( consumer -> {
+                    CompletableFuture.runAsync(consumer::consume, consumerExecutor);
+                });
+            });
+        }
+    }
+
+    /**
+     * murmur2 32 bit hash, same variant kafka uses for keyed partitioning
+     */
+    @SuppressWarnings("fallthrough")
+    static int murmur2(byte[] data) {
+        int length = data.length;
+        int seed = 0x9747b28c;
+        final int m = 0x5bd1e995;
+        final int r = 24;
+
+        int h = seed ^ length;
+        int length4 = length / 4;
+
+        for (int i = 0; i < length4; i++) {
+            final int i4 = i * 4;
+            int k = (data[i4] & 0xff) + ((data[i4 + 1] & 0xff) << 8) + ((data[i4 + 2] & 0xff) << 16) + ((data[i4 + 3] & 0xff) << 24);
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h *= m;
+            h ^= k;
+        }
+
+        switch (length % 4) {
+            case 3:
+                h ^= (data[(length & ~3) + 2] & 0xff) << 16;
+                // fall through
+            case 2:
+                h ^= (data[(length & ~3) + 1] & 0xff) << 8;
+                // fall through
+            case 1:
+                h ^= data[length & ~3] & 0xff;
+                h *= m;
+        }
+
+        h ^= h >>> 13;
+        h *= m;
+        h ^= h >>> 15;
+
+        return h;
     }
 }
@@ -0,0 +1,89 @@
+package com.ratedra.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and latency histograms.
+ * Counters are LongAdders, so hot paths on many threads increment separate cells instead of one contended word.
+ * A snapshot reads everything once and reports counter rates since the previous snapshot.
+ */
+public class MetricsRegistry {
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Long> previousCounts = new ConcurrentHashMap<>();
+    private long previousSnapshotNanos = System.nanoTime();
+    private ScheduledExecutorService exporter;
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * one line per metric, sorted by name. counters show the total and the rate per second since the last snapshot,
+     * histograms are reported in microseconds
+     */
+    public synchronized String snapshot() {
+        long now = System.nanoTime();
+        double elapsedSeconds = Math.max(1, now - previousSnapshotNanos) / 1e9;
+        previousSnapshotNanos = now;
+
+        Map<String, String> lines = new TreeMap<>();
+        counters.forEach((name, counter) -> {
+            long count = counter.sum();
+            long previous = previousCounts.getOrDefault(name, 0L);
+            previousCounts.put(name, count);
+            lines.put(name, String.format("%s total=%d rate=%.1f/s", name, count, (count - previous) / elapsedSeconds));
+        });
+        gauges.forEach((name, gauge) -> lines.put(name, name + " value=" + gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            lines.put(name, String.format("%s count=%d p50=%dus p99=%dus p999=%dus max=%dus", name, snapshot.count(),
+                    snapshot.percentile(0.5) / 1000, snapshot.percentile(0.99) / 1000,
+                    snapshot.percentile(0.999) / 1000, snapshot.max() / 1000));
+        });
+        return String.join("\n", lines.values());
+    }
+
+    /**
+     * hands a snapshot to the sink every periodMillis on a daemon thread
+     */
+    public synchronized void startExporter(long periodMillis, Consumer<String> sink) {
+        if (exporter != null) {
+            return;
+        }
+        exporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exporter.scheduleAtFixedRate(() -> sink.accept(snapshot()), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopExporter() {
+        if (exporter != null) {
+            exporter.shutdown();
+            exporter = null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.ratedra.taskscheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Per task class token bucket and concurrency cap in front of the ready queue.
+ * a task of a limited class only goes to the ready queue once its class has a token and a free slot, until then it
+ * is parked in a fifo of its class, so a throttled class neither holds workers nor clogs the ready queue for the others.
+ * a slot is freed when the task completes or is dropped, that admits the next parked task. a class that ran out of
+ * tokens schedules one refill on the timing wheel for when the next token is due, nobody polls.
+ * tasks of classes without a limit pass straight through.
+ */
+class ClassLimiter {
+    private final Map<String, ClassLimit> limits = new ConcurrentHashMap<>();
+    private final Consumer<Task> admit;
+    private final TimingWheel timingWheel;
+    private final AtomicInteger parked = new AtomicInteger();
+    private final AtomicReference<Runnable> onDrained = new AtomicReference<>();
+
+    ClassLimiter(Consumer<Task> admit, TimingWheel timingWheel) {
+        this.admit = admit;
+        this.timingWheel = timingWheel;
+    }
+
+    /**
+     * permitsPerSecond refill a bucket of burst tokens, at most maxConcurrency tasks of the class are queued or running
+     */
+    void setLimit(String taskClass, double permitsPerSecond, int burst, int maxConcurrency) {
+        if (permitsPerSecond <= 0 || burst <= 0 || maxConcurrency <= 0) {
+            throw new RuntimeException("limits of " + taskClass + " have to be positive");
+        }
+        limits.put(taskClass, new ClassLimit(permitsPerSecond, burst, maxConcurrency));
+    }
+
+    int parked(String taskClass) {
+        ClassLimit limit = limits.get(taskClass);
+        return limit == null ? 0 : limit.parkedTasks();
+    }
+
+    void submit(Task task) {
+        ClassLimit limit = limits.get(task.taskClass);
+        if (limit == null) {
+            admit.accept(task);
+            return;
+        }
+        parked.incrementAndGet();
+        admitAll(limit.park(task));
+    }
+
+    /**
+     * the task finished or was dropped, its slot goes to the next parked task of the class
+     */
+    void completed(Task task) {
+        ClassLimit limit = limits.get(task.taskClass);
+        if (limit != null) {
+            admitAll(limit.release());
+        }
+    }
+
+    /**
+     * whenDrained runs once no task is parked anymore, right away if none is
+     */
+    void shutdown(Runnable whenDrained) {
+        onDrained.set(whenDrained);
+        if (parked.get() == 0) {
+            drained();
+        }
+    }
+
+    private void admitAll(List<Task> admitted) {
+        for (Task task : admitted) {
+            admit.accept(task);
+        }
+        if (!admitted.isEmpty() && parked.addAndGet(-admitted.size()) == 0) {
+            drained();
+        }
+    }
+
+    private void drained() {
+        // both the last admit and shutdown itself can get here, only one of them runs it
+        Runnable whenDrained = onDrained.getAndSet(null);
+        if (whenDrained != null) {
+            whenDrained.run();
+        }
+    }
+
+    private class ClassLimit {
+        private final double tokensPerNano;
+        private final int burst;
+        private final int maxConcurrency;
+        private final ArrayDeque<Task> waiting = new ArrayDeque<>();
+        private double tokens;
+        private long refilledNanos = System.nanoTime();
+        private int inFlight;
+        private boolean refillScheduled;
+
+        ClassLimit(double permitsPerSecond, int burst, int maxConcurrency) {
+            this.tokensPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.burst = burst;
+            this.maxConcurrency = maxConcurrency;
+            this.tokens = burst;
+        }
+
+        synchronized List<Task> park(Task task) {
+            waiting.add(task);
+            return admissible();
+        }
+
+        synchronized List<Task> release() {
+            inFlight--;
+            return admissible();
+        }
+
+        synchronized int parkedTasks() {
+            return waiting.size();
+        }
+
+        private void refill() {
+            List<Task> admitted;
+            synchronized (this) {
+                refillScheduled = false;
+                admitted = admissible();
+            }
+            admitAll(admitted);
+        }
+
+        private List<Task> admissible() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledNanos) * tokensPerNano);
+            refilledNanos = now;
+            List<Task> admitted = new ArrayList<>();
+            while (!waiting.isEmpty() && inFlight < maxConcurrency && tokens >= 1) {
+                tokens -= 1;
+                inFlight++;
+                admitted.add(waiting.poll());
+            }
+            // a free slot waits for a token, a full class waits for a completion instead
+            if (!waiting.isEmpty() && inFlight < maxConcurrency && !refillScheduled) {
+                refillScheduled = true;
+                long dueNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+                timingWheel.schedule(this::refill, dueNanos, TimeUnit.NANOSECONDS);
+            }
+            return admitted;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.ratedra.taskscheduler;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Earliest deadline first. tasks with a deadline go before tasks without one, those keep priority order.
+ *
+ * a task that can't finish by its deadline anymore, now plus its estimated runtime is past it, is shed when it
+ * reaches the head instead of taking a worker away from tasks that still can make it. the estimate is the larger of
+ * the task's own and the moving average runtime of the tasks completed so far. cancelled tasks are dropped the same way,
+ * so cancel is just a flag.
+ */
+class DeadlineQueue implements ReadyQueue {
+    private static final Comparator<Task> BY_DEADLINE = (task1, task2) -> {
+        if (task1.hasDeadline() != task2.hasDeadline()) {
+            return task1.hasDeadline() ? -1 : 1;
+        }
+        if (task1.hasDeadline()) {
+            int byDeadline = Long.compare(task1.deadlineNanos - task2.deadlineNanos, 0);
+            if (byDeadline != 0) {
+                return byDeadline;
+            }
+        }
+        return Task.BY_PRIORITY.compare(task1, task2);
+    };
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final PriorityQueue<Task> taskQueue = new PriorityQueue<>(BY_DEADLINE);
+    private final Consumer<Task> onShed;
+    private final Consumer<Task> onCancelled;
+    // exponentially weighted, 1/8 weight for every new sample
+    private volatile long averageRuntimeNanos;
+    private boolean running = true;
+
+    DeadlineQueue(Consumer<Task> onShed, Consumer<Task> onCancelled) {
+        this.onShed = onShed;
+        this.onCancelled = onCancelled;
+    }
+
+    @Override
+    public void offer(Task task) {
+        lock.lock();
+        try {
+            taskQueue.offer(task);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Task take(int workerId) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                while (taskQueue.isEmpty()) {
+                    if (!running) {
+                        return null;
+                    }
+                    notEmpty.await();
+                }
+                Task task = taskQueue.poll();
+                if (task.isCancelled()) {
+                    onCancelled.accept(task);
+                } else if (task.hasDeadline() && System.nanoTime() + estimatedRuntime(task) - task.deadlineNanos > 0) {
+                    onShed.accept(task);
+                } else {
+                    return task;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void completed(Task task) {
+        long ranNanos = System.nanoTime() - task.startedNanos;
+        long average = averageRuntimeNanos;
+        // racy read-modify-write, a lost sample doesn't matter for an estimate
+        averageRuntimeNanos = average == 0 ? ranNanos : average + (ranNanos - average) / 8;
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return taskQueue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long estimatedRuntime(Task task) {
+        // an estimate below what tasks actually take only turns shed tasks into missed ones
+        return Math.max(task.estimatedRuntimeNanos, averageRuntimeNanos);
+    }
+}
@@ -0,0 +1,193 @@
+package com.ratedra.taskscheduler;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multi level feedback queue with aging and weighted fair sharing between task classes.
+ *
+ * the level of a task is its priority, clamped to 0..LEVELS-1. every level is fifo, so the oldest task of a level is
+ * always at a head and aging needs no rescans: the effective priority of a level is its index minus how many aging
+ * quanta its oldest task waited, and take serves the level with the lowest effective priority, ties to the more
+ * important level. a task therefore waits at most level * agingNanos longer than the oldest task of level 0,
+ * nothing starves however much high priority work keeps coming, and without a backlog plain priority order holds.
+ *
+ * within a level every task class has its own fifo and the class with the least weighted run time goes first,
+ * run time is fed back from the workers when a task completes. take is O(LEVELS * classes with queued tasks).
+ */
+class FeedbackQueue implements ReadyQueue {
+    static final int LEVELS = 16;
+    private static final long WEIGHT_SCALE = 1024;
+
+    private final long agingNanos;
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Level[] levels = new Level[LEVELS];
+    private final Map<String, TaskClass> classes = new HashMap<>();
+    // virtual run time of the class served last, a class that was idle restarts from here instead of from its old debt
+    private long currentVirtualNanos;
+    private int size;
+    private boolean running = true;
+
+    FeedbackQueue(long agingNanos) {
+        this.agingNanos = agingNanos;
+        for (int i = 0; i < LEVELS; i++) {
+            levels[i] = new Level();
+        }
+    }
+
+    /**
+     * share of the workers a class gets relative to the other busy classes, 1 by default
+     */
+    void setWeight(String taskClass, int weight) {
+        if (weight <= 0) {
+            throw new RuntimeException("weight of " + taskClass + " has to be positive");
+        }
+        lock.lock();
+        try {
+            classOf(taskClass).weight = weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void offer(Task task) {
+        lock.lock();
+        try {
+            TaskClass taskClass = classOf(task.taskClass);
+            if (taskClass.queued == 0) {
+                taskClass.virtualNanos = Math.max(taskClass.virtualNanos, currentVirtualNanos);
+            }
+            taskClass.queued++;
+            levels[levelOf(task)].add(taskClass, task);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Task take(int workerId) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (!running) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            long now = System.nanoTime();
+            Level chosen = null;
+            long chosenPriority = Long.MAX_VALUE;
+            for (int i = 0; i < LEVELS; i++) {
+                Level level = levels[i];
+                if (level.size == 0) {
+                    continue;
+                }
+                long effectivePriority = i * agingNanos - (now - level.oldestEnqueuedNanos());
+                if (effectivePriority < chosenPriority) {
+                    chosen = level;
+                    chosenPriority = effectivePriority;
+                }
+            }
+            TaskClass taskClass = chosen.fairestClass();
+            Task task = chosen.poll(taskClass);
+            taskClass.queued--;
+            size--;
+            currentVirtualNanos = taskClass.virtualNanos;
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void completed(Task task) {
+        long ranNanos = Math.max(1, System.nanoTime() - task.startedNanos);
+        lock.lock();
+        try {
+            TaskClass taskClass = classOf(task.taskClass);
+            taskClass.virtualNanos += ranNanos * WEIGHT_SCALE / taskClass.weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private TaskClass classOf(String name) {
+        return classes.computeIfAbsent(name, key -> new TaskClass());
+    }
+
+    private static int levelOf(Task task) {
+        return Math.max(0, Math.min(LEVELS - 1, task.priority));
+    }
+
+    private static class TaskClass {
+        private int weight = 1;
+        private long virtualNanos;
+        private int queued;
+    }
+
+    private static class Level {
+        private final Map<TaskClass, ArrayDeque<Task>> queues = new LinkedHashMap<>();
+        private int size;
+
+        void add(TaskClass taskClass, Task task) {
+            queues.computeIfAbsent(taskClass, key -> new ArrayDeque<>()).add(task);
+            size++;
+        }
+
+        Task poll(TaskClass taskClass) {
+            size--;
+            return queues.get(taskClass).poll();
+        }
+
+        long oldestEnqueuedNanos() {
+            Task oldest = null;
+            for (ArrayDeque<Task> queue : queues.values()) {
+                Task head = queue.peek();
+                if (head != null && (oldest == null || head.enqueuedNanos - oldest.enqueuedNanos < 0)) {
+                    oldest = head;
+                }
+            }
+            return oldest.enqueuedNanos;
+        }
+
+        TaskClass fairestClass() {
+            TaskClass fairest = null;
+            for (Map.Entry<TaskClass, ArrayDeque<Task>> entry : queues.entrySet()) {
+                if (!entry.getValue().isEmpty() && (fairest == null || entry.getKey().virtualNanos < fairest.virtualNanos)) {
+                    fairest = entry.getKey();
+                }
+            }
+            return fairest;
+        }
+    }
+}
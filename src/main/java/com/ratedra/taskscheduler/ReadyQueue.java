@@ -0,0 +1,24 @@
+package com.ratedra.taskscheduler;
+
+/**
+ * Tasks that are ready to run, the workers of a TaskScheduler take from it.
+ * offer can be called from any thread, including the workers themselves.
+ */
+interface ReadyQueue {
+    void offer(Task task);
+
+    /**
+     * blocks until a task is available for the worker, returns null once shut down and drained
+     */
+    Task take(int workerId) throws InterruptedException;
+
+    /**
+     * the worker is done with a task it took, policies that track running work hook in here
+     */
+    default void completed(Task task) {
+    }
+
+    void shutdown();
+
+    int size();
+}
@@ -0,0 +1,12 @@
+package com.ratedra.taskscheduler;
+
+enum SchedulingMode {
+    // one priority queue shared by all workers
+    PRIORITY,
+    // a priority queue per worker, idle workers steal from the others
+    WORK_STEALING,
+    // a fifo per priority level with aging, weighted fair share between task classes inside a level
+    MLFQ,
+    // earliest deadline first, tasks that can't make their deadline anymore are shed
+    EDF
+}
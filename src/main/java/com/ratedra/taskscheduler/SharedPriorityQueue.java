@@ -0,0 +1,65 @@
+package com.ratedra.taskscheduler;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * a single lock guarded priority queue, strict priority order across all workers
+ */
+class SharedPriorityQueue implements ReadyQueue {
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Queue<Task> taskQueue = new PriorityQueue<>(Task.BY_PRIORITY);
+    private boolean running = true;
+
+    @Override
+    public void offer(Task task) {
+        lock.lock();
+        try {
+            taskQueue.offer(task);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Task take(int workerId) throws InterruptedException {
+        lock.lock();
+        try {
+            while (taskQueue.isEmpty()) {
+                if (!running) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return taskQueue.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return taskQueue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.ratedra.taskscheduler;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+class Task{
+    // lower priority value first, then the longer remaining critical path, fifo among the rest
+    static final Comparator<Task> BY_PRIORITY = (task1, task2) -> {
+        int byPriority = task1.priority.compareTo(task2.priority);
+        if (byPriority != 0) {
+            return byPriority;
+        }
+        int byCriticalPath = Long.compare(task2.criticalPathNanos, task1.criticalPathNanos);
+        return byCriticalPath != 0 ? byCriticalPath : Long.compare(task1.sequence, task2.sequence);
+    };
+
+    static final String DEFAULT_CLASS = "default";
+
+    String name;
+    Integer priority;
+    // null just prints the execution order
+    Runnable work;
+    // fifo among equal priorities
+    long sequence;
+    long enqueuedNanos;
+    // estimated time from this task to the end of its graph, 0 for tasks outside a graph
+    long criticalPathNanos;
+    // tenant or kind of work, MLFQ mode shares the workers between classes by weight
+    String taskClass = DEFAULT_CLASS;
+    long startedNanos;
+    // System.nanoTime based, 0 for no deadline
+    long deadlineNanos;
+    // 0 leaves the estimate to the scheduler
+    long estimatedRuntimeNanos;
+    private volatile boolean cancelled;
+
+    public Task(String name, Integer priority) {
+        this(name, priority, null);
+    }
+
+    public Task(String name, Integer priority, Runnable work) {
+        this.name = name;
+        this.priority = priority;
+        this.work = work;
+    }
+
+    /**
+     * a fresh task for every run of a recurring one, a task already queued must not change its ordering fields
+     */
+    Task copy(){
+        return new Task(name, priority, work).withClass(taskClass);
+    }
+
+    public Task withClass(String taskClass){
+        this.taskClass = taskClass;
+        return this;
+    }
+
+    /**
+     * the task is worthless once this much time passed from now
+     */
+    public Task withDeadline(long timeout, TimeUnit unit){
+        // 0 means no deadline, a deadline that happens to land on 0 moves by a nanosecond
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.deadlineNanos = deadline == 0 ? 1 : deadline;
+        return this;
+    }
+
+    public Task withEstimatedRuntime(long runtime, TimeUnit unit){
+        this.estimatedRuntimeNanos = unit.toNanos(runtime);
+        return this;
+    }
+
+    boolean hasDeadline(){
+        return deadlineNanos != 0;
+    }
+
+    /**
+     * O(1), the task stays queued and is dropped when a worker takes it, a task already running finishes
+     */
+    public void cancel(){
+        cancelled = true;
+    }
+
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
+    @Override
+    public String toString() {
+        return
+                 name + " "
+                 + priority;
+    }
+}
@@ -0,0 +1,266 @@
+package com.ratedra.taskscheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * A batch job as a dependency graph of tasks. a task becomes ready once all of its parents completed.
+ * ready tasks of a graph carry their longest remaining path to the end of the graph, estimates included, and the
+ * scheduler runs the longest one first among equal priorities, so the chain that bounds the makespan never waits
+ * behind work that has slack.
+ *
+ * a task whose work throws fails the graph, its descendants are skipped, independent branches keep running and the
+ * graph still completes.
+ */
+class TaskGraph {
+    private final String name;
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private boolean orderByCriticalPath = true;
+    private TaskScheduler scheduler;
+    private int priority;
+    private AtomicInteger remaining;
+    private volatile boolean failed;
+    private long criticalPathNanos;
+    private long submittedNanos;
+    private volatile long makespanNanos;
+
+    TaskGraph(String name) {
+        this.name = name;
+    }
+
+    /**
+     * dependencies are task names of this graph, they can be added before or after the task itself
+     */
+    public synchronized TaskGraph addTask(String taskName, long estimatedMillis, Runnable work, String... dependsOn) {
+        if (scheduler != null) {
+            throw new RuntimeException("graph " + name + " is already submitted");
+        }
+        if (nodes.containsKey(taskName)) {
+            throw new RuntimeException("graph " + name + " already has a task " + taskName);
+        }
+        nodes.put(taskName, new Node(taskName, TimeUnit.MILLISECONDS.toNanos(estimatedMillis), work, Arrays.asList(dependsOn)));
+        return this;
+    }
+
+    /**
+     * false runs ready tasks in the order they became ready, only there to compare against
+     */
+    public void setOrderByCriticalPath(boolean orderByCriticalPath) {
+        this.orderByCriticalPath = orderByCriticalPath;
+    }
+
+    /**
+     * validates the graph and hands its root tasks to the scheduler, throws on unknown dependencies and cycles
+     */
+    synchronized void submit(TaskScheduler scheduler, int priority) {
+        if (this.scheduler != null) {
+            throw new RuntimeException("graph " + name + " is already submitted");
+        }
+        List<Node> order = link();
+        computeCriticalPaths(order);
+        this.scheduler = scheduler;
+        this.priority = priority;
+        this.remaining = new AtomicInteger(nodes.size());
+        this.submittedNanos = System.nanoTime();
+        if (nodes.isEmpty()) {
+            finish();
+            return;
+        }
+        for (Node node : nodes.values()) {
+            if (node.parents.isEmpty()) {
+                release(node);
+            }
+        }
+    }
+
+    public void awaitCompletion() throws InterruptedException {
+        done.await();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public long getMakespanNanos() {
+        return makespanNanos;
+    }
+
+    public long getCriticalPathNanos() {
+        return criticalPathNanos;
+    }
+
+    /**
+     * resolves dependency names and returns the tasks in topological order (kahn), throws when some are left in a cycle
+     */
+    private List<Node> link() {
+        // a submit that failed validation already linked some edges
+        for (Node node : nodes.values()) {
+            node.parents.clear();
+            node.children.clear();
+        }
+        for (Node node : nodes.values()) {
+            for (String parentName : node.dependsOn) {
+                Node parent = nodes.get(parentName);
+                if (parent == null) {
+                    throw new RuntimeException("task " + node.name + " of graph " + name + " depends on unknown task " + parentName);
+                }
+                node.parents.add(parent);
+                parent.children.add(node);
+            }
+        }
+        Map<Node, Integer> inDegree = new LinkedHashMap<>();
+        Deque<Node> ready = new ArrayDeque<>();
+        for (Node node : nodes.values()) {
+            inDegree.put(node, node.parents.size());
+            if (node.parents.isEmpty()) {
+                ready.add(node);
+            }
+        }
+        List<Node> order = new ArrayList<>(nodes.size());
+        for (Node node : nodes.values()) {
+            node.pendingParents.set(node.parents.size());
+        }
+        while (!ready.isEmpty()) {
+            Node node = ready.poll();
+            order.add(node);
+            for (Node child : node.children) {
+                if (inDegree.merge(child, -1, Integer::sum) == 0) {
+                    ready.add(child);
+                }
+            }
+        }
+        if (order.size() < nodes.size()) {
+            String cycle = inDegree.entrySet().stream()
+                    .filter(entry -> entry.getValue() > 0)
+                    .map(entry -> entry.getKey().name)
+                    .collect(Collectors.joining(", "));
+            throw new RuntimeException("graph " + name + " has a cycle through: " + cycle);
+        }
+        return order;
+    }
+
+    // longest path from each task to the end of the graph, walked in reverse topological order
+    private void computeCriticalPaths(List<Node> order) {
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Node node = order.get(i);
+            long longestChild = 0;
+            for (Node child : node.children) {
+                longestChild = Math.max(longestChild, child.criticalPathNanos);
+            }
+            node.criticalPathNanos = node.estimateNanos + longestChild;
+            criticalPathNanos = Math.max(criticalPathNanos, node.criticalPathNanos);
+        }
+    }
+
+    private void release(Node node) {
+        if (!schedule(node)) {
+            completed(node);
+        }
+    }
+
+    /**
+     * hands the task of a node whose parents all completed to the scheduler, false when it never runs because it
+     * was skipped or the scheduler refused it
+     */
+    private boolean schedule(Node node) {
+        if (node.skipped) {
+            // never runs, its children are skipped too and released so the graph still completes
+            skipChildren(node);
+            return false;
+        }
+        Task task = new Task(name + "/" + node.name, priority, () -> run(node));
+        task.criticalPathNanos = orderByCriticalPath ? node.criticalPathNanos : 0;
+        try {
+            scheduler.addTask(task);
+            return true;
+        } catch (RuntimeException e) {
+            // the scheduler shut down, the task won't run but still has to count as done
+            fail(node, e);
+            return false;
+        }
+    }
+
+    private void run(Node node) {
+        try {
+            if (node.work != null) {
+                node.work.run();
+            }
+        } catch (RuntimeException e) {
+            fail(node, e);
+        } finally {
+            completed(node);
+        }
+    }
+
+    private void fail(Node node, RuntimeException e) {
+        failed = true;
+        System.out.println("task " + node.name + " of graph " + name + " failed, skipping its descendants: " + e.getMessage());
+        skipChildren(node);
+    }
+
+    // before the children's pending count drops, which publishes the flag to whoever releases them
+    private void skipChildren(Node node) {
+        for (Node child : node.children) {
+            child.skipped = true;
+        }
+    }
+
+    // a work list instead of recursion, a failure above a long chain completes every skipped node of it right here
+    private void completed(Node node) {
+        Deque<Node> finished = new ArrayDeque<>();
+        finished.push(node);
+        while (!finished.isEmpty()) {
+            Node next = finished.pop();
+            for (Node child : next.children) {
+                if (child.pendingParents.decrementAndGet() == 0 && !schedule(child)) {
+                    finished.push(child);
+                }
+            }
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+    }
+
+    private void finish() {
+        makespanNanos = System.nanoTime() - submittedNanos;
+        scheduler.getMetrics().histogram("graph.makespan").record(makespanNanos);
+        System.out.println(String.format("graph %s %s in %.1fms, critical path %.1fms",
+                name, failed ? "failed" : "finished", makespanNanos / 1e6, criticalPathNanos / 1e6));
+        done.countDown();
+    }
+
+    private static class Node {
+        private final String name;
+        private final long estimateNanos;
+        private final Runnable work;
+        private final List<String> dependsOn;
+        private final List<Node> parents = new ArrayList<>();
+        private final List<Node> children = new ArrayList<>();
+        private final AtomicInteger pendingParents = new AtomicInteger();
+        private long criticalPathNanos;
+        // a parent failed or was skipped
+        private volatile boolean skipped;
+
+        Node(String name, long estimateNanos, Runnable work, List<String> dependsOn) {
+            this.name = name;
+            this.estimateNanos = estimateNanos;
+            this.work = work;
+            this.dependsOn = dependsOn;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.ratedra.taskscheduler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.ratedra.journal.GroupCommitLog;
+
+/**
+ * Write ahead journal of task submissions and completions on a GroupCommitLog: a submitted task is handed to
+ * onDurable only once its record is fsynced with the rest of its batch. completions are journaled the same way but
+ * nobody waits for them, a completion lost in a crash just runs the task again, so tasks are at least once.
+ * a submission the journal failed to write goes to onLost instead.
+ *
+ * the journal is a sequence of generations journal-<n>.log, each starting with a checkpoint of the submit records
+ * of all tasks that were unfinished when it was opened.
+ *
+ * record layout: [int payload length][int crc32 of payload][byte type][long id] and for submits [int priority][int nameLen][name]
+ * [int classLen][class][long deadline][long estimated runtime nanos]. the deadline is wall clock epoch millis, 0 for none,
+ * nanoTime doesn't survive a restart. submits of older journals end after the name and recover with the defaults.
+ */
+class TaskJournal extends GroupCommitLog<TaskJournal.Entry> {
+    private static final byte SUBMIT = 1;
+    private static final byte COMPLETE = 2;
+    private static final byte CHECKPOINT = 3;
+
+    private final Consumer<Task> onDurable;
+    private final Consumer<Task> onLost;
+    // unfinished tasks by id, filled by replay and then only touched by the writer
+    private final Map<Long, Task> live = new HashMap<>();
+    private final List<Task> recovered;
+
+    TaskJournal(Path dir, long checkpointBytes, Consumer<Task> onDurable, Consumer<Task> onLost) {
+        super(dir, "journal", "task journal", checkpointBytes, CHECKPOINT);
+        this.onDurable = onDurable;
+        this.onLost = onLost;
+        open();
+        // nothing was appended yet, the writer leaves live alone until then
+        recovered = new ArrayList<>(live.values());
+        recovered.sort(Comparator.comparingLong(task -> task.sequence));
+    }
+
+    /**
+     * unfinished tasks found at startup, ordered by id, they are already part of the new generation's checkpoint
+     */
+    List<Task> recoveredTasks() {
+        return recovered;
+    }
+
+    void submitted(Task task) {
+        append(new Entry(SUBMIT, task));
+    }
+
+    void completed(Task task) {
+        append(new Entry(COMPLETE, task));
+    }
+
+    @Override
+    protected void apply(Entry entry) throws IOException {
+        if (entry.type == SUBMIT) {
+            live.put(entry.task.sequence, entry.task);
+            seenId(entry.task.sequence);
+            writeSubmit(entry.task);
+        } else {
+            live.remove(entry.task.sequence);
+            beginRecord(COMPLETE, entry.task.sequence, 0);
+            endRecord();
+        }
+    }
+
+    @Override
+    protected void durable(Entry entry) {
+        if (entry.type == SUBMIT) {
+            onDurable.accept(entry.task);
+        }
+    }
+
+    @Override
+    protected void lost(Entry entry, IOException cause) {
+        if (entry.type == SUBMIT) {
+            onLost.accept(entry.task);
+        }
+    }
+
+    @Override
+    protected void checkpoint() throws IOException {
+        List<Task> liveTasks = new ArrayList<>(live.values());
+        liveTasks.sort(Comparator.comparingLong(task -> task.sequence));
+        for (Task task : liveTasks) {
+            writeSubmit(task);
+        }
+    }
+
+    @Override
+    protected void replayStarting() {
+        live.clear();
+    }
+
+    @Override
+    protected void replay(byte type, long id, ByteBuffer body) {
+        if (type == SUBMIT) {
+            int priority = body.getInt();
+            Task task = new Task(readString(body), priority);
+            task.sequence = id;
+            if (body.hasRemaining()) {
+                task.taskClass = readString(body);
+                long deadlineMillis = body.getLong();
+                if (deadlineMillis != 0) {
+                    // an expired deadline stays expired, EDF sheds the task instead of running it late
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis - System.currentTimeMillis());
+                    task.deadlineNanos = deadline == 0 ? 1 : deadline;
+                }
+                task.estimatedRuntimeNanos = body.getLong();
+            }
+            live.put(id, task);
+            seenId(id);
+        } else if (type == COMPLETE) {
+            live.remove(id);
+        }
+    }
+
+    private void writeSubmit(Task task) throws IOException {
+        byte[] name = task.name.getBytes(StandardCharsets.UTF_8);
+        byte[] taskClass = task.taskClass.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = beginRecord(SUBMIT, task.sequence, 4 + 4 + name.length + 4 + taskClass.length + 8 + 8);
+        buffer.putInt(task.priority);
+        buffer.putInt(name.length);
+        buffer.put(name);
+        buffer.putInt(taskClass.length);
+        buffer.put(taskClass);
+        buffer.putLong(task.hasDeadline() ? System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(task.deadlineNanos - System.nanoTime()) : 0);
+        buffer.putLong(task.estimatedRuntimeNanos);
+        endRecord();
+    }
+
+    static class Entry {
+        private final byte type;
+        private final Task task;
+
+        Entry(byte type, Task task) {
+            this.type = type;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.ratedra.taskscheduler;
+
+import com.ratedra.metrics.LatencyHistogram;
+import com.ratedra.metrics.MetricsRegistry;
+import com.ratedra.thread.VirtualThreadExecutor;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class TaskScheduler{
+    private static final int THREAD_POOL_SIZE = 5;
+    private static final long TIMER_TICK_MILLIS = 1;
+    private static final long JOURNAL_CHECKPOINT_BYTES = 64L << 20;
+    private static final long MLFQ_AGING_MILLIS = 10;
+    // priorities below this get their wait histogram from an array instead of a lookup by name per task
+    private static final int CACHED_PRIORITIES = 16;
+    private final int workerCount;
+    private ReadyQueue taskQueue;
+    private List<Thread> workers;
+    private TimingWheel timingWheel;
+    private ClassLimiter classLimiter;
+    // null runs tasks on the fixed workers
+    private VirtualThreadExecutor virtualThreads;
+    // null when submissions are not journaled
+    private TaskJournal journal;
+    private MetricsRegistry metrics;
+    private final LatencyHistogram[] waitHistograms = new LatencyHistogram[CACHED_PRIORITIES];
+    private AtomicLong sequence;
+    private volatile boolean running;
+    private boolean started;
+
+    private Integer count = 0;
+
+
+    public TaskScheduler() {
+        this(SchedulingMode.PRIORITY, THREAD_POOL_SIZE);
+    }
+
+    public TaskScheduler(SchedulingMode mode, int workerCount) {
+        this(mode, workerCount, null, null);
+    }
+
+    /**
+     * journals every task into journalDir and requeues the unfinished tasks of a previous run found there on start,
+     * with their class, deadline and estimate. their work is not journaled so workResolver rebuilds it from the task
+     */
+    public TaskScheduler(SchedulingMode mode, int workerCount, Path journalDir, Function<Task, Runnable> workResolver) {
+        this.workerCount = workerCount;
+        switch (mode){
+            case WORK_STEALING:
+                taskQueue = new WorkStealingQueue(workerCount);
+                break;
+            case MLFQ:
+                taskQueue = new FeedbackQueue(TimeUnit.MILLISECONDS.toNanos(MLFQ_AGING_MILLIS));
+                break;
+            case EDF:
+                taskQueue = new DeadlineQueue(task -> dropped(task, "tasks.shed"), task -> dropped(task, "tasks.cancelled"));
+                break;
+            default:
+                taskQueue = new SharedPriorityQueue();
+        }
+        workers = new ArrayList<>();
+        metrics = new MetricsRegistry();
+        sequence = new AtomicLong();
+        running = true;
+        // expired timers join the ready queue like any other task, the wheel outlives shutdown until parked tasks are admitted
+        timingWheel = new TimingWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, entry -> {
+            if(running){
+                addTask(entry.periodTicks > 0 ? entry.task.copy() : entry.task);
+            }
+        });
+        classLimiter = new ClassLimiter(taskQueue::offer, timingWheel);
+        if(journalDir != null){
+            // a submitted task joins the ready queue once its record is durable, it is lost when the journal failed
+            journal = new TaskJournal(journalDir, JOURNAL_CHECKPOINT_BYTES, classLimiter::submit,
+                    task -> metrics.counter("tasks.journal.lost").increment());
+            sequence.set(journal.nextId());
+            for(Task task : journal.recoveredTasks()){
+                task.work = workResolver.apply(task);
+            }
+        }
+    }
+
+    /**
+     * runs the task once after delay, cancel the returned entry to drop it
+     */
+    public TimerEntry schedule(Task task, long delay, TimeUnit unit){
+        return timingWheel.schedule(task, delay, 0, unit);
+    }
+
+    /**
+     * runs the task after initialDelay and then every period until the returned entry is cancelled
+     */
+    public TimerEntry scheduleAtFixedRate(Task task, long initialDelay, long period, TimeUnit unit){
+        return timingWheel.schedule(task, initialDelay, period, unit);
+    }
+
+    /**
+     * runs a dependency graph, its tasks join the ready queue with the given priority as their parents complete
+     */
+    public void submitGraph(TaskGraph graph, int priority){
+        if(!running){
+            throw new RuntimeException("scheduler is shut down, can't accept graph " + graph.getName());
+        }
+        graph.submit(this, priority);
+    }
+
+    /**
+     * weight of a task class relative to the others, only MLFQ mode shares by class
+     */
+    public void setClassWeight(String taskClass, int weight){
+        if(!(taskQueue instanceof FeedbackQueue)){
+            throw new RuntimeException("task class weights need MLFQ mode");
+        }
+        ((FeedbackQueue) taskQueue).setWeight(taskClass, weight);
+    }
+
+    /**
+     * caps a task class at permitsPerSecond with bursts of up to burst tasks and at most maxConcurrency tasks queued or
+     * running, the rest of the class is parked outside the ready queue. set limits before submitting tasks of the class
+     */
+    public void setClassLimit(String taskClass, double permitsPerSecond, int burst, int maxConcurrency){
+        classLimiter.setLimit(taskClass, permitsPerSecond, burst, maxConcurrency);
+        metrics.gauge("class." + taskClass + ".parked", () -> classLimiter.parked(taskClass));
+    }
+
+    /**
+     * runs every task on a thread of its own, at most maxConcurrency at once, instead of on the fixed workers.
+     * one dispatcher takes tasks from the ready queue in its order and waits for a free slot, so ordering still holds.
+     * has to be called before start
+     */
+    public synchronized void setVirtualThreads(int maxConcurrency){
+        if(started){
+            throw new RuntimeException("scheduler already started");
+        }
+        virtualThreads = new VirtualThreadExecutor("task", maxConcurrency);
+        metrics.gauge("tasks.in.flight", virtualThreads::inFlight);
+    }
+
+    public void addTask(Task task){
+        if(!running){
+            throw new RuntimeException("scheduler is shut down, can't accept " + task);
+        }
+        task.sequence = sequence.getAndIncrement();
+        task.enqueuedNanos = System.nanoTime();
+        if(journal != null){
+            journal.submitted(task);
+            return;
+        }
+        classLimiter.submit(task);
+    }
+
+    /**
+     * starts the workers, they keep taking the highest priority task until shutdown
+     */
+    public synchronized void start(){
+        if(started){
+            return;
+        }
+        started = true;
+        if(journal != null){
+            // admitted only now so the class limits set since construction hold for the recovered tasks too
+            for(Task task : journal.recoveredTasks()){
+                task.enqueuedNanos = System.nanoTime();
+                classLimiter.submit(task);
+            }
+        }
+        if(virtualThreads != null){
+            Thread dispatcher = new Thread(this::dispatch, "task-dispatcher");
+            workers.add(dispatcher);
+            dispatcher.start();
+            return;
+        }
+        for(int i=0; i<workerCount; i++){
+            int workerId = i;
+            Thread worker = new Thread(() -> runWorker(workerId), "task-worker-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * stops accepting tasks, workers finish what is already queued and exit
+     */
+    public void shutdown(){
+        running = false;
+        if(journal != null){
+            try {
+                // tasks still waiting for their fsync must reach the ready queue before the workers drain it
+                journal.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // parked tasks still count as queued, the workers stop once the last of them was admitted and ran
+        classLimiter.shutdown(() -> {
+            timingWheel.stop();
+            taskQueue.shutdown();
+        });
+    }
+
+    /**
+     * waits for the workers, the journal is closed after them so their last completions are recorded
+     */
+    public void awaitTermination() throws InterruptedException {
+        for(Thread worker : workers){
+            worker.join();
+        }
+        if(journal != null){
+            journal.close();
+        }
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    private void runWorker(int workerId){
+        while(true){
+            Task task;
+            try {
+                task = taskQueue.take(workerId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if(task == null){
+                return;
+            }
+            run(task);
+        }
+    }
+
+    // hands every task to a thread of its own, the executor blocks while all slots are taken
+    private void dispatch(){
+        while(true){
+            Task task;
+            try {
+                task = taskQueue.take(0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if(task == null){
+                break;
+            }
+            // waits for a free slot instead of queueing, the ready queue keeps deciding what runs next
+            virtualThreads.executeBlocking(() -> run(task));
+        }
+        virtualThreads.shutdown();
+        try {
+            virtualThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(Task task){
+        if(task.isCancelled()){
+            dropped(task, "tasks.cancelled");
+            return;
+        }
+        task.startedNanos = System.nanoTime();
+        waitHistogram(task.priority).record(task.startedNanos - task.enqueuedNanos);
+        execute(task);
+        if(task.hasDeadline()){
+            metrics.counter(System.nanoTime() - task.deadlineNanos <= 0 ? "deadline.met" : "deadline.missed").increment();
+        }
+        // the bookkeeping first, a journal that failed must not keep the class slot or the queue's running count
+        taskQueue.completed(task);
+        classLimiter.completed(task);
+        journalCompleted(task);
+    }
+
+    // a task that will never run is done as far as the journal and its class limit are concerned
+    private void dropped(Task task, String counter){
+        metrics.counter(counter).increment();
+        classLimiter.completed(task);
+        journalCompleted(task);
+    }
+
+    private void journalCompleted(Task task){
+        if(journal == null){
+            return;
+        }
+        try {
+            journal.completed(task);
+        } catch (UncheckedIOException e) {
+            // the journal failed or closed, the worker keeps going and a restart runs the task again
+            metrics.counter("tasks.journal.lost").increment();
+        }
+    }
+
+    private LatencyHistogram waitHistogram(int priority){
+        if(priority < 0 || priority >= CACHED_PRIORITIES){
+            return metrics.histogram("priority." + priority + ".queue.wait");
+        }
+        // filled on first use so only priorities that ran show up, a racing worker looks up the same histogram
+        LatencyHistogram histogram = waitHistograms[priority];
+        if(histogram == null){
+            histogram = metrics.histogram("priority." + priority + ".queue.wait");
+            waitHistograms[priority] = histogram;
+        }
+        return histogram;
+    }
+
+    private void execute(Task task){
+        try {
+            if(task.work != null){
+                task.work.run();
+                return;
+            }
+            int executed;
+            synchronized (this){
+                count = count+1;
+                executed = count;
+            }
+
+                System.out.println("executing -> " + task.toString() + " count " + executed);
+        } catch (RuntimeException e){
+            System.out.println("task " + task.name + " failed: " + e.getMessage());
+        }
+    }
+}
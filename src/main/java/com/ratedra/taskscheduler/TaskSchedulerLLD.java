@@ -1,12 +1,22 @@
 package com.ratedra.taskscheduler;
 
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import com.ratedra.metrics.LatencyHistogram;
+import com.ratedra.metrics.MetricsRegistry;
+import com.ratedra.thread.VirtualThreadExecutor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -17,9 +27,21 @@ import java.util.concurrent.locks.ReentrantLock;
  * The task scheduler should provide a method to add tasks with their priority to the scheduler.
  * The task scheduler should execute the tasks concurrently using multiple worker threads.
  * The task scheduler should print the execution order of the tasks as they are completed.
+ * Tasks can also be delayed or recurring, those wait in a hierarchical timing wheel until they are due.
+ * Workers take the next task straight from the priority queue, so a task added at any time, even under a deep backlog,
+ * runs as soon as a worker frees up if nothing more important is waiting.
+ * In WORK_STEALING mode every worker has its own priority deque and idle workers steal from the others.
+ * A TaskGraph submits a DAG of tasks, each runs once its parents completed, longest remaining critical path first.
+ * With a journal directory every submission and completion goes to a group committed write ahead journal, a restarted
+ * scheduler replays the tasks that never completed.
+ * In MLFQ mode waiting tasks age towards the top level so low priority work can't starve, and task classes
+ * (tenants) share the workers by weight.
+ * In EDF mode the task with the earliest deadline runs first and tasks that would finish late are shed unrun.
+ * A task class can get its own rate limit and concurrency cap, its excess tasks wait parked outside the ready queue.
+ * For blocking tasks the fixed workers can be swapped for a thread per task, virtual when the jvm has them.
  */
 public class TaskSchedulerLLD {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         TaskScheduler scheduler = new TaskScheduler();
 
         scheduler.addTask(new Task("Task A", 2));
@@ -35,65 +57,382 @@ public class TaskSchedulerLLD {
         scheduler.addTask(new Task("Task J", 3));
 
         scheduler.start();
+
+        timerDemo(scheduler);
+        scheduler.shutdown();
+        scheduler.awaitTermination();
+
+        timerScaleBenchmark();
+        priorityUnderLoadBenchmark();
+        workStealingBenchmark();
+        taskGraphDemo();
+        journalRecoveryBenchmark();
+        starvationBenchmark();
+        fairShareDemo();
+        deadlineBenchmark();
+        classLimitDemo();
+        virtualThreadBenchmark();
     }
-}
 
-class Task{
-    String name;
-    Integer priority;
+    /**
+     * io bound tasks that block for 20ms, the fixed pool runs 5 at a time, the virtual thread mode up to 10 000
+     */
+    private static void virtualThreadBenchmark() throws InterruptedException {
+        System.out.println("virtual threads supported: " + VirtualThreadExecutor.isSupported());
+        for (int tasks : new int[]{1_000, 20_000}) {
+            for (boolean virtual : new boolean[]{false, true}) {
+                if (!virtual && tasks > 1_000) {
+                    // 20 000 * 20ms / 5 workers, over a minute
+                    continue;
+                }
+                TaskScheduler scheduler = new TaskScheduler();
+                if (virtual) {
+                    scheduler.setVirtualThreads(10_000);
+                }
+                LongAdder done = new LongAdder();
+                scheduler.start();
+                long start = System.nanoTime();
+                for (int i = 0; i < tasks; i++) {
+                    scheduler.addTask(new Task("io-" + i, 5, () -> { sleep(20); done.increment(); }));
+                }
+                scheduler.shutdown();
+                scheduler.awaitTermination();
+                long elapsedNanos = System.nanoTime() - start;
+                System.out.println(String.format("%s tasks: %d elapsed: %.0fms throughput: %.0f tasks/s",
+                        virtual ? "virtual threads" : "fixed pool", done.sum(),
+                        elapsedNanos / 1e6, done.sum() * 1e9 / elapsedNanos));
+            }
+        }
+    }
 
-    public Task(String name, Integer priority) {
-        this.name = name;
-        this.priority = priority;
+    /**
+     * a flood of high priority payment calls to a downstream that allows 200 calls/s and 2 at a time, next to
+     * lower priority search tasks. the parked payments neither hold workers nor delay search
+     */
+    private static void classLimitDemo() throws InterruptedException {
+        for (boolean limited : new boolean[]{false, true}) {
+            TaskScheduler scheduler = new TaskScheduler(SchedulingMode.PRIORITY, THREADS_FOR_BENCHMARK);
+            if (limited) {
+                scheduler.setClassLimit("payments", 200, 10, 2);
+            }
+            LongAdder payments = new LongAdder();
+            scheduler.start();
+            for (int i = 0; i < 400; i++) {
+                scheduler.addTask(new Task("payment-" + i, 1, () -> { payments.increment(); sleep(5); }).withClass("payments"));
+            }
+            for (int i = 0; i < 200; i++) {
+                scheduler.addTask(new Task("search-" + i, 5, () -> sleep(1)).withClass("search"));
+                Thread.sleep(2);
+            }
+            long paymentsDone = payments.sum();
+            scheduler.shutdown();
+            scheduler.awaitTermination();
+            LatencyHistogram.Snapshot searchWaits = scheduler.getMetrics().histogram("priority.5.queue.wait").snapshot();
+            System.out.println(String.format("limited: %s payments after ~500ms: %d search wait p50: %.1fms p99: %.1fms",
+                    limited, paymentsDone, searchWaits.percentile(0.5) / 1e6, searchWaits.percentile(0.99) / 1e6));
+        }
     }
 
-    @Override
-    public String toString() {
-        return
-                 name + " "
-                 + priority;
+    /**
+     * overload with deadlines 20 to 200ms out and priorities unrelated to them, goodput is tasks finished in time per second
+     */
+    private static void deadlineBenchmark() throws InterruptedException {
+        for (SchedulingMode mode : new SchedulingMode[]{SchedulingMode.PRIORITY, SchedulingMode.EDF}) {
+            TaskScheduler scheduler = new TaskScheduler(mode, THREADS_FOR_BENCHMARK);
+            scheduler.start();
+            Runnable work = () -> sleep(1);
+            List<Task> submitted = new ArrayList<>();
+            long start = System.nanoTime();
+            long until = start + TimeUnit.SECONDS.toNanos(2);
+            while (System.nanoTime() < until) {
+                for (int i = 0; i < 6; i++) {
+                    Task task = new Task("request", ThreadLocalRandom.current().nextInt(1, 10), work)
+                            .withDeadline(20 + ThreadLocalRandom.current().nextInt(180), TimeUnit.MILLISECONDS)
+                            .withEstimatedRuntime(1, TimeUnit.MILLISECONDS);
+                    scheduler.addTask(task);
+                    submitted.add(task);
+                }
+                Thread.sleep(1);
+            }
+            // the client gave up on every tenth request
+            for (int i = 0; i < submitted.size(); i += 10) {
+                submitted.get(i).cancel();
+            }
+            scheduler.shutdown();
+            scheduler.awaitTermination();
+            long elapsedNanos = System.nanoTime() - start;
+            MetricsRegistry metrics = scheduler.getMetrics();
+            long met = metrics.counter("deadline.met").sum();
+            System.out.println(String.format("mode: %s submitted: %d met: %d missed: %d shed: %d cancelled: %d goodput: %.0f tasks/s",
+                    mode, submitted.size(), met, metrics.counter("deadline.missed").sum(), metrics.counter("tasks.shed").sum(),
+                    metrics.counter("tasks.cancelled").sum(), met * 1e9 / elapsedNanos));
+        }
     }
-}
 
-class TaskScheduler{
-    private static final int THREAD_POOL_SIZE = 5;
-    private Lock lock;
-    private Queue<Task> taskQueue;
-    private ExecutorService executorService;
+    /**
+     * high priority work arriving faster than the workers can run it, with a trickle of normal and low priority work.
+     * in PRIORITY mode the low levels wait until the flood is over, in MLFQ mode they trail level 1 by their aging
+     */
+    private static void starvationBenchmark() throws InterruptedException {
+        for (SchedulingMode mode : new SchedulingMode[]{SchedulingMode.PRIORITY, SchedulingMode.MLFQ}) {
+            TaskScheduler scheduler = new TaskScheduler(mode, THREADS_FOR_BENCHMARK);
+            scheduler.start();
+            Runnable work = () -> sleep(1);
+            long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            for (int round = 0; System.nanoTime() < until; round++) {
+                for (int i = 0; i < 5; i++) {
+                    scheduler.addTask(new Task("flood", 1, work));
+                }
+                if (round % 20 == 0) {
+                    scheduler.addTask(new Task("normal", 5, work));
+                    scheduler.addTask(new Task("low", 9, work));
+                }
+                Thread.sleep(1);
+            }
+            scheduler.shutdown();
+            scheduler.awaitTermination();
+            for (int priority : new int[]{1, 5, 9}) {
+                LatencyHistogram.Snapshot waits = scheduler.getMetrics().histogram("priority." + priority + ".queue.wait").snapshot();
+                System.out.println(String.format("mode: %s priority: %d tasks: %d wait p50: %.1fms p99: %.1fms max: %.1fms",
+                        mode, priority, waits.count(), waits.percentile(0.5) / 1e6, waits.percentile(0.99) / 1e6, waits.max() / 1e6));
+            }
+        }
+    }
+
+    /**
+     * two tenants keeping the workers busy at the same priority, tenant a weighted 3 to 1
+     */
+    private static void fairShareDemo() throws InterruptedException {
+        TaskScheduler scheduler = new TaskScheduler(SchedulingMode.MLFQ, THREADS_FOR_BENCHMARK);
+        scheduler.setClassWeight("tenant-a", 3);
+        scheduler.setClassWeight("tenant-b", 1);
+        LongAdder ranA = new LongAdder();
+        LongAdder ranB = new LongAdder();
+        for (int i = 0; i < 2000; i++) {
+            scheduler.addTask(new Task("a-" + i, 3, () -> { ranA.increment(); sleep(1); }).withClass("tenant-a"));
+            scheduler.addTask(new Task("b-" + i, 3, () -> { ranB.increment(); sleep(1); }).withClass("tenant-b"));
+        }
+        scheduler.start();
+        Thread.sleep(500);
+        System.out.println(String.format("after 500ms tenant-a ran %d tasks, tenant-b ran %d", ranA.sum(), ranB.sum()));
+        scheduler.shutdown();
+        scheduler.awaitTermination();
+    }
+
+    /**
+     * journaled vs plain submit cost, then a crash with a million unfinished tasks and the time until they run again
+     */
+    private static void journalRecoveryBenchmark() throws InterruptedException {
+        Path journalDir;
+        try {
+            journalDir = Files.createTempDirectory("task-journal");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LongAdder executed = new LongAdder();
+        Function<Task, Runnable> workResolver = task -> executed::increment;
+        int tasks = 1_000_000;
+
+        for (boolean journaled : new boolean[]{false, true}) {
+            TaskScheduler scheduler = journaled
+                    ? new TaskScheduler(SchedulingMode.PRIORITY, THREADS_FOR_BENCHMARK, journalDir, workResolver)
+                    : new TaskScheduler(SchedulingMode.PRIORITY, THREADS_FOR_BENCHMARK);
+            scheduler.start();
+            executed.reset();
+            long start = System.nanoTime();
+            for (int i = 0; i < tasks / 10; i++) {
+                scheduler.addTask(new Task("job-" + i, i % 10, executed::increment));
+            }
+            while (executed.sum() < tasks / 10) {
+                Thread.sleep(1);
+            }
+            long elapsedNanos = System.nanoTime() - start;
+            scheduler.shutdown();
+            scheduler.awaitTermination();
+            System.out.println(String.format("journaled: %s submit and run: %.0f tasks/s", journaled, tasks / 10 * 1e9 / elapsedNanos));
+        }
+
+        // the workers never start, as far as the journal is concerned the process died with every task unfinished
+        TaskScheduler crashed = new TaskScheduler(SchedulingMode.PRIORITY, THREADS_FOR_BENCHMARK, journalDir, workResolver);
+        for (int i = 0; i < tasks; i++) {
+            crashed.addTask(new Task("pending-" + i, i % 10, executed::increment));
+        }
+        crashed.shutdown();
+        crashed.awaitTermination();
+
+        executed.reset();
+        long start = System.nanoTime();
+        TaskScheduler restarted = new TaskScheduler(SchedulingMode.PRIORITY, THREADS_FOR_BENCHMARK, journalDir, workResolver);
+        long recoveredNanos = System.nanoTime() - start;
+        restarted.start();
+        while (executed.sum() < tasks) {
+            Thread.sleep(1);
+        }
+        long drainedNanos = System.nanoTime() - start;
+        restarted.shutdown();
+        restarted.awaitTermination();
+        System.out.println(String.format("recovered %d unfinished tasks in %.0fms, all of them ran after %.0fms",
+                executed.sum(), recoveredNanos / 1e6, drainedNanos / 1e6));
+        try (Stream<Path> files = Files.list(journalDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+            Files.delete(journalDir);
+        } catch (IOException e) {
+            System.out.println("failed to clean up " + journalDir + ": " + e.getMessage());
+        }
+    }
 
-    private Integer count = 0;
+    /**
+     * a long chain next to a wide fan of independent tasks, ready order decides whether the chain waits behind the fan
+     */
+    private static void taskGraphDemo() throws InterruptedException {
+        TaskScheduler scheduler = new TaskScheduler();
+        scheduler.start();
+        try {
+            scheduler.submitGraph(new TaskGraph("cyclic")
+                    .addTask("a", 1, null, "c")
+                    .addTask("b", 1, null, "a")
+                    .addTask("c", 1, null, "b"), 1);
+        } catch (RuntimeException e) {
+            System.out.println("rejected: " + e.getMessage());
+        }
+        for (boolean criticalPathFirst : new boolean[]{false, true}) {
+            TaskGraph graph = new TaskGraph(criticalPathFirst ? "etl-critical-path-first" : "etl-fifo");
+            Runnable step = () -> sleep(5);
+            graph.addTask("extract", 5, step);
+            for (int i = 0; i < 400; i++) {
+                graph.addTask("transform-" + i, 5, step, "extract");
+            }
+            String previous = "extract";
+            for (int i = 0; i < 60; i++) {
+                graph.addTask("aggregate-" + i, 5, step, previous);
+                previous = "aggregate-" + i;
+            }
+            graph.setOrderByCriticalPath(criticalPathFirst);
+            scheduler.submitGraph(graph, 1);
+            graph.awaitCompletion();
+        }
+        scheduler.shutdown();
+        scheduler.awaitTermination();
+    }
+
+    private static final int THREADS_FOR_BENCHMARK = 4;
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    /**
+     * fork style load of many tiny tasks, each root task submits its children from inside a worker
+     */
+    private static void workStealingBenchmark() throws InterruptedException {
+        int roots = 64;
+        int childrenPerRoot = 20_000;
+        for (SchedulingMode mode : SchedulingMode.values()) {
+            for (int workers : new int[]{1, 2, 4, 8}) {
+                TaskScheduler scheduler = new TaskScheduler(mode, workers);
+                LongAdder done = new LongAdder();
+                Runnable child = done::increment;
+                long start = System.nanoTime();
+                scheduler.start();
+                for (int root = 0; root < roots; root++) {
+                    scheduler.addTask(new Task("root-" + root, 1, () -> {
+                        for (int i = 0; i < childrenPerRoot; i++) {
+                            scheduler.addTask(new Task("child", 5, child));
+                        }
+                    }));
+                }
+                while (done.sum() < (long) roots * childrenPerRoot) {
+                    Thread.sleep(1);
+                }
+                long elapsedNanos = System.nanoTime() - start;
+                scheduler.shutdown();
+                scheduler.awaitTermination();
+                System.out.println(String.format("mode: %s workers: %d throughput: %.0f tasks/s",
+                        mode, workers, roots * childrenPerRoot * 1e9 / elapsedNanos));
+            }
+        }
+    }
 
-    public TaskScheduler() {
-        this.lock = new ReentrantLock();
-        taskQueue = new PriorityQueue<>((task1, task2) -> task1.priority.compareTo(task2.priority));
-        executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    /**
+     * a deep backlog of low priority work with high priority tasks trickling in, the high priority ones should wait
+     * about one task runtime no matter how deep the backlog is
+     */
+    private static void priorityUnderLoadBenchmark() throws InterruptedException {
+        TaskScheduler scheduler = new TaskScheduler();
+        scheduler.start();
+        Runnable work = () -> busyWork(200_000);
+        for (int i = 0; i < 20_000; i++) {
+            scheduler.addTask(new Task("backlog-" + i, 9, work));
+        }
+        for (int i = 0; i < 200; i++) {
+            scheduler.addTask(new Task("urgent-" + i, 1, work));
+            scheduler.addTask(new Task("normal-" + i, 5, work));
+            Thread.sleep(2);
+        }
+        scheduler.shutdown();
+        scheduler.awaitTermination();
+        System.out.println(scheduler.getMetrics().snapshot());
     }
 
-    public void addTask(Task task){
-        lock.lock();
-        try{
-            taskQueue.offer(task);
-        } finally {
-            lock.unlock();
+    static void busyWork(long nanos) {
+        long until = System.nanoTime() + nanos;
+        while (System.nanoTime() < until) {
+            // spin
         }
     }
 
-    public void start(){
-        while(!taskQueue.isEmpty()){
-                Task task = taskQueue.poll();
-                Callable<Void> taskJob = () -> {
-                    synchronized (count){
-                        count = count+1;
-                    }
+    private static void timerDemo(TaskScheduler scheduler) throws InterruptedException {
+        scheduler.schedule(new Task("Delayed 300ms", 1), 300, TimeUnit.MILLISECONDS);
+        scheduler.schedule(new Task("Delayed 100ms", 1), 100, TimeUnit.MILLISECONDS);
+        TimerEntry cancelled = scheduler.schedule(new Task("Cancelled", 1), 200, TimeUnit.MILLISECONDS);
+        TimerEntry heartbeat = scheduler.scheduleAtFixedRate(new Task("Heartbeat", 5), 0, 100, TimeUnit.MILLISECONDS);
+        cancelled.cancel();
+        Thread.sleep(450);
+        heartbeat.cancel();
+    }
+
+    /**
+     * schedule and cancel cost per timer and ticker cpu with 10 and with 1 million pending timers
+     */
+    private static void timerScaleBenchmark() throws InterruptedException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        for (int pending : new int[]{10, 1_000_000}) {
+            TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, entry -> { });
+            List<TimerEntry> entries = new ArrayList<>(pending);
+            long start = System.nanoTime();
+            for (int i = 0; i < pending; i++) {
+                entries.add(wheel.schedule(null, 10_000 + ThreadLocalRandom.current().nextInt(600_000), 0, TimeUnit.MILLISECONDS));
+            }
+            long scheduleNanos = System.nanoTime() - start;
+            Thread.sleep(200);
 
-                        System.out.println("executing -> " + task.toString() + " count " + count);
+            long tickerId = tickerThreadId();
+            long cpuBefore = threadMXBean.getThreadCpuTime(tickerId);
+            Thread.sleep(1000);
+            long tickerCpuNanos = threadMXBean.getThreadCpuTime(tickerId) - cpuBefore;
 
-                    return Void.TYPE.newInstance();
-                };
-                executorService.submit(taskJob);
+            start = System.nanoTime();
+            entries.forEach(TimerEntry::cancel);
+            long cancelNanos = System.nanoTime() - start;
+            System.out.println(String.format("pending timers: %d schedule: %dns/op cancel: %dns/op ticker cpu: %.1fms/s",
+                    pending, scheduleNanos / pending, cancelNanos / pending, tickerCpuNanos / 1e6));
+            wheel.stop();
+            Thread.sleep(50);
+        }
+    }
 
+    private static long tickerThreadId() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("timing-wheel-ticker") && thread.getState() != Thread.State.TERMINATED) {
+                return thread.getId();
+            }
         }
-        executorService.shutdown();
+        return -1;
     }
 }
@@ -0,0 +1,41 @@
+package com.ratedra.taskscheduler;
+
+/**
+ * doubly linked list of the timers in one slot, only used by the ticker thread
+ */
+class TimerBucket {
+    private TimerEntry head;
+
+    void add(TimerEntry entry) {
+        entry.bucket = this;
+        entry.prev = null;
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        head = entry;
+    }
+
+    void remove(TimerEntry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            head = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.bucket = null;
+    }
+
+    /**
+     * empties the slot and returns its former head, the entries stay chained through next
+     */
+    TimerEntry drain() {
+        TimerEntry drained = head;
+        head = null;
+        return drained;
+    }
+}
@@ -0,0 +1,44 @@
+package com.ratedra.taskscheduler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * handle of a scheduled timer, cancel is O(1) from any thread
+ */
+class TimerEntry {
+    static final int ACTIVE = 0;
+    static final int CANCELLED = 1;
+    static final int EXPIRED = 2;
+
+    final Task task;
+    // internal callback run on the ticker instead of a task, null for tasks
+    final Runnable action;
+    final long periodTicks;
+    final AtomicInteger state = new AtomicInteger(ACTIVE);
+    private final TimingWheel wheel;
+    long expiryTick;
+    // intrusive links, owned by the ticker thread
+    TimerEntry prev;
+    TimerEntry next;
+    TimerBucket bucket;
+
+    TimerEntry(TimingWheel wheel, Task task, Runnable action, long expiryTick, long periodTicks) {
+        this.wheel = wheel;
+        this.task = task;
+        this.action = action;
+        this.expiryTick = expiryTick;
+        this.periodTicks = periodTicks;
+    }
+
+    public boolean cancel() {
+        if (state.compareAndSet(ACTIVE, CANCELLED)) {
+            wheel.cancelled(this);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+}
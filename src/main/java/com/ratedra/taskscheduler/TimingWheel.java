@@ -0,0 +1,217 @@
+package com.ratedra.taskscheduler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical hashed timing wheel, the same layout as the linux kernel timers.
+ * level 0 has 256 slots of one tick each, every level above has 64 slots each covering a whole rotation of the level below.
+ * a timer goes into the lowest level whose range covers its delay and is cascaded one level down every time the
+ * level below wraps around, so schedule and cancel are O(1) and a tick only touches the timers that are due.
+ *
+ * schedule and cancel can be called from any thread, they only enqueue. the ticker thread owns the wheel,
+ * drains those queues at the start of every tick and hands expired timers to onExpire.
+ */
+class TimingWheel {
+    private static final int LEVEL0_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVELS = 5;
+    private static final long MAX_DELTA = (1L << (LEVEL0_BITS + (LEVELS - 1) * LEVEL_BITS)) - 1;
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final TimerBucket[][] wheel = new TimerBucket[LEVELS][];
+    private final Queue<TimerEntry> pendingAdds = new ConcurrentLinkedQueue<>();
+    private final Queue<TimerEntry> pendingCancels = new ConcurrentLinkedQueue<>();
+    private final AtomicLong activeTimers = new AtomicLong();
+    private final Consumer<TimerEntry> onExpire;
+    private final Thread ticker;
+    private volatile boolean running = true;
+    // next tick to process, only touched by the ticker
+    private long currentTick;
+
+    TimingWheel(long tick, TimeUnit unit, Consumer<TimerEntry> onExpire) {
+        this.tickNanos = unit.toNanos(tick);
+        this.onExpire = onExpire;
+        this.startNanos = System.nanoTime();
+        for (int level = 0; level < LEVELS; level++) {
+            int slots = 1 << (level == 0 ? LEVEL0_BITS : LEVEL_BITS);
+            wheel[level] = new TimerBucket[slots];
+            for (int slot = 0; slot < slots; slot++) {
+                wheel[level][slot] = new TimerBucket();
+            }
+        }
+        this.ticker = new Thread(this::run, "timing-wheel-ticker");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    TimerEntry schedule(Task task, long delay, long period, TimeUnit unit) {
+        long periodTicks = period <= 0 ? 0 : Math.max(1, unit.toNanos(period) / tickNanos);
+        return schedule(new TimerEntry(this, task, null, expiryTick(delay, unit), periodTicks));
+    }
+
+    /**
+     * runs action on the ticker thread once delay passed instead of handing it to onExpire, it has to be short
+     */
+    TimerEntry schedule(Runnable action, long delay, TimeUnit unit) {
+        return schedule(new TimerEntry(this, null, action, expiryTick(delay, unit), 0));
+    }
+
+    private long expiryTick(long delay, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(delay);
+        // round up, a timer never fires early
+        return (deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+    }
+
+    private TimerEntry schedule(TimerEntry entry) {
+        pendingAdds.add(entry);
+        if (activeTimers.getAndIncrement() == 0) {
+            // the ticker parks while the wheel is empty
+            LockSupport.unpark(ticker);
+        }
+        return entry;
+    }
+
+    long activeTimers() {
+        return activeTimers.get();
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+
+    void cancelled(TimerEntry entry) {
+        pendingCancels.add(entry);
+    }
+
+    private void run() {
+        while (running) {
+            if (activeTimers.get() == 0) {
+                LockSupport.park(this);
+                // nothing was due while parked, skip the idle ticks instead of walking them
+                currentTick = Math.max(currentTick, (System.nanoTime() - startNanos) / tickNanos);
+                continue;
+            }
+            long dueNanos = startNanos + currentTick * tickNanos;
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(this, waitNanos);
+                continue;
+            }
+            drainCancels();
+            drainAdds();
+            tick();
+        }
+    }
+
+    private void drainAdds() {
+        TimerEntry entry;
+        while ((entry = pendingAdds.poll()) != null) {
+            if (entry.state.get() == TimerEntry.ACTIVE) {
+                place(entry);
+            }
+        }
+    }
+
+    private void drainCancels() {
+        TimerEntry entry;
+        while ((entry = pendingCancels.poll()) != null) {
+            // still in pendingAdds when it was never placed, drainAdds skips it then
+            if (entry.bucket != null) {
+                entry.bucket.remove(entry);
+            }
+            activeTimers.decrementAndGet();
+        }
+    }
+
+    private void tick() {
+        int index = (int) (currentTick & ((1 << LEVEL0_BITS) - 1));
+        if (index == 0) {
+            cascade(1);
+        }
+        TimerEntry entry = wheel[0][index].drain();
+        while (entry != null) {
+            TimerEntry next = entry.next;
+            entry.next = null;
+            entry.prev = null;
+            entry.bucket = null;
+            expire(entry);
+            entry = next;
+        }
+        currentTick++;
+    }
+
+    /**
+     * moves the slot of this level that just came into range one level down, and the level above when this one wrapped
+     */
+    private void cascade(int level) {
+        if (level >= LEVELS) {
+            return;
+        }
+        int shift = LEVEL0_BITS + (level - 1) * LEVEL_BITS;
+        int index = (int) ((currentTick >>> shift) & ((1 << LEVEL_BITS) - 1));
+        if (index == 0) {
+            cascade(level + 1);
+        }
+        TimerEntry entry = wheel[level][index].drain();
+        while (entry != null) {
+            TimerEntry next = entry.next;
+            entry.next = null;
+            entry.prev = null;
+            entry.bucket = null;
+            place(entry);
+            entry = next;
+        }
+    }
+
+    private void expire(TimerEntry entry) {
+        if (entry.periodTicks > 0) {
+            if (entry.state.get() != TimerEntry.ACTIVE) {
+                return;
+            }
+            entry.expiryTick += entry.periodTicks;
+            place(entry);
+        } else if (!entry.state.compareAndSet(TimerEntry.ACTIVE, TimerEntry.EXPIRED)) {
+            return;
+        } else {
+            activeTimers.decrementAndGet();
+        }
+        try {
+            if (entry.action != null) {
+                entry.action.run();
+            } else {
+                onExpire.accept(entry);
+            }
+        } catch (RuntimeException e) {
+            // one bad timer must not take the ticker down with it
+            System.out.println("failed to hand over expired timer: " + e.getMessage());
+        }
+    }
+
+    private void place(TimerEntry entry) {
+        long expiryTick = Math.max(entry.expiryTick, currentTick);
+        long delta = expiryTick - currentTick;
+        if (delta > MAX_DELTA) {
+            // beyond the top level, park it in the furthest slot and let the cascade place it again
+            expiryTick = currentTick + MAX_DELTA;
+            delta = MAX_DELTA;
+        }
+        if (delta < (1 << LEVEL0_BITS)) {
+            wheel[0][(int) (expiryTick & ((1 << LEVEL0_BITS) - 1))].add(entry);
+            return;
+        }
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = LEVEL0_BITS + (level - 1) * LEVEL_BITS;
+            if (delta < (1L << (shift + LEVEL_BITS))) {
+                wheel[level][(int) ((expiryTick >>> shift) & ((1 << LEVEL_BITS) - 1))].add(entry);
+                return;
+            }
+        }
+    }
+}
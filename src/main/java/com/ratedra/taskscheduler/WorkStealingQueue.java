@@ -0,0 +1,159 @@
+package com.ratedra.taskscheduler;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One priority deque per worker instead of one shared queue.
+ * a task submitted from a worker thread goes to that worker's own deque, tasks from other threads are spread round robin.
+ * a worker runs its own highest priority task first, and when its deque is empty it steals the highest priority task
+ * it can see in the other deques. the locks are per deque, so the owner only ever contends with an occasional thief.
+ *
+ * priority is strict within a deque and for steals, but not across deques: a worker may run a local task while
+ * a more important one waits in a busy worker's deque.
+ */
+class WorkStealingQueue implements ReadyQueue {
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final WorkerDeque[] deques;
+    private final ThreadLocal<WorkerDeque> localDeque = new ThreadLocal<>();
+    private final AtomicInteger nextExternal = new AtomicInteger();
+    private final Queue<Thread> idleWorkers = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    WorkStealingQueue(int workers) {
+        deques = new WorkerDeque[workers];
+        for (int i = 0; i < workers; i++) {
+            deques[i] = new WorkerDeque();
+        }
+    }
+
+    @Override
+    public void offer(Task task) {
+        WorkerDeque deque = localDeque.get();
+        if (deque == null) {
+            deque = deques[(nextExternal.getAndIncrement() & Integer.MAX_VALUE) % deques.length];
+        }
+        deque.push(task);
+        // pushed before looking for an idle worker, an idle worker registers before its last scan, so one of them sees the other
+        Thread idle = idleWorkers.poll();
+        if (idle != null) {
+            LockSupport.unpark(idle);
+        }
+    }
+
+    @Override
+    public Task take(int workerId) throws InterruptedException {
+        WorkerDeque own = deques[workerId];
+        localDeque.set(own);
+        while (true) {
+            Task task = own.poll();
+            if (task == null) {
+                task = steal(own);
+            }
+            if (task != null) {
+                return task;
+            }
+            if (!running) {
+                return null;
+            }
+            Thread current = Thread.currentThread();
+            idleWorkers.add(current);
+            task = own.poll();
+            if (task == null) {
+                task = steal(own);
+            }
+            if (task != null) {
+                idleWorkers.remove(current);
+                return task;
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            idleWorkers.remove(current);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * picks the victim whose head has the highest priority, retries when another thief got there first
+     */
+    private Task steal(WorkerDeque own) {
+        while (true) {
+            WorkerDeque victim = null;
+            for (WorkerDeque deque : deques) {
+                if (deque != own && deque.size > 0 && (victim == null || deque.headPriority < victim.headPriority)) {
+                    victim = deque;
+                }
+            }
+            if (victim == null) {
+                return null;
+            }
+            Task stolen = victim.poll();
+            if (stolen != null) {
+                return stolen;
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        Thread idle;
+        while ((idle = idleWorkers.poll()) != null) {
+            LockSupport.unpark(idle);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (WorkerDeque deque : deques) {
+            size += deque.size;
+        }
+        return size;
+    }
+
+    private static class WorkerDeque {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final PriorityQueue<Task> tasks = new PriorityQueue<>(Task.BY_PRIORITY);
+        // read without the lock by thieves choosing a victim
+        private volatile int size;
+        private volatile int headPriority = Integer.MAX_VALUE;
+
+        void push(Task task) {
+            lock.lock();
+            try {
+                tasks.offer(task);
+                publishHead();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Task poll() {
+            if (size == 0) {
+                return null;
+            }
+            lock.lock();
+            try {
+                Task task = tasks.poll();
+                publishHead();
+                return task;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void publishHead() {
+            Task head = tasks.peek();
+            headPriority = head == null ? Integer.MAX_VALUE : head.priority;
+            size = tasks.size();
+        }
+    }
+}
@@ -1,109 +1,385 @@
 package com.ratedra.thread;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import com.ratedra.metrics.LatencyHistogram;
 
 /**
  *  queue - in which we could add new messages and also at last remove from it
  we'll be doing through multiple threads.
  we'll queue around 1 million of items and also removing all of them
  expecting - some kind race condition (because resource. i.e - queue)
- try to resolve the race condition using some kind of locks*/
+ try to resolve the race condition using some kind of locks
+ the same 1 million items then run through the lock free ring buffer queues, producers and consumers at the same time,
+ as a throughput comparison against the LinkedList guarded by one lock, and the unbounded LockFreeLinkedQueue
+ through a stress run that checks per producer fifo order, no loss and no duplicates.
+ producers put and consumers take through a WaitingQueue, the wait strategy benchmark shows what each strategy costs
+ in handoff latency and in cpu burnt while waiting*/
 public class ConcurrentQueueImpl {
+    private static final int RING_CAPACITY = 1 << 14;
+    private static final int BATCH = 64;
+    // producers of the stress run stay at most this far ahead of the consumers, like a pipeline in steady state
+    private static final int MAX_IN_FLIGHT = 1 << 14;
+    // the old retry loops yielded on every miss
+    private static final WaitStrategy THROUGHPUT_WAIT = WaitStrategy.spinThenYield(64);
+    private static final int HANDOFFS = 20000;
+    private static final long HANDOFF_GAP_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
     public static void main(String[] args) {
         int numOfItem = 1000000;
-        Queue<Integer> queue = new LinkedList<>();
         int threadPoolSize = 10;
-        Lock lock = new ReentrantLock();
 
-        // two List<thread>  -> producer, consumer
-        Thread[] producerThread = new Thread[threadPoolSize];
-        // 100 items -> 100/10 -> 10 items
-        for(int i=0; i<threadPoolSize; i++){
-            producerThread[i] = new Thread(
-                    new Producer(numOfItem/threadPoolSize,
-                            queue, lock));
-            producerThread[i].start();
+        run("LinkedList + ReentrantLock", LockedQueue::new, threadPoolSize, threadPoolSize, numOfItem);
+        run("MpmcRingQueue", () -> new MpmcRingQueue<>(RING_CAPACITY), threadPoolSize, threadPoolSize, numOfItem);
+        run("ConcurrentLinkedQueue", () -> new JdkQueue<>(new ConcurrentLinkedQueue<>()), threadPoolSize, threadPoolSize, numOfItem);
+        run("LockFreeLinkedQueue", LockFreeLinkedQueue::new, threadPoolSize, threadPoolSize, numOfItem);
+        run("LinkedList + ReentrantLock", LockedQueue::new, threadPoolSize, 1, numOfItem);
+        run("MpmcRingQueue", () -> new MpmcRingQueue<>(RING_CAPACITY), threadPoolSize, 1, numOfItem);
+        run("MpscRingQueue", () -> new MpscRingQueue<>(RING_CAPACITY), threadPoolSize, 1, numOfItem);
+        run("LinkedList + ReentrantLock", LockedQueue::new, 1, 1, numOfItem);
+        run("MpmcRingQueue", () -> new MpmcRingQueue<>(RING_CAPACITY), 1, 1, numOfItem);
+        run("SpscRingQueue", () -> new SpscRingQueue<>(RING_CAPACITY), 1, 1, numOfItem);
+
+        for (int round = 0; round < 3; round++) {
+            lockFreeLinkedQueueStress(4, 4, numOfItem);
         }
 
-        Arrays.stream(producerThread).forEach(thread -> {
+        waitStrategyBenchmark(WaitStrategy.busySpin());
+        waitStrategyBenchmark(WaitStrategy.spinThenYield(100));
+        waitStrategyBenchmark(WaitStrategy.spinThenPark(100, 10, TimeUnit.MILLISECONDS.toNanos(1)));
+        waitStrategyBenchmark(WaitStrategy.timedPark(TimeUnit.MICROSECONDS.toNanos(100)));
+    }
+
+    /**
+     * one producer puts a timestamp every HANDOFF_GAP_NANOS into an spsc ring, the consumer takes them and records
+     * how long each sat in the queue. the consumer is idle between items, so the latency is the wake up cost of the
+     * strategy and the consumer cpu is what it burns while waiting
+     */
+    private static void waitStrategyBenchmark(WaitStrategy strategy) {
+        WaitingQueue<Long> queue = new WaitingQueue<>(new SpscRingQueue<>(RING_CAPACITY), strategy);
+        LatencyHistogram latency = new LatencyHistogram();
+        long[] consumerCpuNanos = new long[1];
+        Thread consumer = new Thread(() -> {
+            long cpuBefore = THREADS.getCurrentThreadCpuTime();
             try {
-                thread.join();
+                for (int i = 0; i < HANDOFFS; i++) {
+                    long sentNanos = queue.take();
+                    latency.record(System.nanoTime() - sentNanos);
+                }
             } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                Thread.currentThread().interrupt();
             }
+            consumerCpuNanos[0] = THREADS.getCurrentThreadCpuTime() - cpuBefore;
         });
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < HANDOFFS; i++) {
+                    LockSupport.parkNanos(HANDOFF_GAP_NANOS);
+                    queue.put(System.nanoTime());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        long start = System.nanoTime();
+        consumer.start();
+        producer.start();
+        join(new Thread[]{producer, consumer});
+        long elapsedNanos = System.nanoTime() - start;
+
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.println(String.format("wait strategy %-20s handoffs: %d latency p50: %6dus p99: %6dus p99.9: %6dus max: %6dus "
+                        + "consumer cpu: %5.1f%% of %dms",
+                strategy, snapshot.count(), TimeUnit.NANOSECONDS.toMicros(snapshot.percentile(0.5)),
+                TimeUnit.NANOSECONDS.toMicros(snapshot.percentile(0.99)), TimeUnit.NANOSECONDS.toMicros(snapshot.percentile(0.999)),
+                TimeUnit.NANOSECONDS.toMicros(snapshot.max()), consumerCpuNanos[0] * 100.0 / elapsedNanos,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos)));
+    }
+
+    /**
+     * half the producers offer one by one and half in batches, half the consumers poll and half drain in batches.
+     * every item encodes its producer and sequence number. a fifo queue has to hand every consumer the items of one
+     * producer in the order that producer offered them, and every item exactly once.
+     * the producers don't run more than MAX_IN_FLIGHT items ahead, so after warm up nodes come from the pools
+     */
+    private static void lockFreeLinkedQueueStress(int producers, int consumers, int numOfItem) {
+        LockFreeLinkedQueue<Long> queue = new LockFreeLinkedQueue<>();
+        int perProducer = numOfItem / producers;
+        Long[][] items = new Long[producers][perProducer];
+        for (int p = 0; p < producers; p++) {
+            for (int seq = 0; seq < perProducer; seq++) {
+                items[p][seq] = ((long) p << 32) | seq;
+            }
+        }
+        AtomicIntegerArray deliveries = new AtomicIntegerArray(producers * perProducer);
+        LongAdder consumed = new LongAdder();
+        LongAdder offered = new LongAdder();
+        LongAdder fifoViolations = new LongAdder();
+        LongAdder allocatedBytes = new LongAdder();
+        long total = (long) producers * perProducer;
+
+        Thread[] threads = new Thread[producers + consumers];
+        for (int p = 0; p < producers; p++) {
+            Long[] own = items[p];
+            boolean batched = p % 2 == 1;
+            threads[p] = new Thread(() -> {
+                long allocatedBefore = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+                List<Long> batch = new ArrayList<>(BATCH);
+                int sinceCheck = 0;
+                for (Long item : own) {
+                    if (++sinceCheck == BATCH) {
+                        sinceCheck = 0;
+                        offered.add(BATCH);
+                        while (offered.sum() - consumed.sum() > MAX_IN_FLIGHT) {
+                            Thread.yield();
+                        }
+                    }
+                    if (!batched) {
+                        queue.offer(item);
+                        continue;
+                    }
+                    batch.add(item);
+                    if (batch.size() == BATCH) {
+                        queue.offerAll(batch);
+                        batch.clear();
+                    }
+                }
+                queue.offerAll(batch);
+                allocatedBytes.add(THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
+            });
+        }
+        for (int c = 0; c < consumers; c++) {
+            boolean batched = c % 2 == 1;
+            threads[producers + c] = new Thread(() -> {
+                long allocatedBefore = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+                long[] lastSeq = new long[producers];
+                Arrays.fill(lastSeq, -1);
+                List<Long> batch = new ArrayList<>(BATCH);
+                while (consumed.sum() < total) {
+                    if (batched) {
+                        queue.drainTo(batch, BATCH);
+                    } else {
+                        Long item = queue.poll();
+                        if (item != null) {
+                            batch.add(item);
+                        }
+                    }
+                    if (batch.isEmpty()) {
+                        Thread.yield();
+                        continue;
+                    }
+                    for (int i = 0; i < batch.size(); i++) {
+                        long item = batch.get(i);
+                        int p = (int) (item >>> 32);
+                        int seq = (int) item;
+                        if (seq <= lastSeq[p]) {
+                            fifoViolations.increment();
+                        }
+                        lastSeq[p] = seq;
+                        deliveries.incrementAndGet(p * perProducer + seq);
+                    }
+                    consumed.add(batch.size());
+                    batch.clear();
+                }
+                allocatedBytes.add(THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
+            });
+        }
+        long start = System.nanoTime();
+        Arrays.stream(threads).forEach(Thread::start);
+        join(threads);
+        long elapsedNanos = System.nanoTime() - start;
 
-        System.out.println(queue.size());
+        int lost = 0;
+        int duplicated = 0;
+        for (int i = 0; i < deliveries.length(); i++) {
+            int delivered = deliveries.get(i);
+            if (delivered == 0) {
+                lost++;
+            } else if (delivered > 1) {
+                duplicated++;
+            }
+        }
+        System.out.println(String.format("LockFreeLinkedQueue stress producers: %d consumers: %d items: %d throughput: %.1fM items/s "
+                        + "lost: %d duplicated: %d fifo violations: %d left: %d allocated: %.1f bytes/item",
+                producers, consumers, total, total * 1e3 / elapsedNanos, lost, duplicated, fifoViolations.sum(),
+                queue.size(), allocatedBytes.sum() / (double) total));
+    }
+    /**
+     * producers and consumers run at the same time, every consumer takes its share of the items. the sum of what was
+     * consumed has to match the sum of what was produced
+     */
+    private static void run(String name, Supplier<NonBlockingQueue<Integer>> queueFactory, int producers, int consumers, int numOfItem) {
+        WaitingQueue<Integer> queue = new WaitingQueue<>(queueFactory.get(), THROUGHPUT_WAIT);
+        LongAdder consumedSum = new LongAdder();
+        LongAdder allocatedBytes = new LongAdder();
+        // boxed up front, so the allocation column only shows what the queue itself allocates
+        Integer[] boxed = new Integer[numOfItem / producers];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = i;
+        }
 
-        Thread[] consumerThread = new Thread[threadPoolSize];
-        for(int i=0; i<threadPoolSize; i++){
-            consumerThread[i] = new Thread(
-                    new Consumer(numOfItem/threadPoolSize, queue, lock));
-            consumerThread[i].start();
+        Thread[] producerThread = new Thread[producers];
+        for(int i=0; i<producers; i++){
+            producerThread[i] = new Thread(new Producer(boxed, queue, allocatedBytes));
+        }
+        Thread[] consumerThread = new Thread[consumers];
+        for(int i=0; i<consumers; i++){
+            consumerThread[i] = new Thread(new Consumer(numOfItem/consumers, queue, consumedSum, allocatedBytes));
         }
+        long start = System.nanoTime();
+        Arrays.stream(producerThread).forEach(Thread::start);
+        Arrays.stream(consumerThread).forEach(Thread::start);
+        join(producerThread);
+        join(consumerThread);
+        long elapsedNanos = System.nanoTime() - start;
 
-        Arrays.stream(consumerThread).forEach(thread -> {
+        long expectedSum = (long) producers * ((long) (numOfItem / producers) * (numOfItem / producers - 1) / 2);
+        System.out.println(String.format("%-27s producers: %2d consumers: %2d throughput: %5.1fM items/s "
+                        + "sum ok: %s left: %d allocated: %.1f bytes/item",
+                name, producers, consumers, numOfItem * 1e3 / elapsedNanos,
+                consumedSum.sum() == expectedSum, queue.size(), allocatedBytes.sum() / (double) numOfItem));
+    }
+
+    private static void join(Thread[] threads) {
+        Arrays.stream(threads).forEach(thread -> {
             try {
                 thread.join();
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
         });
+    }
+
+    /**
+     * the original queue, a LinkedList guarded by one lock, node allocated per item
+     */
+    static class LockedQueue<E> implements NonBlockingQueue<E> {
+        private final Queue<E> queue = new LinkedList<>();
+        private final Lock lock = new ReentrantLock();
 
-        System.out.println(queue.size());
+        @Override
+        public boolean offer(E e) {
+            lock.lock();
+            try {
+                return queue.add(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public E poll() {
+            lock.lock();
+            try {
+                return queue.poll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return queue.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * a jdk queue used through offer and poll only, e.g. ConcurrentLinkedQueue, the jdk's michael scott queue with a
+     * fresh node per item, or ArrayBlockingQueue, one array guarded by one lock
+     */
+    static class JdkQueue<E> implements NonBlockingQueue<E> {
+        private final Queue<E> queue;
 
+        JdkQueue(Queue<E> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean offer(E e) {
+            return queue.offer(e);
+        }
+
+        @Override
+        public E poll() {
+            return queue.poll();
+        }
 
+        @Override
+        public int size() {
+            return queue.size();
+        }
     }
 
     private static class Producer implements Runnable{
-        int numOfItems;
-        Queue<Integer> queue;
-        Lock lock;
+        Integer[] items;
+        WaitingQueue<Integer> queue;
+        LongAdder allocatedBytes;
 
-        public Producer(int numOfItems, Queue<Integer> queue, Lock lock) {
-            this.numOfItems = numOfItems;
+        public Producer(Integer[] items, WaitingQueue<Integer> queue, LongAdder allocatedBytes) {
+            this.items = items;
             this.queue = queue;
-            this.lock=lock;
+            this.allocatedBytes = allocatedBytes;
         }
 
         @Override
         public void run() {
-            for(int i=0; i<numOfItems; i++){
-                try {
-                    lock.lock();
-                    queue.add(i);
-                } finally {
-                    lock.unlock();
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+            try {
+                for(Integer item : items){
+                    queue.put(item);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            allocatedBytes.add(THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
         }
     }
 
     private static class Consumer implements Runnable{
         int numOfItems;
-        Queue<Integer> queue;
-        Lock lock;
+        WaitingQueue<Integer> queue;
+        LongAdder consumedSum;
+        LongAdder allocatedBytes;
 
-        public Consumer(int numOfItems, Queue<Integer> queue, Lock lock) {
+        public Consumer(int numOfItems, WaitingQueue<Integer> queue, LongAdder consumedSum, LongAdder allocatedBytes) {
             this.numOfItems = numOfItems;
             this.queue = queue;
-            this.lock = lock;
+            this.consumedSum = consumedSum;
+            this.allocatedBytes = allocatedBytes;
         }
 
         @Override
         public void run() {
-            for(int i=0; i<numOfItems; i++){
-                try {
-                    lock.lock();
-                    queue.poll();
-                } finally {
-                    lock.unlock();
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long sum = 0;
+            try {
+                for(int i=0; i<numOfItems; i++){
+                    sum += queue.take();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            consumedSum.add(sum);
+            allocatedBytes.add(THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
         }
     }
 
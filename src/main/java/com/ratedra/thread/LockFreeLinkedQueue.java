@@ -0,0 +1,417 @@
+package com.ratedra.thread;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded lock free queue, Michael and Scott's linked list with a dummy head node.
+ * offer links a node behind the last one with a CAS on its next pointer and then swings tail, poll swings head to
+ * the next node and returns its item, a thread that finds tail lagging behind helps it forward first.
+ *
+ * nodes are recycled instead of left to the gc. recycling brings back the ABA problem a collected language
+ * otherwise doesn't have: a node could be reused while a slower thread still holds it and that thread's CAS would
+ * succeed against the new incarnation. so nodes go through epoch based reclamation: every operation runs inside
+ * an epoch, a node unlinked in epoch e is only reused once the global epoch reached e + 2, and the global epoch only
+ * advances when every thread inside an operation has seen the current one, so no thread can still hold the node.
+ *
+ * reusable nodes sit in a pool per thread. a thread that only polls collects more nodes than it ever allocates, so
+ * full pools hand batches to a shared exchange and threads that only offer pick them up there. the state of a thread
+ * that died is dropped the next time the epoch is advanced, its pool and limbo are retired anew by the advancing thread.
+ * offerAll links a whole chain with one CAS and drainTo unlinks a whole run of nodes with one CAS.
+ */
+public class LockFreeLinkedQueue<E> implements NonBlockingQueue<E> {
+    private static final int POOL_BATCH = 256;
+    private static final int ADVANCE_EVERY = 64;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+    private final AtomicReference<Node<E>> head;
+    private final AtomicReference<Node<E>> tail;
+    private final AtomicLong globalEpoch = new AtomicLong();
+    private final Queue<Participant<E>> participants = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Participant<E>> participant = ThreadLocal.withInitial(this::register);
+    // chains of POOL_BATCH reusable nodes, from threads that free more than they allocate to those that allocate more
+    private final Queue<Node<E>> exchange = new ConcurrentLinkedQueue<>();
+
+    public LockFreeLinkedQueue() {
+        Node<E> dummy = new Node<>();
+        head = new AtomicReference<>(dummy);
+        tail = new AtomicReference<>(dummy);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        Participant<E> self = enter();
+        try {
+            Node<E> node = self.allocate(e);
+            append(node, node);
+            return true;
+        } finally {
+            exit(self);
+        }
+    }
+
+    /**
+     * links all elements as one chain, a single successful CAS makes all of them visible at once
+     */
+    public void offerAll(Collection<? extends E> elements) {
+        if (elements.isEmpty()) {
+            return;
+        }
+        Participant<E> self = enter();
+        try {
+            Iterator<? extends E> iterator = elements.iterator();
+            Node<E> first = self.allocate(nonNull(iterator.next()));
+            Node<E> last = first;
+            while (iterator.hasNext()) {
+                Node<E> node = self.allocate(nonNull(iterator.next()));
+                last.next = node;
+                last = node;
+            }
+            append(first, last);
+        } finally {
+            exit(self);
+        }
+    }
+
+    @Override
+    public E poll() {
+        Participant<E> self = enter();
+        try {
+            while (true) {
+                Node<E> h = head.get();
+                Node<E> t = tail.get();
+                Node<E> next = h.next;
+                if (h != head.get()) {
+                    continue;
+                }
+                if (h == t) {
+                    if (next == null) {
+                        return null;
+                    }
+                    tail.compareAndSet(t, next);
+                    continue;
+                }
+                E item = next.item;
+                if (head.compareAndSet(h, next)) {
+                    // next is the new dummy
+                    next.item = null;
+                    self.retire(h);
+                    return item;
+                }
+            }
+        } finally {
+            exit(self);
+        }
+    }
+
+    /**
+     * moves up to maxElements into target, unlinking all of them with one CAS on head. returns how many it moved
+     */
+    public int drainTo(Collection<? super E> target, int maxElements) {
+        if (maxElements <= 0) {
+            return 0;
+        }
+        Participant<E> self = enter();
+        ArrayDeque<E> items = self.drainBuffer;
+        try {
+            while (true) {
+                items.clear();
+                Node<E> h = head.get();
+                Node<E> t = tail.get();
+                if (h != head.get()) {
+                    continue;
+                }
+                if (h == t) {
+                    Node<E> next = h.next;
+                    if (next == null) {
+                        return 0;
+                    }
+                    tail.compareAndSet(t, next);
+                    continue;
+                }
+                // tail never lags behind head, so the walk reaches t without falling off the list
+                Node<E> last = h;
+                boolean stale = false;
+                while (last != t && items.size() < maxElements) {
+                    last = last.next;
+                    E item = last.item;
+                    if (item == null) {
+                        // another consumer already made this node the head, the CAS below would fail anyway
+                        stale = true;
+                        break;
+                    }
+                    items.add(item);
+                }
+                if (!stale && head.compareAndSet(h, last)) {
+                    last.item = null;
+                    for (Node<E> node = h; node != last; ) {
+                        Node<E> next = node.next;
+                        // the items were copied out, a node waiting in limbo must not keep one reachable
+                        node.item = null;
+                        self.retire(node);
+                        node = next;
+                    }
+                    int drained = items.size();
+                    // addAll would copy through a fresh array
+                    E item;
+                    while ((item = items.poll()) != null) {
+                        target.add(item);
+                    }
+                    return drained;
+                }
+            }
+        } finally {
+            items.clear();
+            exit(self);
+        }
+    }
+
+    /**
+     * walks the list, O(n) and only a snapshot while others offer or poll
+     */
+    @Override
+    public int size() {
+        Participant<E> self = enter();
+        try {
+            int size = 0;
+            for (Node<E> node = head.get().next; node != null && size < Integer.MAX_VALUE; node = node.next) {
+                size++;
+            }
+            return size;
+        } finally {
+            exit(self);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        Participant<E> self = enter();
+        try {
+            return head.get().next == null;
+        } finally {
+            exit(self);
+        }
+    }
+
+    private void append(Node<E> first, Node<E> last) {
+        while (true) {
+            Node<E> t = tail.get();
+            Node<E> next = t.next;
+            if (t != tail.get()) {
+                continue;
+            }
+            if (next != null) {
+                tail.compareAndSet(t, next);
+                continue;
+            }
+            if (NEXT.compareAndSet(t, null, first)) {
+                // if this fails another thread already helped tail along, possibly only partway through the chain
+                tail.compareAndSet(t, last);
+                return;
+            }
+        }
+    }
+
+    private Participant<E> enter() {
+        Participant<E> self = participant.get();
+        self.active = true;
+        // a volatile write followed by a volatile read, the epoch read can't move above the active flag
+        self.epoch = globalEpoch.get();
+        return self;
+    }
+
+    private void exit(Participant<E> self) {
+        self.active = false;
+    }
+
+    private Participant<E> register() {
+        Participant<E> created = new Participant<>(this, Thread.currentThread());
+        participants.add(created);
+        return created;
+    }
+
+    /**
+     * moves the global epoch on when every thread inside an operation has seen the current one, on the way self takes
+     * over the nodes of participants whose thread died
+     */
+    private void tryAdvance(Participant<E> self) {
+        long current = globalEpoch.get();
+        for (Participant<E> other : participants) {
+            // a dead thread's writes are visible once isAlive returned false, only the one that removed it adopts
+            if (!other.owner.isAlive() && participants.remove(other)) {
+                self.adopt(other);
+                continue;
+            }
+            if (other.active && other.epoch != current) {
+                return;
+            }
+        }
+        globalEpoch.compareAndSet(current, current + 1);
+    }
+
+    private static <E> E nonNull(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        return e;
+    }
+
+    private static class Node<E> {
+        volatile E item;
+        volatile Node<E> next;
+        // links the node into limbo, a pool or an exchanged chain, next may still be read until it is reclaimed
+        Node<E> free;
+    }
+
+    /**
+     * the per thread state, only its owner touches anything but active and epoch
+     */
+    private static class Participant<E> {
+        private final LockFreeLinkedQueue<E> queue;
+        private final Thread owner;
+        volatile boolean active;
+        volatile long epoch;
+        private Node<E> pool;
+        private int poolSize;
+        // nodes retired in the three most recent epochs, by epoch % 3
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final Node<E>[] limbo = new Node[3];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final Node<E>[] limboTail = new Node[3];
+        private final int[] limboSize = new int[3];
+        private final long[] limboEpoch = new long[]{-3, -3, -3};
+        private final ArrayDeque<E> drainBuffer = new ArrayDeque<>();
+        private int retiredSinceAdvance;
+
+        Participant(LockFreeLinkedQueue<E> queue, Thread owner) {
+            this.queue = queue;
+            this.owner = owner;
+        }
+
+        Node<E> allocate(E e) {
+            if (pool == null) {
+                reclaim(queue.globalEpoch.get());
+            }
+            if (pool == null) {
+                Node<E> chain = queue.exchange.poll();
+                if (chain != null) {
+                    pool = chain;
+                    poolSize = POOL_BATCH;
+                }
+            }
+            Node<E> node = pool;
+            if (node == null) {
+                node = new Node<>();
+            } else {
+                pool = node.free;
+                poolSize--;
+                node.free = null;
+            }
+            node.item = e;
+            node.next = null;
+            return node;
+        }
+
+        void retire(Node<E> node) {
+            node.free = null;
+            retire(node, node, 1);
+            if (++retiredSinceAdvance >= ADVANCE_EVERY) {
+                retiredSinceAdvance = 0;
+                queue.tryAdvance(this);
+                reclaim(queue.globalEpoch.get());
+            }
+        }
+
+        /**
+         * takes the pool and limbo of a participant whose thread died. its limbo may still be read by threads of
+         * older epochs, so all of it goes into limbo again under the current epoch
+         */
+        void adopt(Participant<E> dead) {
+            adoptChain(dead.pool);
+            dead.pool = null;
+            dead.poolSize = 0;
+            for (int bucket = 0; bucket < 3; bucket++) {
+                adoptChain(dead.limbo[bucket]);
+                dead.limbo[bucket] = null;
+                dead.limboTail[bucket] = null;
+                dead.limboSize[bucket] = 0;
+            }
+        }
+
+        private void adoptChain(Node<E> first) {
+            if (first == null) {
+                return;
+            }
+            Node<E> last = first;
+            int size = 1;
+            while (last.free != null) {
+                last = last.free;
+                size++;
+            }
+            retire(first, last, size);
+        }
+
+        // puts the chain first to last, linked through free, into the bucket of the current epoch
+        private void retire(Node<E> first, Node<E> last, int size) {
+            long current = queue.globalEpoch.get();
+            int bucket = (int) (current % 3);
+            if (limboEpoch[bucket] != current) {
+                // whatever is left in the bucket was retired three epochs ago or earlier
+                release(bucket);
+                limboEpoch[bucket] = current;
+            }
+            last.free = limbo[bucket];
+            limbo[bucket] = first;
+            if (limboTail[bucket] == null) {
+                limboTail[bucket] = last;
+            }
+            limboSize[bucket] += size;
+        }
+
+        private void reclaim(long current) {
+            for (int bucket = 0; bucket < 3; bucket++) {
+                if (limboEpoch[bucket] <= current - 2) {
+                    release(bucket);
+                }
+            }
+        }
+
+        /**
+         * splices the bucket into the pool, a pool grown past two batches hands one batch to the exchange
+         */
+        private void release(int bucket) {
+            if (limbo[bucket] == null) {
+                return;
+            }
+            limboTail[bucket].free = pool;
+            pool = limbo[bucket];
+            poolSize += limboSize[bucket];
+            limbo[bucket] = null;
+            limboTail[bucket] = null;
+            limboSize[bucket] = 0;
+            while (poolSize >= 2 * POOL_BATCH) {
+                Node<E> chain = pool;
+                Node<E> last = chain;
+                for (int i = 1; i < POOL_BATCH; i++) {
+                    last = last.free;
+                }
+                pool = last.free;
+                last.free = null;
+                poolSize -= POOL_BATCH;
+                queue.exchange.add(chain);
+            }
+        }
+    }
+}
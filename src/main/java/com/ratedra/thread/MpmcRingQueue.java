@@ -0,0 +1,87 @@
+package com.ratedra.thread;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi producer multi consumer queue on a power of two array, Dmitry Vyukov's design.
+ * every slot carries a sequence number: a slot is free for the producer claiming position pos when its sequence is pos
+ * and holds an element for the consumer claiming pos when it is pos + 1. a producer or consumer claims a position
+ * with one CAS on the tail or head counter and hands the slot over with a release store of the slot sequence, so
+ * the two sides only meet on the slots themselves and nothing is allocated per element.
+ */
+public class MpmcRingQueue<E> implements NonBlockingQueue<E> {
+    private final int mask;
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+    private final PaddedCounter tail = new PaddedCounter(0);
+    private final PaddedCounter head = new PaddedCounter(0);
+
+    public MpmcRingQueue(int capacity) {
+        int size = RingBuffers.powerOfTwo(capacity);
+        this.mask = size - 1;
+        this.buffer = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long difference = sequences.get(index) - pos;
+            if (difference == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer[index] = e;
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds the element from one lap ago
+                return false;
+            } else {
+                // another producer took pos
+                pos = tail.get();
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long difference = sequences.get(index) - (pos + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E e = (E) buffer[index];
+                    buffer[index] = null;
+                    sequences.lazySet(index, pos + mask + 1);
+                    return e;
+                }
+                pos = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return RingBuffers.size(head, tail, mask + 1);
+    }
+
+    @Override
+    public int capacity() {
+        return mask + 1;
+    }
+}
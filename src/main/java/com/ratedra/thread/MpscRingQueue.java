@@ -0,0 +1,70 @@
+package com.ratedra.thread;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded queue for many producer threads and one consumer thread.
+ * producers claim a position with a CAS on tail and publish the element with a release store into its slot, the
+ * single consumer needs no CAS: a non null slot at head is the next element, and it frees the slot by clearing it
+ * and moving head with release stores.
+ */
+public class MpscRingQueue<E> implements NonBlockingQueue<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final PaddedCounter tail = new PaddedCounter(0);
+    // consumer owned
+    private final PaddedCounter head = new PaddedCounter(0);
+
+    public MpscRingQueue(int capacity) {
+        int size = RingBuffers.powerOfTwo(capacity);
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long pos = tail.get();
+            if (pos - head.get() > mask) {
+                return false;
+            }
+            if (tail.compareAndSet(pos, pos + 1)) {
+                buffer.lazySet((int) pos & mask, e);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        long pos = head.get();
+        int index = (int) pos & mask;
+        E e = buffer.get(index);
+        if (e == null) {
+            if (pos == tail.get()) {
+                return null;
+            }
+            // a producer claimed the slot but hasn't stored its element yet, it will in a moment
+            do {
+                Thread.yield();
+                e = buffer.get(index);
+            } while (e == null);
+        }
+        buffer.lazySet(index, null);
+        head.lazySet(pos + 1);
+        return e;
+    }
+
+    @Override
+    public int size() {
+        return RingBuffers.size(head, tail, mask + 1);
+    }
+
+    @Override
+    public int capacity() {
+        return mask + 1;
+    }
+}
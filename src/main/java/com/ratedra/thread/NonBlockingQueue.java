@@ -0,0 +1,27 @@
+package com.ratedra.thread;
+
+/**
+ * Queue whose offer and poll never block, offer returns false when a bounded queue is full and poll returns null
+ * when the queue is empty.
+ */
+public interface NonBlockingQueue<E> {
+    boolean offer(E e);
+
+    E poll();
+
+    /**
+     * approximate while other threads are offering or polling
+     */
+    int size();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * most elements the queue holds at once, unbounded queues never report full
+     */
+    default int capacity() {
+        return Integer.MAX_VALUE;
+    }
+}
@@ -4,6 +4,7 @@ package com.ratedra.thread;
 // to print from 1 to n numbers in a loop
 // two thread - odd thread and the other is even thread
 // sequential - odd then even then odd - wait and notify
+// the same for any number of threads through a TurnSequencer - stage 0, 1, 2, 0, 1, 2 ..
 public class OddEvenThread {
     int n = 20;
     int ind = 1;
@@ -11,9 +12,10 @@ public class OddEvenThread {
 
     private void printOdd(){
         synchronized (this){
-            while(ind < 20){
+            while(ind < n){
 
-                if(!printOdd){
+                // a loop, wait can return spuriously or after the other thread already took the turn back
+                while(!printOdd){
                     try {
                         wait();
                     } catch (InterruptedException e) {
@@ -31,9 +33,9 @@ public class OddEvenThread {
 
     private void printEven(){
         synchronized (this){
-            while(ind < 20){
+            while(ind < n){
 
-                if(printOdd){
+                while(printOdd){
                     try {
                         wait();
                     } catch (InterruptedException e) {
@@ -60,5 +62,43 @@ public class OddEvenThread {
         });
         oddThread.start();
         evenThread.start();
+        join(oddThread);
+        join(evenThread);
+
+        printInTurns(3, 20);
+    }
+
+    /**
+     * parties threads print 1 to n between them, thread i prints every number that is i + 1 modulo parties
+     */
+    private static void printInTurns(int parties, int n) {
+        TurnSequencer sequencer = new TurnSequencer(parties);
+        Thread[] threads = new Thread[parties];
+        for (int party = 0; party < parties; party++) {
+            int stage = party;
+            threads[party] = new Thread(() -> {
+                try {
+                    for (int number = stage + 1; number <= n; number += parties) {
+                        sequencer.awaitTurn(stage);
+                        System.out.println("Stage " + stage + " thread: " + number);
+                        sequencer.endTurn(stage);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[party].start();
+        }
+        for (Thread thread : threads) {
+            join(thread);
+        }
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
@@ -0,0 +1,48 @@
+package com.ratedra.thread;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A volatile long alone on its cache line, padded on both sides, so the producer and the consumer index of a queue
+ * don't invalidate each other's line on every update. cache is a plain field next to it for the owning thread,
+ * typically its last read of the opposite index.
+ */
+class PaddedCounter extends PaddedCounterValue {
+    long p11, p12, p13, p14, p15, p16, p17;
+
+    PaddedCounter(long initial) {
+        value = initial;
+        cache = initial;
+    }
+
+    long get() {
+        return value;
+    }
+
+    /**
+     * release store, cheaper than a volatile write and enough to publish what was written before it
+     */
+    void lazySet(long newValue) {
+        UPDATER.lazySet(this, newValue);
+    }
+
+    boolean compareAndSet(long expected, long newValue) {
+        return UPDATER.compareAndSet(this, expected, newValue);
+    }
+
+    long getAndAdd(long delta) {
+        return UPDATER.getAndAdd(this, delta);
+    }
+}
+
+abstract class PaddedCounterLeft {
+    long p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class PaddedCounterValue extends PaddedCounterLeft {
+    static final AtomicLongFieldUpdater<PaddedCounterValue> UPDATER =
+            AtomicLongFieldUpdater.newUpdater(PaddedCounterValue.class, "value");
+
+    volatile long value;
+    long cache;
+}
@@ -0,0 +1,31 @@
+package com.ratedra.thread;
+
+/**
+ * helpers shared by the ring buffer queues
+ */
+final class RingBuffers {
+    private RingBuffers() {
+    }
+
+    static int powerOfTwo(int capacity) {
+        if (capacity < 2 || capacity > 1 << 30) {
+            throw new RuntimeException("capacity has to be between 2 and 2^30: " + capacity);
+        }
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    /**
+     * head read before and after tail, so a consumer racing ahead of the tail read can't make it negative
+     */
+    static int size(PaddedCounter head, PaddedCounter tail, int capacity) {
+        long after = head.get();
+        while (true) {
+            long before = after;
+            long currentTail = tail.get();
+            after = head.get();
+            if (before == after) {
+                return (int) Math.max(0, Math.min(capacity, currentTail - after));
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.ratedra.thread;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The steps of a saga as a dependency graph. a step's createOrUpdate runs once all the steps it depends on succeeded,
+ * steps without a path between them run in parallel. when every step succeeded all of them commit, when one fails
+ * the ones that already ran are rolled back in reverse dependency order, a step only after everything that depended
+ * on it, again in parallel where the graph allows.
+ *
+ * one definition is shared by every saga started from it, so its transactions must not keep per saga state.
+ * it is frozen by the first start, steps can't be added after that.
+ */
+class SagaDefinition {
+    private final String name;
+    private final Map<String, StepSpec> specs = new LinkedHashMap<>();
+    private SagaStep[] steps;
+    private volatile boolean retryInterruptedSteps;
+
+    SagaDefinition(String name) {
+        this.name = name;
+    }
+
+    /**
+     * timeout bounds each of createOrUpdate, commit and rollback of this step, 0 waits forever. dependencies are
+     * step names of this saga, they can be added before or after the step itself
+     */
+    public synchronized SagaDefinition addStep(String stepName, Transaction transaction, long timeout, TimeUnit unit, String... dependsOn) {
+        if (steps != null) {
+            throw new RuntimeException("saga " + name + " is already in use");
+        }
+        if (specs.containsKey(stepName)) {
+            throw new RuntimeException("saga " + name + " already has a step " + stepName);
+        }
+        specs.put(stepName, new StepSpec(transaction, unit.toNanos(timeout), Arrays.asList(dependsOn)));
+        return this;
+    }
+
+    /**
+     * true runs a step again that was running when the process died, instead of rolling its saga back. only for
+     * transactions whose createOrUpdate is idempotent
+     */
+    public SagaDefinition setRetryInterruptedSteps(boolean retryInterruptedSteps) {
+        this.retryInterruptedSteps = retryInterruptedSteps;
+        return this;
+    }
+
+    public boolean isRetryInterruptedSteps() {
+        return retryInterruptedSteps;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * the steps in topological order with their links resolved, validates and freezes the definition on first use.
+     * throws on unknown dependencies and cycles
+     */
+    synchronized SagaStep[] steps() {
+        if (steps == null) {
+            steps = link();
+        }
+        return steps;
+    }
+
+    private SagaStep[] link() {
+        Map<String, List<String>> children = new HashMap<>();
+        Map<String, Integer> inDegree = new LinkedHashMap<>();
+        Deque<String> ready = new ArrayDeque<>();
+        for (Map.Entry<String, StepSpec> entry : specs.entrySet()) {
+            for (String parent : entry.getValue().dependsOn) {
+                if (!specs.containsKey(parent)) {
+                    throw new RuntimeException("step " + entry.getKey() + " of saga " + name + " depends on unknown step " + parent);
+                }
+                children.computeIfAbsent(parent, key -> new ArrayList<>()).add(entry.getKey());
+            }
+            inDegree.put(entry.getKey(), entry.getValue().dependsOn.size());
+            if (entry.getValue().dependsOn.isEmpty()) {
+                ready.add(entry.getKey());
+            }
+        }
+        // kahn, the index of a step is its position in topological order
+        List<String> order = new ArrayList<>(specs.size());
+        while (!ready.isEmpty()) {
+            String stepName = ready.poll();
+            order.add(stepName);
+            for (String child : children.getOrDefault(stepName, new ArrayList<>())) {
+                if (inDegree.merge(child, -1, Integer::sum) == 0) {
+                    ready.add(child);
+                }
+            }
+        }
+        if (order.size() < specs.size()) {
+            String cycle = inDegree.entrySet().stream()
+                    .filter(entry -> entry.getValue() > 0)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.joining(", "));
+            throw new RuntimeException("saga " + name + " has a cycle through: " + cycle);
+        }
+
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < order.size(); i++) {
+            index.put(order.get(i), i);
+        }
+        SagaStep[] linked = new SagaStep[order.size()];
+        for (int i = 0; i < order.size(); i++) {
+            String stepName = order.get(i);
+            StepSpec spec = specs.get(stepName);
+            int[] parents = spec.dependsOn.stream().mapToInt(index::get).toArray();
+            int[] childIndexes = children.getOrDefault(stepName, new ArrayList<>()).stream().mapToInt(index::get).toArray();
+            linked[i] = new SagaStep(i, stepName, spec.transaction, spec.timeoutNanos, parents, childIndexes);
+        }
+        return linked;
+    }
+
+    private static class StepSpec {
+        final Transaction transaction;
+        final long timeoutNanos;
+        final List<String> dependsOn;
+
+        StepSpec(Transaction transaction, long timeoutNanos, List<String> dependsOn) {
+            this.transaction = transaction;
+            this.timeoutNanos = timeoutNanos;
+            this.dependsOn = dependsOn;
+        }
+    }
+}
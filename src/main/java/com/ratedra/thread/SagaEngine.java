@@ -0,0 +1,294 @@
+package com.ratedra.thread;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ratedra.metrics.LatencyHistogram;
+import com.ratedra.metrics.MetricsRegistry;
+
+/**
+ * Runs sagas of any definition on one shared executor. every step is chained to the completion of the steps before
+ * it, so a saga only holds a thread while one of its transactions is running. the thread that finishes a step hands
+ * the next ones to the executor before it gives its own slot back, so execute must queue or reject instead of
+ * blocking while the executor is saturated: a ThreadPoolExecutor or a VirtualThreadExecutor do, a rejected step
+ * counts as failed. an executor whose execute blocks deadlocks once every slot hands off at the same time.
+ * per step timeouts come from a single scheduler thread, a step that times out is interrupted and counts as failed
+ * once it returned, a step that ignores the interrupt holds its saga until then so its rollback can't overtake it.
+ *
+ * with a log directory every step transition goes to a SagaLog and a restarted engine picks up the sagas a crash
+ * left unfinished: a saga whose steps all completed or never started resumes where it stopped, a saga with a failed
+ * step or a step that was running at the crash, whose effect is unknown, is rolled back. transactions have to be
+ * idempotent for that, a step can run or roll back a second time after a crash.
+ *
+ * an admission limit caps the sagas in flight, the ones above it wait in a bounded list and start as others finish,
+ * beyond that start fails right away. saga and compensation latency, how long steps wait for a thread and the depth
+ * of the executor's queue go to getMetrics(), to size the pool from measurements.
+ */
+class SagaEngine {
+    private static final int RUNNING = 0;
+    private static final int RETURNED = 1;
+    private static final int INTERRUPTING = 2;
+    private static final int INTERRUPTED = 3;
+
+    private static final long LOG_CHECKPOINT_BYTES = 64L << 20;
+
+    private final Executor executor;
+    private final ScheduledThreadPoolExecutor timeouts;
+    private final AtomicLong nextId = new AtomicLong();
+    // admitted and not finished yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<SagaExecution> admissionQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private volatile int maxInFlight = Integer.MAX_VALUE;
+    private volatile int maxWaiting = Integer.MAX_VALUE;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final LatencyHistogram stepQueueWait = metrics.histogram("saga.step.queue.wait");
+    // counted instead of printed, under load they come from every executor thread
+    final LongAdder logLost = metrics.counter("saga.log.lost");
+    final LongAdder rollbackFailed = metrics.counter("saga.rollback.failed");
+    // null when sagas are not logged
+    private final SagaLog log;
+    private final List<CompletableFuture<SagaResult>> recovered = new ArrayList<>();
+
+    /**
+     * the executor stays owned by the caller, shutdown only stops the timeout thread
+     */
+    SagaEngine(Executor executor) {
+        this(executor, null, new ArrayList<>());
+    }
+
+    /**
+     * logs every saga into logDir and continues the unfinished sagas of a previous run found there, definitions
+     * resolves them by name. a saga of an unknown definition stays unfinished in the log
+     */
+    SagaEngine(Executor executor, Path logDir, Collection<SagaDefinition> definitions) {
+        this.executor = executor;
+        this.timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "saga-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // cancelled timers leave the queue right away, nearly every step completes before its timeout
+        this.timeouts.setRemoveOnCancelPolicy(true);
+        metrics.gauge("saga.in.flight", inFlight::get);
+        metrics.gauge("saga.admission.waiting", waiting::get);
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            metrics.gauge("executor.queue.depth", () -> pool.getQueue().size());
+            metrics.gauge("executor.active", pool::getActiveCount);
+        } else if (executor instanceof VirtualThreadExecutor) {
+            metrics.gauge("executor.active", ((VirtualThreadExecutor) executor)::inFlight);
+        }
+        if (logDir == null) {
+            this.log = null;
+            return;
+        }
+        this.log = new SagaLog(logDir, LOG_CHECKPOINT_BYTES);
+        nextId.set(log.nextId() - 1);
+        Map<String, SagaDefinition> byName = new HashMap<>();
+        definitions.forEach(definition -> byName.put(definition.getName(), definition));
+        for (SagaLog.LiveSaga saga : log.recoveredSagas()) {
+            SagaDefinition definition = byName.get(saga.definition);
+            if (definition == null || definition.steps().length != saga.states.length) {
+                // no definition with that name and step count, the saga stays unfinished in the log
+                metrics.counter("saga.recovery.skipped").increment();
+                continue;
+            }
+            // recovered sagas are admitted unconditionally, they already held a slot before the crash
+            SagaExecution execution = new SagaExecution(this, definition, saga.id, log);
+            inFlight.incrementAndGet();
+            track(execution);
+            execution.resume(saga.states);
+            recovered.add(execution.result().thenApply(result -> result));
+        }
+    }
+
+    /**
+     * starts a saga and returns right away, the future completes once it committed or finished compensating. it fails
+     * when the saga was rejected or couldn't be logged. it is a copy, cancelling it doesn't stop the saga
+     */
+    public CompletableFuture<SagaResult> start(SagaDefinition definition) {
+        SagaExecution execution = new SagaExecution(this, definition, nextId.incrementAndGet(), log);
+        // with sagas waiting a freed slot is theirs, admitWaiting hands them out in start order
+        if (waiting.get() == 0 && tryAdmit()) {
+            begin(execution);
+        } else if (waiting.incrementAndGet() <= maxWaiting) {
+            admissionQueue.add(execution);
+            // every saga may have finished between the failed admit and the add
+            admitWaiting();
+        } else {
+            waiting.decrementAndGet();
+            metrics.counter("saga.rejected").increment();
+            execution.result().completeExceptionally(new RejectedExecutionException("saga " + definition.getName()
+                    + " rejected, " + inFlight.get() + " sagas in flight and " + maxWaiting + " waiting"));
+        }
+        // the engine's own future only completes with the saga, so the slot is given back exactly then
+        return execution.result().thenApply(result -> result);
+    }
+
+    /**
+     * at most maxInFlight sagas run at once, up to maxWaiting more wait for a slot in start order
+     */
+    public void setAdmissionLimit(int maxInFlight, int maxWaiting) {
+        this.maxInFlight = maxInFlight;
+        this.maxWaiting = maxWaiting;
+        admitWaiting();
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * the sagas continued from the log at construction
+     */
+    public List<CompletableFuture<SagaResult>> recoveredSagas() {
+        return recovered;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int waiting() {
+        return waiting.get();
+    }
+
+    /**
+     * stops the timeout thread and closes the log, sagas still running stay unfinished in it
+     */
+    public void shutdown() {
+        timeouts.shutdownNow();
+        if (log != null) {
+            try {
+                log.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean tryAdmit() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void admitWaiting() {
+        while (waiting.get() > 0 && tryAdmit()) {
+            SagaExecution next = admissionQueue.poll();
+            if (next == null) {
+                // counted but not added yet, its own admitWaiting picks it up
+                inFlight.decrementAndGet();
+                return;
+            }
+            waiting.decrementAndGet();
+            begin(next);
+        }
+    }
+
+    private void begin(SagaExecution execution) {
+        track(execution);
+        execution.start();
+    }
+
+    private void track(SagaExecution execution) {
+        execution.result().whenComplete((result, e) -> {
+            if (result == null) {
+                // failed before any step ran, the log refused the saga
+                metrics.counter("saga.not.started").increment();
+            } else if (result.status == SagaResult.Status.COMMITTED) {
+                metrics.counter("saga.committed").increment();
+                metrics.histogram("saga.commit.latency").record(result.elapsedNanos);
+            } else {
+                metrics.counter(result.status == SagaResult.Status.COMPENSATED ? "saga.compensated" : "saga.failed").increment();
+            }
+            if (result != null && result.compensationNanos > 0) {
+                metrics.histogram("saga.compensation.latency").record(result.compensationNanos);
+            }
+            inFlight.decrementAndGet();
+            admitWaiting();
+        });
+    }
+
+    /**
+     * runs action on the executor, an action still running after timeoutNanos is interrupted and the returned future
+     * fails with a TimeoutException when it returns. the clock starts when a thread picks the action up, time spent
+     * queued behind other sagas doesn't count
+     */
+    CompletableFuture<Void> run(String what, Runnable action, long timeoutNanos) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        long submittedNanos = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                stepQueueWait.record(System.nanoTime() - submittedNanos);
+                // RUNNING until either the action returns or the timer claims the thread to interrupt it, either way
+                // done completes on the runner once the action returned
+                AtomicInteger runState = new AtomicInteger(RUNNING);
+                ScheduledFuture<?> timer = null;
+                Throwable failed = null;
+                try {
+                    if (timeoutNanos > 0) {
+                        Thread runner = Thread.currentThread();
+                        timer = timeouts.schedule(() -> {
+                            if (runState.compareAndSet(RUNNING, INTERRUPTING)) {
+                                runner.interrupt();
+                                runState.set(INTERRUPTED);
+                            }
+                        }, timeoutNanos, TimeUnit.NANOSECONDS);
+                    }
+                    action.run();
+                } catch (RuntimeException | Error e) {
+                    failed = e;
+                } finally {
+                    if (timer != null) {
+                        timer.cancel(false);
+                    }
+                    if (runState.compareAndSet(RUNNING, RETURNED)) {
+                        if (failed == null) {
+                            done.complete(null);
+                        } else {
+                            done.completeExceptionally(failed);
+                        }
+                    } else {
+                        // an interrupt meant for this step must not hit the next task of the pool thread
+                        while (runState.get() != INTERRUPTED) {
+                            Thread.yield();
+                        }
+                        Thread.interrupted();
+                        // only now that the action returned, its rollback must not race an effect still on the way
+                        done.completeExceptionally(new TimeoutException(what + " timed out after "
+                                + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms"));
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected, the executor is saturated or shut down
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+}
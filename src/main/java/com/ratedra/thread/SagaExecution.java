@@ -0,0 +1,294 @@
+package com.ratedra.thread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One running saga. every transition happens in the completion callback of a step, on whichever thread finished it,
+ * counters decide who moves on: the last parent to succeed starts a child, the last step to settle after a failure
+ * starts the rollback, the last rollback of a child starts the rollback of its parent.
+ */
+class SagaExecution {
+    static final int PENDING = 0;
+    static final int RUNNING = 1;
+    static final int DONE = 2;
+    static final int FAILED = 3;
+    // outcome unknown, rolled back like a step that succeeded
+    static final int TIMED_OUT = 4;
+    static final int COMPENSATED = 5;
+    static final int COMPENSATION_FAILED = 6;
+
+    private final SagaEngine engine;
+    private final SagaDefinition definition;
+    private final SagaStep[] steps;
+    private final long id;
+    private final long startedNanos = System.nanoTime();
+    private final CompletableFuture<SagaResult> result = new CompletableFuture<>();
+    // null when the engine doesn't log
+    private final SagaLog log;
+    private final AtomicIntegerArray states;
+    private final AtomicIntegerArray pendingParents;
+    // steps started and not settled yet
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean secondaryFailure;
+    private volatile long compensationStartedNanos;
+    private AtomicIntegerArray pendingChildRollbacks;
+    private AtomicInteger remainingRollbacks;
+
+    SagaExecution(SagaEngine engine, SagaDefinition definition, long id, SagaLog log) {
+        this.engine = engine;
+        this.log = log;
+        this.definition = definition;
+        this.steps = definition.steps();
+        this.id = id;
+        this.states = new AtomicIntegerArray(steps.length);
+        this.pendingParents = new AtomicIntegerArray(steps.length);
+        this.remaining = new AtomicInteger(steps.length);
+        for (SagaStep step : steps) {
+            pendingParents.set(step.index, step.parents.length);
+        }
+    }
+
+    CompletableFuture<SagaResult> result() {
+        return result;
+    }
+
+    long id() {
+        return id;
+    }
+
+    void start() {
+        if (log != null) {
+            try {
+                log.started(id, definition.getName(), steps.length);
+            } catch (RuntimeException e) {
+                // nothing ran yet, the saga fails instead of holding its admission slot forever
+                result.completeExceptionally(e);
+                return;
+            }
+        }
+        if (steps.length == 0) {
+            finish(SagaResult.Status.COMMITTED);
+            return;
+        }
+        outstanding.incrementAndGet();
+        for (SagaStep step : steps) {
+            if (step.parents.length == 0) {
+                launch(step);
+            }
+        }
+        // held until every root is launched, a fast failing root can't start the rollback before its siblings ran
+        settledOne();
+    }
+
+    /**
+     * continues a saga recovered from the log. it goes on forward when every step either completed or never started,
+     * otherwise it is rolled back. a step that was running at the crash runs again when the definition retries
+     * interrupted steps, else it counts as timed out since its effect is unknown
+     */
+    void resume(byte[] recoveredStates) {
+        boolean rollBack = false;
+        int completed = 0;
+        for (SagaStep step : steps) {
+            int state = recoveredStates[step.index];
+            if (state == RUNNING) {
+                state = definition.isRetryInterruptedSteps() ? PENDING : TIMED_OUT;
+            } else if (state == COMPENSATION_FAILED) {
+                // try that rollback once more
+                state = DONE;
+            }
+            states.set(step.index, state);
+            rollBack |= state == FAILED || state == TIMED_OUT || state == COMPENSATED;
+            completed += state == DONE ? 1 : 0;
+        }
+        if (rollBack) {
+            failure.set(new RuntimeException("saga " + definition.getName() + "#" + id + " was interrupted by a restart"));
+            compensate();
+            return;
+        }
+        remaining.set(steps.length - completed);
+        if (completed == steps.length) {
+            commit();
+            return;
+        }
+        outstanding.incrementAndGet();
+        for (SagaStep step : steps) {
+            int parentsLeft = 0;
+            for (int parent : step.parents) {
+                parentsLeft += states.get(parent) == DONE ? 0 : 1;
+            }
+            pendingParents.set(step.index, parentsLeft);
+        }
+        for (SagaStep step : steps) {
+            if (states.get(step.index) == PENDING && pendingParents.get(step.index) == 0) {
+                launch(step);
+            }
+        }
+        settledOne();
+    }
+
+    private void launch(SagaStep step) {
+        outstanding.incrementAndGet();
+        states.set(step.index, RUNNING);
+        if (log == null) {
+            runStep(step);
+            return;
+        }
+        try {
+            // write ahead, the step may only have an effect once the log knows it started
+            log.step(id, step.index, RUNNING, () -> runStep(step), e -> settled(step, e));
+        } catch (RuntimeException e) {
+            settled(step, e);
+        }
+    }
+
+    private void runStep(SagaStep step) {
+        engine.run(stepLabel(step) + " createOrUpdate", step.transaction::createOrUpdate, step.timeoutNanos)
+                .whenComplete((ignored, e) -> settled(step, e));
+    }
+
+    private void logState(SagaStep step, int state) {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.step(id, step.index, state, null, null);
+        } catch (RuntimeException e) {
+            // an outcome missing from the log only makes recovery roll the step back
+            engine.logLost.increment();
+        }
+    }
+
+    private void settled(SagaStep step, Throwable e) {
+        if (e == null) {
+            states.set(step.index, DONE);
+            logState(step, DONE);
+            if (failure.get() == null) {
+                // children launch before this step counts as settled, so outstanding can't reach 0 in between
+                for (int child : step.children) {
+                    if (pendingParents.decrementAndGet(child) == 0) {
+                        launch(steps[child]);
+                    }
+                }
+            }
+            if (remaining.decrementAndGet() == 0) {
+                commit();
+                return;
+            }
+        } else {
+            int state = e instanceof TimeoutException ? TIMED_OUT : FAILED;
+            states.set(step.index, state);
+            logState(step, state);
+            failure.compareAndSet(null, e);
+        }
+        settledOne();
+    }
+
+    private void settledOne() {
+        if (outstanding.decrementAndGet() == 0 && failure.get() != null) {
+            compensate();
+        }
+    }
+
+    private void commit() {
+        AtomicInteger commits = new AtomicInteger(steps.length);
+        for (SagaStep step : steps) {
+            engine.run(stepLabel(step) + " commit", step.transaction::commit, step.timeoutNanos).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    failure.compareAndSet(null, e);
+                    secondaryFailure = true;
+                }
+                if (commits.decrementAndGet() == 0) {
+                    finish(secondaryFailure ? SagaResult.Status.FAILED : SagaResult.Status.COMMITTED);
+                }
+            });
+        }
+    }
+
+    /**
+     * rolls back every step that ran, a step once all of its children that ran are rolled back
+     */
+    private void compensate() {
+        compensationStartedNanos = System.nanoTime();
+        pendingChildRollbacks = new AtomicIntegerArray(steps.length);
+        int toRollBack = 0;
+        for (SagaStep step : steps) {
+            if (!needsRollback(step.index)) {
+                continue;
+            }
+            toRollBack++;
+            int children = 0;
+            for (int child : step.children) {
+                if (needsRollback(child)) {
+                    children++;
+                }
+            }
+            pendingChildRollbacks.set(step.index, children);
+        }
+        if (toRollBack == 0) {
+            finish(SagaResult.Status.COMPENSATED);
+            return;
+        }
+        remainingRollbacks = new AtomicInteger(toRollBack);
+        for (SagaStep step : steps) {
+            if (needsRollback(step.index) && pendingChildRollbacks.get(step.index) == 0) {
+                rollback(step);
+            }
+        }
+    }
+
+    private boolean needsRollback(int index) {
+        int state = states.get(index);
+        return state == DONE || state == TIMED_OUT;
+    }
+
+    private void rollback(SagaStep step) {
+        engine.run(stepLabel(step) + " rollback", step.transaction::rollback, step.timeoutNanos).whenComplete((ignored, e) -> {
+            if (e != null) {
+                secondaryFailure = true;
+                engine.rollbackFailed.increment();
+            }
+            states.set(step.index, e == null ? COMPENSATED : COMPENSATION_FAILED);
+            logState(step, e == null ? COMPENSATED : COMPENSATION_FAILED);
+            for (int parent : step.parents) {
+                if (needsRollback(parent) && pendingChildRollbacks.decrementAndGet(parent) == 0) {
+                    rollback(steps[parent]);
+                }
+            }
+            if (remainingRollbacks.decrementAndGet() == 0) {
+                finish(secondaryFailure ? SagaResult.Status.FAILED : SagaResult.Status.COMPENSATED);
+            }
+        });
+    }
+
+    private void finish(SagaResult.Status status) {
+        if (log != null) {
+            try {
+                log.ended(id, status);
+            } catch (RuntimeException e) {
+                // recovery finds the saga unfinished and settles it again
+                engine.logLost.increment();
+            }
+        }
+        List<String> compensated = new ArrayList<>();
+        for (SagaStep step : steps) {
+            if (states.get(step.index) == COMPENSATED) {
+                compensated.add(step.name);
+            }
+        }
+        long now = System.nanoTime();
+        long compensationNanos = compensationStartedNanos == 0 ? 0 : now - compensationStartedNanos;
+        result.complete(new SagaResult(id, definition.getName(), status, failure.get(), compensated, now - startedNanos, compensationNanos));
+    }
+
+    private String stepLabel(SagaStep step) {
+        return "step " + step.name + " of saga " + definition.getName() + "#" + id;
+    }
+}
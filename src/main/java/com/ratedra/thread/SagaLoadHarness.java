@@ -0,0 +1,128 @@
+package com.ratedra.thread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ratedra.metrics.LatencyHistogram;
+import com.ratedra.metrics.MetricsRegistry;
+
+/**
+ * Load test of the saga path: sagas arrive at a fixed rate whether or not earlier ones finished (open loop, like
+ * requests from independent clients), their steps block for a configurable time like remote calls and fail at a
+ * configurable rate like ErrorService. the engine's admission limit caps the sagas in flight.
+ * every run reports saga and compensation latency, how long steps waited for a thread and the depth of the executor
+ * queue sampled every millisecond, which is what a pool size has to be chosen from.
+ */
+public class SagaLoadHarness {
+    private static final int ARRIVALS_PER_SECOND = 1000;
+    private static final int SECONDS = 2;
+    private static final long STEP_MICROS = 2000;
+    private static final double FAILURE_RATE = 0.05;
+
+    public static void main(String[] args) {
+        // a saga keeps a thread busy for about 4 steps plus 4 commits, 10ms, so 1000 sagas/s need about 10 threads
+        run("fixed pool 4, no limit", Executors.newFixedThreadPool(4), Integer.MAX_VALUE, Integer.MAX_VALUE, false);
+        run("fixed pool 4, limit 64+256", Executors.newFixedThreadPool(4), 64, 256, false);
+        run("fixed pool 16, limit 64+256", Executors.newFixedThreadPool(16), 64, 256, false);
+        run("fixed pool 64, limit 256+1024", Executors.newFixedThreadPool(64), 256, 1024, true);
+        run("virtual threads, limit 256+1024", new VirtualThreadExecutor("saga-load", 1000), 256, 1024, false);
+    }
+
+    private static void run(String label, ExecutorService executor, int maxInFlight, int maxWaiting, boolean printMetrics) {
+        SagaEngine engine = new SagaEngine(executor);
+        engine.setAdmissionLimit(maxInFlight, maxWaiting);
+        SagaDefinition checkout = new SagaDefinition("checkout")
+                .addStep("reserve", new LatencyService(STEP_MICROS, FAILURE_RATE), 1, TimeUnit.SECONDS)
+                .addStep("charge", new LatencyService(STEP_MICROS, FAILURE_RATE), 1, TimeUnit.SECONDS, "reserve")
+                .addStep("ship", new LatencyService(STEP_MICROS, FAILURE_RATE), 1, TimeUnit.SECONDS, "reserve")
+                .addStep("notify", new LatencyService(STEP_MICROS, FAILURE_RATE), 1, TimeUnit.SECONDS, "charge", "ship");
+        LatencyHistogram queueDepth = new LatencyHistogram();
+        List<CompletableFuture<SagaResult>> results = new ArrayList<>();
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(SECONDS);
+        long submitted = 0;
+        for (long now = start; now < end; now = System.nanoTime()) {
+            long due = (now - start) * ARRIVALS_PER_SECOND / TimeUnit.SECONDS.toNanos(1);
+            for (; submitted < due; submitted++) {
+                results.add(engine.start(checkout));
+            }
+            if (executor instanceof ThreadPoolExecutor) {
+                queueDepth.record(((ThreadPoolExecutor) executor).getQueue().size());
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        // rejected sagas complete exceptionally, waiting for them is fine
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).handle((ignored, e) -> null).join();
+        long elapsedNanos = System.nanoTime() - start;
+
+        MetricsRegistry metrics = engine.getMetrics();
+        LatencyHistogram.Snapshot commits = metrics.histogram("saga.commit.latency").snapshot();
+        LatencyHistogram.Snapshot compensations = metrics.histogram("saga.compensation.latency").snapshot();
+        LatencyHistogram.Snapshot stepWaits = metrics.histogram("saga.step.queue.wait").snapshot();
+        LatencyHistogram.Snapshot depths = queueDepth.snapshot();
+        long committed = metrics.counter("saga.committed").sum();
+        long finished = committed + metrics.counter("saga.compensated").sum() + metrics.counter("saga.failed").sum();
+        System.out.println(String.format("%-32s sagas: %d committed: %d compensated: %d rejected: %d throughput: %.0f/s "
+                        + "commit p50/p99/p99.9: %.1f/%.1f/%.1fms compensation p50/p99: %.1f/%.1fms step queue wait p99: %.1fms "
+                        + "queue depth p50/p99/max: %d/%d/%d",
+                label, submitted, committed, metrics.counter("saga.compensated").sum(), metrics.counter("saga.rejected").sum(),
+                finished * 1e9 / elapsedNanos, commits.percentile(0.5) / 1e6, commits.percentile(0.99) / 1e6,
+                commits.percentile(0.999) / 1e6, compensations.percentile(0.5) / 1e6, compensations.percentile(0.99) / 1e6,
+                stepWaits.percentile(0.99) / 1e6, depths.percentile(0.5), depths.percentile(0.99), depths.max()));
+        if (printMetrics) {
+            System.out.println(metrics.snapshot());
+        }
+        engine.shutdown();
+        executor.shutdown();
+    }
+
+    /**
+     * a remote service, every call blocks for about latencyMicros, half of that to a half more, createOrUpdate fails
+     * with the given probability
+     */
+    private static class LatencyService implements Transaction {
+        private final long latencyMicros;
+        private final double failureRate;
+
+        LatencyService(long latencyMicros, double failureRate) {
+            this.latencyMicros = latencyMicros;
+            this.failureRate = failureRate;
+        }
+
+        @Override
+        public void createOrUpdate() {
+            call(latencyMicros);
+            if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+                throw new RuntimeException("injected failure");
+            }
+        }
+
+        @Override
+        public void commit() {
+            call(latencyMicros / 4);
+        }
+
+        @Override
+        public void rollback() {
+            call(latencyMicros / 4);
+        }
+
+        private void call(long micros) {
+            long jittered = micros / 2 + ThreadLocalRandom.current().nextLong(micros + 1);
+            try {
+                TimeUnit.MICROSECONDS.sleep(jittered);
+            } catch (InterruptedException e) {
+                // the engine interrupts steps that ran into their timeout
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
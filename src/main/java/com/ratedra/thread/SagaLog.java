@@ -0,0 +1,188 @@
+package com.ratedra.thread;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.ratedra.journal.GroupCommitLog;
+
+/**
+ * Append only log of saga step transitions on a GroupCommitLog, the same group commit scheme as the task scheduler's
+ * journal. a step is logged RUNNING before its createOrUpdate is handed to the executor and only runs once that
+ * record is durable, so after a crash every step that may have had an effect is in the log. a RUNNING record the log
+ * failed to write never runs its step, onLost gets the failure instead and the saga rolls back. outcomes are logged
+ * without waiting, a lost outcome leaves the step RUNNING, which recovery treats as unknown and rolls back.
+ *
+ * the log is a sequence of generations saga-<n>.log, each starting with a checkpoint: a STARTED record carrying the
+ * current step states of every unfinished saga.
+ *
+ * record layout: [int payload length][int crc32 of payload][byte type][long saga id] followed by
+ * STARTED [int nameLen][definition name][int steps][one state byte per step], STEP [int step][byte state],
+ * ENDED [byte status]
+ */
+class SagaLog extends GroupCommitLog<SagaLog.Entry> {
+    private static final byte STARTED = 1;
+    private static final byte STEP = 2;
+    private static final byte ENDED = 3;
+    private static final byte CHECKPOINT = 4;
+
+    // unfinished sagas by id, filled by replay and then only touched by the writer
+    private final Map<Long, LiveSaga> live = new HashMap<>();
+    // a handful of definitions shared by many sagas, one string each
+    private final Map<String, String> names = new HashMap<>();
+    private final List<LiveSaga> recovered;
+
+    SagaLog(Path dir, long checkpointBytes) {
+        super(dir, "saga", "saga log", checkpointBytes, CHECKPOINT);
+        open();
+        // nothing was appended yet, the writer leaves live alone until then
+        recovered = new ArrayList<>(live.values());
+        recovered.sort(Comparator.comparingLong(saga -> saga.id));
+    }
+
+    /**
+     * unfinished sagas found at startup ordered by id, with the last logged state of each step
+     */
+    List<LiveSaga> recoveredSagas() {
+        return recovered;
+    }
+
+    void started(long sagaId, String definition, int steps) {
+        append(new Entry(STARTED, sagaId, definition, steps, null, null));
+    }
+
+    /**
+     * onDurable, when not null, runs once the record is fsynced and onLost once it never will be, both on the writer
+     * thread and neither may block. when step throws neither of them runs
+     */
+    void step(long sagaId, int step, int state, Runnable onDurable, Consumer<IOException> onLost) {
+        append(new Entry(STEP, sagaId, null, (step << 8) | state, onDurable, onLost));
+    }
+
+    void ended(long sagaId, SagaResult.Status status) {
+        append(new Entry(ENDED, sagaId, null, status.ordinal(), null, null));
+    }
+
+    @Override
+    protected void apply(Entry entry) throws IOException {
+        if (entry.type == STARTED) {
+            LiveSaga saga = new LiveSaga(entry.sagaId, entry.definition, new byte[entry.value]);
+            live.put(saga.id, saga);
+            seenId(saga.id);
+            writeStarted(saga);
+            return;
+        }
+        if (entry.type == STEP) {
+            LiveSaga saga = live.get(entry.sagaId);
+            if (saga != null) {
+                saga.states[entry.value >>> 8] = (byte) entry.value;
+            }
+            ByteBuffer buffer = beginRecord(STEP, entry.sagaId, 5);
+            buffer.putInt(entry.value >>> 8);
+            buffer.put((byte) entry.value);
+        } else {
+            live.remove(entry.sagaId);
+            beginRecord(ENDED, entry.sagaId, 1).put((byte) entry.value);
+        }
+        endRecord();
+    }
+
+    @Override
+    protected void durable(Entry entry) {
+        if (entry.onDurable != null) {
+            entry.onDurable.run();
+        }
+    }
+
+    @Override
+    protected void lost(Entry entry, IOException cause) {
+        if (entry.onLost != null) {
+            entry.onLost.accept(cause);
+        }
+    }
+
+    @Override
+    protected void checkpoint() throws IOException {
+        List<LiveSaga> liveSagas = new ArrayList<>(live.values());
+        liveSagas.sort(Comparator.comparingLong(saga -> saga.id));
+        for (LiveSaga saga : liveSagas) {
+            writeStarted(saga);
+        }
+    }
+
+    @Override
+    protected void replayStarting() {
+        live.clear();
+    }
+
+    @Override
+    protected void replay(byte type, long sagaId, ByteBuffer body) {
+        if (type == STARTED) {
+            String name = readString(body);
+            byte[] states = new byte[body.getInt()];
+            body.get(states);
+            live.put(sagaId, new LiveSaga(sagaId, names.computeIfAbsent(name, key -> key), states));
+            seenId(sagaId);
+        } else if (type == STEP) {
+            int step = body.getInt();
+            byte state = body.get();
+            LiveSaga saga = live.get(sagaId);
+            if (saga != null && step < saga.states.length) {
+                saga.states[step] = state;
+            }
+        } else if (type == ENDED) {
+            live.remove(sagaId);
+        }
+    }
+
+    private void writeStarted(LiveSaga saga) throws IOException {
+        byte[] name = saga.definition.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = beginRecord(STARTED, saga.id, 4 + name.length + 4 + saga.states.length);
+        buffer.putInt(name.length);
+        buffer.put(name);
+        buffer.putInt(saga.states.length);
+        buffer.put(saga.states);
+        endRecord();
+    }
+
+    /**
+     * an unfinished saga, states holds the SagaExecution state of every step of its definition
+     */
+    static class LiveSaga {
+        final long id;
+        final String definition;
+        final byte[] states;
+
+        LiveSaga(long id, String definition, byte[] states) {
+            this.id = id;
+            this.definition = definition;
+            this.states = states;
+        }
+    }
+
+    static class Entry {
+        private final byte type;
+        private final long sagaId;
+        private final String definition;
+        // step count for STARTED, step << 8 | state for STEP, status for ENDED
+        private final int value;
+        private final Runnable onDurable;
+        private final Consumer<IOException> onLost;
+
+        Entry(byte type, long sagaId, String definition, int value, Runnable onDurable, Consumer<IOException> onLost) {
+            this.type = type;
+            this.sagaId = sagaId;
+            this.definition = definition;
+            this.value = value;
+            this.onDurable = onDurable;
+            this.onLost = onLost;
+        }
+    }
+}
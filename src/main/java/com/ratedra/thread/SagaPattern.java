@@ -1,20 +1,24 @@
 package com.ratedra.thread;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.stream.Collectors;
-
-interface Transaction {
-    void createOrUpdate();
-
-    void commit();
-
-    void rollback();
-}
+import java.util.stream.Stream;
 
 class User implements Transaction {
     @Override
@@ -84,85 +88,83 @@ class ErrorService implements Transaction {
     }
 }
 
+/**
+ * the demo saga on a SagaEngine: user and order are created in parallel, notification once both exist, the error
+ * service when asked for runs next to them and fails. one executor for every transaction, created once
+ */
 class Orchestrator {
-    public void orchestrateDistributedTransaction(boolean forceError) {
-        ExecutorService executorService = Executors.newFixedThreadPool(4);
-        User user = new User();
-        Order order = new Order();
-        Notification notification = new Notification();
-        ErrorService errorService = new ErrorService();
-        List<CompletableFuture<Void>> futures = new ArrayList<>();
-        futures.add(CompletableFuture.runAsync(() -> user.createOrUpdate(), executorService));
-        futures.add(CompletableFuture.runAsync(() -> order.createOrUpdate(), executorService));
-        futures.add(CompletableFuture.runAsync(() -> notification.createOrUpdate(), executorService));
-        if (forceError) {
-            futures.add(CompletableFuture.runAsync(() -> errorService.createOrUpdate(), executorService));
-        }
-        List<CompletableFuture<Void>> wrappedFutures = new ArrayList<>();
-        AtomicBoolean failed = new AtomicBoolean(false);
-
-        futures.forEach(future -> {
-            wrappedFutures.add(future.handle((result, ex) -> {
-                if (ex != null) {
-                    System.out.println("Transaction failed due to: " + ex.getMessage());
-                    failed.set(true);
-                }
-                return null;
-            }));
-        });
-        CompletableFuture<Void> allFutures = CompletableFuture.allOf(wrappedFutures.toArray(new CompletableFuture[0]));
+    private static final long STEP_TIMEOUT_MILLIS = 1000;
 
-        if (failed.get()) {
-            handleError(forceError, user, executorService, order, notification, errorService);
-        } else {
-            handleSuccess(forceError, user, executorService, order, notification, errorService);
-        }
-        executorService.shutdown();
+    private final ExecutorService executorService;
+    private final SagaEngine engine;
+    private final SagaDefinition saga;
+    private final SagaDefinition failingSaga;
+
+    public Orchestrator() {
+        this(Executors.newFixedThreadPool(4));
     }
 
-    private static void handleSuccess(boolean forceError, User user, ExecutorService executorService, Order order, Notification notification, ErrorService errorService) {
-        System.out.println("update success, commiting");
-        List<CompletableFuture<Void>> commitFutures = new ArrayList<>();
-        commitFutures.add(CompletableFuture.runAsync(() -> user.commit(), executorService));
-        commitFutures.add(CompletableFuture.runAsync(() -> order.commit(), executorService));
-        commitFutures.add(CompletableFuture.runAsync(() -> notification.commit(), executorService));
+    public Orchestrator(ExecutorService executorService) {
+        this.executorService = executorService;
+        this.engine = new SagaEngine(executorService);
+        this.saga = define("user-order", false);
+        this.failingSaga = define("user-order-with-error", true);
+    }
+
+    /**
+     * every step on a thread of its own, virtual when the jvm has them, for services that block on io
+     */
+    public static Orchestrator withVirtualThreads(int maxConcurrency) {
+        return new Orchestrator(new VirtualThreadExecutor("saga", maxConcurrency));
+    }
+
+    private static SagaDefinition define(String name, boolean forceError) {
+        SagaDefinition definition = new SagaDefinition(name)
+                .addStep("user", new User(), STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .addStep("order", new Order(), STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .addStep("notification", new Notification(), STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, "user", "order");
         if (forceError) {
-            commitFutures.add(CompletableFuture.runAsync(() -> errorService.commit(), executorService));
+            definition.addStep("error", new ErrorService(), STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
         }
+        return definition;
+    }
 
-        List<CompletableFuture<Object>> wrappedCommitFutures = commitFutures.stream().map(f -> f.handle((result, ex) -> {
-            if(ex != null) {
-                System.out.println("failed to commit");
-                return null;
-            }
-            System.out.println("commit finished successfully");
-            return null;
-        })).collect(Collectors.toList());
+    /**
+     * the future completes once every commit, or every rollback, finished
+     */
+    public CompletableFuture<SagaResult> orchestrateDistributedTransaction(boolean forceError) {
+        return engine.start(forceError ? failingSaga : saga);
+    }
 
-        CompletableFuture<Void> allOf = CompletableFuture.allOf(wrappedCommitFutures.toArray(new CompletableFuture[0]));
+    public void shutdown() {
+        engine.shutdown();
+        executorService.shutdown();
     }
+}
 
-    private static void handleError(boolean forceError, User user, ExecutorService executorService, Order order, Notification notification, ErrorService errorService) {
-        System.out.println("update failed, rolling back");
-        List<CompletableFuture<Void>> rollbackFuture = new ArrayList<>();
-        rollbackFuture.add(CompletableFuture.runAsync(() -> user.rollback(), executorService));
-        rollbackFuture.add(CompletableFuture.runAsync(() -> order.rollback(), executorService));
-        rollbackFuture.add(CompletableFuture.runAsync(() -> notification.rollback(), executorService));
-        if (forceError) {
-            rollbackFuture.add(CompletableFuture.runAsync(() -> errorService.rollback(), executorService));
-        }
+/**
+ * does nothing, fails createOrUpdate with the given probability, to measure the engine itself
+ */
+class NoopService implements Transaction {
+    private final double failureRate;
 
-        List<CompletableFuture<Object>> wrappedRollbackFutures = rollbackFuture.stream().map(f -> f.handle((result, ex) -> {
-            if(ex != null) {
-                System.out.println("failed to rollback");
-                return null;
-            }
-            System.out.println("rollback finished successfully");
-            return null;
-        })).collect(Collectors.toList());
+    NoopService(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    @Override
+    public void createOrUpdate() {
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            throw new RuntimeException("injected failure");
+        }
+    }
 
-        CompletableFuture<Void> allOf = CompletableFuture.allOf(wrappedRollbackFutures.toArray(new CompletableFuture[0]));
+    @Override
+    public void commit() {
+    }
 
+    @Override
+    public void rollback() {
     }
 }
 
@@ -170,7 +172,125 @@ class Orchestrator {
 public class SagaPattern {
     public static void main(String[] args) {
         Orchestrator orchestrator = new Orchestrator();
-        orchestrator.orchestrateDistributedTransaction(true);
-        orchestrator.orchestrateDistributedTransaction(false);
+        System.out.println(orchestrator.orchestrateDistributedTransaction(true).join());
+        System.out.println(orchestrator.orchestrateDistributedTransaction(false).join());
+        orchestrator.shutdown();
+
+        Orchestrator virtualOrchestrator = Orchestrator.withVirtualThreads(1000);
+        System.out.println(virtualOrchestrator.orchestrateDistributedTransaction(false).join());
+        virtualOrchestrator.shutdown();
+
+        sagaEngineBenchmark(100000, 0.05);
+        sagaRecoveryBenchmark(100000);
+    }
+
+    /**
+     * logged vs plain saga cost, then a crash with sagaCount sagas in flight and the time until all of them are
+     * committed or rolled back again. the crashed engine's executor runs the first steps handed to it and then drops
+     * every step, as if the process died, which leaves sagas in every stage. the steps are idempotent, so the ones
+     * interrupted by the crash run again, the sagas with a failed step are rolled back
+     */
+    private static void sagaRecoveryBenchmark(int sagaCount) {
+        Path logDir;
+        try {
+            logDir = Files.createTempDirectory("saga-log");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        SagaDefinition diamond = new SagaDefinition("diamond")
+                .addStep("reserve", new NoopService(0), 1, TimeUnit.SECONDS)
+                .addStep("charge", new NoopService(0.01), 1, TimeUnit.SECONDS, "reserve")
+                .addStep("ship", new NoopService(0), 1, TimeUnit.SECONDS, "reserve")
+                .addStep("notify", new NoopService(0), 1, TimeUnit.SECONDS, "charge", "ship")
+                .setRetryInterruptedSteps(true);
+        List<SagaDefinition> definitions = Collections.singletonList(diamond);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (boolean logged : new boolean[]{false, true}) {
+            SagaEngine engine = logged ? new SagaEngine(executor, logDir, definitions) : new SagaEngine(executor);
+            long start = System.nanoTime();
+            List<CompletableFuture<SagaResult>> results = new ArrayList<>(sagaCount);
+            for (int i = 0; i < sagaCount; i++) {
+                results.add(engine.start(diamond));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+            long elapsedNanos = System.nanoTime() - start;
+            engine.shutdown();
+            System.out.println(String.format("logged: %s %d sagas: %.0f sagas/s, %.1fus per saga", logged, sagaCount,
+                    sagaCount * 1e9 / elapsedNanos, elapsedNanos / 1e3 / sagaCount));
+        }
+
+        AtomicLong stepsBeforeCrash = new AtomicLong(sagaCount * 2L);
+        Executor crashing = command -> {
+            if (stepsBeforeCrash.decrementAndGet() >= 0) {
+                command.run();
+            }
+        };
+        SagaEngine crashed = new SagaEngine(crashing, logDir, definitions);
+        for (int i = 0; i < sagaCount; i++) {
+            crashed.start(diamond);
+        }
+        while (stepsBeforeCrash.get() > 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        crashed.shutdown();
+
+        long start = System.nanoTime();
+        SagaEngine restarted = new SagaEngine(executor, logDir, definitions);
+        long recoveredNanos = System.nanoTime() - start;
+        List<CompletableFuture<SagaResult>> recovered = restarted.recoveredSagas();
+        CompletableFuture.allOf(recovered.toArray(new CompletableFuture<?>[0])).join();
+        long settledNanos = System.nanoTime() - start;
+        Map<SagaResult.Status, Long> outcomes = recovered.stream()
+                .collect(Collectors.groupingBy(future -> future.join().status, Collectors.counting()));
+        restarted.shutdown();
+        executor.shutdown();
+        System.out.println(String.format("recovered %d in-flight sagas in %.0fms, all settled after %.0fms: %s",
+                recovered.size(), recoveredNanos / 1e6, settledNanos / 1e6, outcomes));
+        try (Stream<Path> files = Files.list(logDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+            Files.delete(logDir);
+        } catch (IOException e) {
+            System.out.println("failed to clean up " + logDir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * sagas of a diamond of 4 no-op steps all started at once on one shared pool, failureRate of the steps fail
+     * and get their saga compensated. shows what the engine costs per saga
+     */
+    private static void sagaEngineBenchmark(int sagas, double failureRate) {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        SagaEngine engine = new SagaEngine(executor);
+        SagaDefinition diamond = new SagaDefinition("diamond")
+                .addStep("reserve", new NoopService(failureRate), 1, TimeUnit.SECONDS)
+                .addStep("charge", new NoopService(failureRate), 1, TimeUnit.SECONDS, "reserve")
+                .addStep("ship", new NoopService(failureRate), 1, TimeUnit.SECONDS, "reserve")
+                .addStep("notify", new NoopService(failureRate), 1, TimeUnit.SECONDS, "charge", "ship");
+        LongAdder committed = new LongAdder();
+        LongAdder compensated = new LongAdder();
+        LongAdder failed = new LongAdder();
+        long start = System.nanoTime();
+        List<CompletableFuture<SagaResult>> results = new ArrayList<>(sagas);
+        for (int i = 0; i < sagas; i++) {
+            results.add(engine.start(diamond).whenComplete((result, e) -> {
+                if (result.status == SagaResult.Status.COMMITTED) {
+                    committed.increment();
+                } else if (result.status == SagaResult.Status.COMPENSATED) {
+                    compensated.increment();
+                } else {
+                    failed.increment();
+                }
+            }));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+        long elapsedNanos = System.nanoTime() - start;
+        System.out.println(String.format("saga engine sagas: %d in %dms, %.0f sagas/s committed: %d compensated: %d failed: %d in flight: %d",
+                sagas, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), sagas * 1e9 / elapsedNanos, committed.sum(),
+                compensated.sum(), failed.sum(), engine.inFlight()));
+        engine.shutdown();
+        executor.shutdown();
     }
 }
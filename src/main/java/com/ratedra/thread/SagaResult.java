@@ -0,0 +1,40 @@
+package com.ratedra.thread;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * how a saga ended, FAILED means a commit or a rollback failed too and the saga needs repair by hand
+ */
+class SagaResult {
+    enum Status { COMMITTED, COMPENSATED, FAILED }
+
+    final long sagaId;
+    final String definition;
+    final Status status;
+    // first failure of the saga, null when it committed cleanly
+    final Throwable failure;
+    final List<String> compensatedSteps;
+    final long elapsedNanos;
+    // from the moment the rollback could start until it finished, 0 when nothing was rolled back
+    final long compensationNanos;
+
+    SagaResult(long sagaId, String definition, Status status, Throwable failure, List<String> compensatedSteps,
+               long elapsedNanos, long compensationNanos) {
+        this.sagaId = sagaId;
+        this.definition = definition;
+        this.status = status;
+        this.failure = failure;
+        this.compensatedSteps = compensatedSteps;
+        this.elapsedNanos = elapsedNanos;
+        this.compensationNanos = compensationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "saga " + definition + "#" + sagaId + " " + status
+                + (failure == null ? "" : " (" + failure.getMessage() + ")")
+                + (compensatedSteps.isEmpty() ? "" : " rolled back: " + compensatedSteps)
+                + " in " + TimeUnit.NANOSECONDS.toMicros(elapsedNanos) + "us";
+    }
+}
@@ -0,0 +1,22 @@
+package com.ratedra.thread;
+
+/**
+ * one step of a frozen definition, parents and children are indexes into the definition's steps
+ */
+class SagaStep {
+    final int index;
+    final String name;
+    final Transaction transaction;
+    final long timeoutNanos;
+    final int[] parents;
+    final int[] children;
+
+    SagaStep(int index, String name, Transaction transaction, long timeoutNanos, int[] parents, int[] children) {
+        this.index = index;
+        this.name = name;
+        this.transaction = transaction;
+        this.timeoutNanos = timeoutNanos;
+        this.parents = parents;
+        this.children = children;
+    }
+}
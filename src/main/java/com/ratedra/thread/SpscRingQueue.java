@@ -0,0 +1,67 @@
+package com.ratedra.thread;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded queue for exactly one producer thread and one consumer thread.
+ * each side owns its index and writes it with a release store, no CAS at all. each side also keeps its last read of
+ * the other index and only rereads it when that stale copy says full or empty, so the indexes' cache lines move
+ * between the cores about once per lap instead of once per element.
+ */
+public class SpscRingQueue<E> implements NonBlockingQueue<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    // producer owned, cache is the producer's copy of head
+    private final PaddedCounter tail = new PaddedCounter(0);
+    // consumer owned, cache is the consumer's copy of tail
+    private final PaddedCounter head = new PaddedCounter(0);
+
+    public SpscRingQueue(int capacity) {
+        int size = RingBuffers.powerOfTwo(capacity);
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        if (pos - tail.cache > mask) {
+            tail.cache = head.get();
+            if (pos - tail.cache > mask) {
+                return false;
+            }
+        }
+        buffer.lazySet((int) pos & mask, e);
+        tail.lazySet(pos + 1);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        long pos = head.get();
+        if (pos >= head.cache) {
+            head.cache = tail.get();
+            if (pos >= head.cache) {
+                return null;
+            }
+        }
+        int index = (int) pos & mask;
+        E e = buffer.get(index);
+        buffer.lazySet(index, null);
+        head.lazySet(pos + 1);
+        return e;
+    }
+
+    @Override
+    public int size() {
+        return RingBuffers.size(head, tail, mask + 1);
+    }
+
+    @Override
+    public int capacity() {
+        return mask + 1;
+    }
+}
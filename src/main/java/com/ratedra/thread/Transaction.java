@@ -0,0 +1,9 @@
+package com.ratedra.thread;
+
+interface Transaction {
+    void createOrUpdate();
+
+    void commit();
+
+    void rollback();
+}
@@ -0,0 +1,69 @@
+package com.ratedra.thread;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets N parties take turns in strict round robin, 0, 1, .. N-1, 0, 1, .. like the stages of a pipeline that must
+ * not overtake each other. OddEvenThread is the two party case.
+ *
+ * every party has its own padded counter of the turns granted to it, only its predecessor writes it and only the
+ * party itself waits on it, so a handoff touches two cache lines and no lock. a waiting party idles through the
+ * wait strategy, spin then park by default: a turn that comes back quickly is caught spinning, a long wait parks
+ * and the predecessor unparks it.
+ *
+ * one thread per party, awaitTurn and endTurn of a party must be called from the thread that plays it.
+ */
+public class TurnSequencer {
+    private final PaddedCounter[] granted;
+    private final Waiters[] waiters;
+    private final WaitStrategy strategy;
+
+    public TurnSequencer(int parties) {
+        this(parties, WaitStrategy.spinThenPark(100, 10, TimeUnit.MILLISECONDS.toNanos(10)));
+    }
+
+    public TurnSequencer(int parties, WaitStrategy strategy) {
+        if (parties < 1) {
+            throw new RuntimeException("a turn sequencer needs at least one party, got " + parties);
+        }
+        this.strategy = strategy;
+        this.granted = new PaddedCounter[parties];
+        this.waiters = new Waiters[parties];
+        for (int party = 0; party < parties; party++) {
+            // cache counts the turns the party already took
+            granted[party] = new PaddedCounter(0);
+            waiters[party] = new Waiters();
+        }
+        granted[0].lazySet(1);
+    }
+
+    public int parties() {
+        return granted.length;
+    }
+
+    /**
+     * blocks until it is party's turn
+     */
+    public void awaitTurn(int party) throws InterruptedException {
+        PaddedCounter own = granted[party];
+        long turn = own.cache;
+        for (int attempt = 0; own.get() <= turn; attempt++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            strategy.idle(attempt, waiters[party], () -> own.get() > turn);
+        }
+    }
+
+    /**
+     * ends party's turn and hands the next one to the party after it
+     */
+    public void endTurn(int party) {
+        granted[party].cache++;
+        int next = party + 1 == granted.length ? 0 : party + 1;
+        // a full fence, unlike a release store, orders the grant before the read of the parked count in signal,
+        // so a successor that registered as parked and then saw no grant is always unparked
+        granted[next].getAndAdd(1);
+        waiters[next].signal();
+    }
+}
@@ -0,0 +1,181 @@
+package com.ratedra.thread;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs every task on a thread of its own, a virtual thread when the jvm has them (21+), with a semaphore capping how
+ * many tasks are in flight. a blocked task parks its virtual thread instead of pinning a pool thread, so tens of
+ * thousands of io bound tasks can wait at once. execute never blocks, tasks beyond the cap queue up and a task that
+ * finishes runs the oldest queued one on its thread, so tasks may submit more tasks to the executor that runs them.
+ * executeBlocking holds the caller back instead, for a single producer that must not run ahead of the cap.
+ *
+ * the code base targets java 8, so virtual threads are looked up reflectively. on an older jvm it falls back to a
+ * thread per task on platform threads, same semantics but every in flight task costs a real thread.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = virtualThreadPerTaskExecutor();
+
+    private final ExecutorService threadPerTask;
+    private final Semaphore inFlight;
+    private final int maxConcurrency;
+    // tasks that found every slot taken, in submission order
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    public VirtualThreadExecutor(String name, int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+        this.inFlight = new Semaphore(maxConcurrency);
+        this.threadPerTask = isSupported()
+                ? newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool(platformThreadFactory(name));
+    }
+
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (threadPerTask.isShutdown()) {
+            throw new RejectedExecutionException("executor is shut down");
+        }
+        if (!inFlight.tryAcquire()) {
+            waiting.add(command);
+            // the last running task may have given its slot back just before the add and found nothing queued
+            if (!inFlight.tryAcquire()) {
+                return;
+            }
+            command = nextWaiting();
+            if (command == null) {
+                return;
+            }
+        }
+        start(command);
+    }
+
+    /**
+     * like execute but blocks the caller while the cap is reached instead of queueing the task. never call it from a
+     * task of this executor, once every slot is held by a task waiting in here nothing gives a slot back
+     */
+    public void executeBlocking(Runnable command) {
+        if (threadPerTask.isShutdown()) {
+            throw new RejectedExecutionException("executor is shut down");
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while waiting for a free slot", e);
+        }
+        start(command);
+    }
+
+    // the caller holds a slot for command
+    private void start(Runnable command) {
+        try {
+            threadPerTask.execute(() -> runAndDrain(command));
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    // runs command, then the queued tasks on the same thread while there are any, holding one slot throughout
+    private void runAndDrain(Runnable command) {
+        Runnable next = command;
+        do {
+            try {
+                next.run();
+            } catch (RuntimeException | Error e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+            next = nextWaiting();
+        } while (next != null);
+    }
+
+    // hands the caller's slot to the oldest queued task, or gives it back when nothing is queued
+    private Runnable nextWaiting() {
+        while (true) {
+            Runnable next = waiting.poll();
+            if (next != null) {
+                return next;
+            }
+            inFlight.release();
+            // a task queued between the poll and the release found no free slot, take the slot back for it
+            if (waiting.isEmpty() || !inFlight.tryAcquire()) {
+                return null;
+            }
+        }
+    }
+
+    public int inFlight() {
+        return maxConcurrency - inFlight.availablePermits();
+    }
+
+    @Override
+    public void shutdown() {
+        threadPerTask.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> notRun = new ArrayList<>(threadPerTask.shutdownNow());
+        for (Runnable next = waiting.poll(); next != null; next = waiting.poll()) {
+            notRun.add(next);
+        }
+        return notRun;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return threadPerTask.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return threadPerTask.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threadPerTask.awaitTermination(timeout, unit);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor, null before java 21
+    private static Method virtualThreadPerTaskExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("failed to create a virtual thread executor", e);
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory(String name) {
+        AtomicLong counter = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,126 @@
+package com.ratedra.thread;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a thread waits for a full queue to get space or an empty one to get an element.
+ * spinning reacts within nanoseconds but burns a core per waiter, parking costs nothing while idle but a wakeup
+ * takes microseconds, the strategy picks the trade off per deployment.
+ */
+public interface WaitStrategy {
+    /**
+     * called after attempt failed tries (0 based), returns once the caller should try again. a parking strategy
+     * registers with waiters and only parks while ready is false, the other side signals waiters after progress
+     */
+    void idle(int attempt, Waiters waiters, BooleanSupplier ready);
+
+    /**
+     * lowest latency, one core per waiting thread, only for threads pinned to cores of their own
+     */
+    static WaitStrategy busySpin() {
+        return new BusySpinWaitStrategy();
+    }
+
+    /**
+     * spins spins times, then yields the core to other runnable threads between tries
+     */
+    static WaitStrategy spinThenYield(int spins) {
+        return new SpinThenYieldWaitStrategy(spins);
+    }
+
+    /**
+     * spins, yields, then parks until the other side signals progress. maxParkNanos bounds the park in case a
+     * signal raced with the registration
+     */
+    static WaitStrategy spinThenPark(int spins, int yields, long maxParkNanos) {
+        return new SpinThenParkWaitStrategy(spins, yields, maxParkNanos);
+    }
+
+    /**
+     * parks for a fixed time between tries without being signalled, latency is about parkNanos and idle cpu near zero
+     */
+    static WaitStrategy timedPark(long parkNanos) {
+        return new TimedParkWaitStrategy(parkNanos);
+    }
+}
+
+class BusySpinWaitStrategy implements WaitStrategy {
+    @Override
+    public void idle(int attempt, Waiters waiters, BooleanSupplier ready) {
+        // java 8 has no Thread.onSpinWait, the retry itself is the spin
+    }
+
+    @Override
+    public String toString() {
+        return "busy spin";
+    }
+}
+
+class SpinThenYieldWaitStrategy implements WaitStrategy {
+    private final int spins;
+
+    SpinThenYieldWaitStrategy(int spins) {
+        this.spins = spins;
+    }
+
+    @Override
+    public void idle(int attempt, Waiters waiters, BooleanSupplier ready) {
+        if (attempt >= spins) {
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "spin then yield";
+    }
+}
+
+class SpinThenParkWaitStrategy implements WaitStrategy {
+    private final int spins;
+    private final int yields;
+    private final long maxParkNanos;
+
+    SpinThenParkWaitStrategy(int spins, int yields, long maxParkNanos) {
+        this.spins = spins;
+        this.yields = yields;
+        this.maxParkNanos = maxParkNanos;
+    }
+
+    @Override
+    public void idle(int attempt, Waiters waiters, BooleanSupplier ready) {
+        if (attempt < spins) {
+            return;
+        }
+        if (attempt < spins + yields) {
+            Thread.yield();
+            return;
+        }
+        waiters.await(ready, maxParkNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "spin then park";
+    }
+}
+
+class TimedParkWaitStrategy implements WaitStrategy {
+    private final long parkNanos;
+
+    TimedParkWaitStrategy(long parkNanos) {
+        this.parkNanos = parkNanos;
+    }
+
+    @Override
+    public void idle(int attempt, Waiters waiters, BooleanSupplier ready) {
+        LockSupport.parkNanos(this, parkNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "timed park " + TimeUnit.NANOSECONDS.toMicros(parkNanos) + "us";
+    }
+}
@@ -0,0 +1,48 @@
+package com.ratedra.thread;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Threads parked on one side of a queue. signal is a single volatile read while nobody is parked, so the hot path
+ * of a queue that never parks stays as cheap as before.
+ */
+public class Waiters {
+    private final AtomicInteger parked = new AtomicInteger();
+    private final Queue<Thread> threads = new ConcurrentLinkedQueue<>();
+
+    /**
+     * registers, checks ready once more and parks while it is false. the queues publish with release stores, so a
+     * signal can in rare cases miss a thread that registered at the same moment, maxParkNanos bounds that wait
+     */
+    void await(BooleanSupplier ready, long maxParkNanos) {
+        Thread current = Thread.currentThread();
+        threads.add(current);
+        parked.incrementAndGet();
+        try {
+            if (!ready.getAsBoolean()) {
+                LockSupport.parkNanos(this, maxParkNanos);
+            }
+        } finally {
+            parked.decrementAndGet();
+            threads.remove(current);
+        }
+    }
+
+    void signal() {
+        if (parked.get() == 0) {
+            return;
+        }
+        Thread waiter = threads.poll();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    public int parked() {
+        return parked.get();
+    }
+}
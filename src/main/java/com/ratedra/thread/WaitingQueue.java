@@ -0,0 +1,72 @@
+package com.ratedra.thread;
+
+/**
+ * Blocking put and take on top of any NonBlockingQueue, the wait strategy decides how a thread waits for space or
+ * for an element. offer and poll stay non blocking and also wake parked threads of the other side.
+ */
+public class WaitingQueue<E> implements NonBlockingQueue<E> {
+    private final NonBlockingQueue<E> queue;
+    private final WaitStrategy strategy;
+    private final Waiters notEmpty = new Waiters();
+    private final Waiters notFull = new Waiters();
+
+    public WaitingQueue(NonBlockingQueue<E> queue, WaitStrategy strategy) {
+        this.queue = queue;
+        this.strategy = strategy;
+    }
+
+    public void put(E e) throws InterruptedException {
+        for (int attempt = 0; !queue.offer(e); attempt++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            strategy.idle(attempt, notFull, () -> queue.size() < queue.capacity());
+        }
+        notEmpty.signal();
+    }
+
+    public E take() throws InterruptedException {
+        E e;
+        for (int attempt = 0; (e = queue.poll()) == null; attempt++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            strategy.idle(attempt, notEmpty, () -> !queue.isEmpty());
+        }
+        notFull.signal();
+        return e;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (!queue.offer(e)) {
+            return false;
+        }
+        notEmpty.signal();
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        E e = queue.poll();
+        if (e != null) {
+            notFull.signal();
+        }
+        return e;
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public int capacity() {
+        return queue.capacity();
+    }
+}